@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One client STORE_BATCH or REMOVE_BATCH. Each file in it is a slot with
+ * its own {@link PendingRequest}, acked and completed on its own, but the
+ * batch shares one timeout and the client gets one reply once every slot has
+ * settled: the completion token followed by (filename status) for each file,
+ * in the order it asked. Files turned away up front are settled straight
+ * away with their error token. The timeout runs from the last ack of any
+ * file in the batch, as a client works through a long batch one file after
+ * another.
+ */
+public class BatchRequest {
+    /** Most files in one batch; replies stay well inside a frame, and LOAD_BATCH within the RELOAD table. */
+    static final int MAX_BATCH = 1024;
+
+    private final String completeToken;
+    private final Connection.ReplyTo client;
+    private final List<String> filenames;
+    private final String[] statuses;
+    private final AtomicInteger unsettled;
+    private volatile long lastAck = System.nanoTime();
+
+    public BatchRequest(String completeToken, List<String> filenames, Connection.ReplyTo client) {
+        this.completeToken = completeToken;
+        this.client = client;
+        this.filenames = filenames;
+        this.statuses = new String[filenames.size()];
+        this.unsettled = new AtomicInteger(filenames.size());
+    }
+
+    /**
+     * Records how slot ended; the first word on a slot stands. The last slot
+     * to settle sends the reply.
+     */
+    public void settle(int slot, String status) {
+        synchronized (statuses) {
+            if (statuses[slot] != null) return;
+            statuses[slot] = status;
+        }
+        if (unsettled.decrementAndGet() == 0) reply();
+    }
+
+    /** An ack arrived for one of the files. */
+    public void touch() {
+        lastAck = System.nanoTime();
+    }
+
+    public long idleMillis() {
+        return (System.nanoTime() - lastAck) / 1_000_000;
+    }
+
+    public boolean isSettled() {
+        return unsettled.get() == 0;
+    }
+
+    private void reply() {
+        Object[] fields = new Object[filenames.size() * 2];
+        int done = 0;
+        synchronized (statuses) {
+            for (int i = 0; i < statuses.length; i++) {
+                fields[2 * i] = filenames.get(i);
+                fields[2 * i + 1] = statuses[i];
+                if (statuses[i].equals(Protocol.STORE_COMPLETE_TOKEN)
+                        || statuses[i].equals(Protocol.REMOVE_COMPLETE_TOKEN)) done++;
+            }
+        }
+        client.send(completeToken, fields);
+        System.out.println("→ " + completeToken + " (" + done + " of " + statuses.length + " done)");
+    }
+
+    /** The filenames of parts[1…], or null (logged) if they are not a usable batch. */
+    static List<String> filenames(String[] parts, int stride) {
+        int n = (parts.length - 1) / stride;
+        if (n == 0 || (parts.length - 1) % stride != 0) {
+            System.err.println("Malformed " + parts[0] + " message: " + Arrays.toString(parts));
+            return null;
+        }
+        if (n > MAX_BATCH) {
+            System.err.println(parts[0] + " of " + n + " files is over the limit of " + MAX_BATCH);
+            return null;
+        }
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) names[i] = parts[1 + i * stride];
+        return Arrays.asList(names);
+    }
+
+    public Connection.ReplyTo getClient() { return client; }
+    public int size() { return filenames.size(); }
+}
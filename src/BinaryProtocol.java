@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional length-prefixed binary framing for the same messages as Protocol.
+ *
+ * A client opts in by sending MAGIC, VERSION as the very first two bytes of a
+ * connection (no text command starts with a non-ASCII byte); the receiver echoes
+ * both bytes back and from then on every message in both directions is a frame:
+ *
+ *   int32 length            bytes that follow this field
+ *   u8    opcode            index into TOKENS
+ *   int32 requestId         echoed on replies, 0 for unsolicited messages
+ *   u16   fieldCount
+ *   fields, each:  u8 type, then
+ *                  TYPE_STRING: u16 length + UTF-8 bytes (may contain spaces)
+ *                  TYPE_LONG:   int64
+ *
+ * Frames decode to the same parts array as a text line ("STORE f 12" is
+ * {"STORE", "f", "12"}), so every CommandHandler serves both encodings.
+ */
+public final class BinaryProtocol {
+    public static final byte MAGIC   = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final int  MAX_FRAME_LENGTH = 1024 * 1024;
+
+    static final byte TYPE_STRING = 0;
+    static final byte TYPE_LONG   = 1;
+
+    /** Opcode = position in this table; only ever append to it. */
+    private static final String[] TOKENS = {
+            Protocol.LIST_TOKEN,
+            Protocol.STORE_TOKEN,
+            Protocol.LOAD_TOKEN,
+            Protocol.LOAD_DATA_TOKEN,
+            Protocol.RELOAD_TOKEN,
+            Protocol.REMOVE_TOKEN,
+            Protocol.STORE_TO_TOKEN,
+            Protocol.STORE_COMPLETE_TOKEN,
+            Protocol.LOAD_FROM_TOKEN,
+            Protocol.REMOVE_COMPLETE_TOKEN,
+            Protocol.REBALANCE_TOKEN,
+            Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN,
+            Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN,
+            Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN,
+            Protocol.ERROR_LOAD_TOKEN,
+            Protocol.ACK_TOKEN,
+            Protocol.STORE_ACK_TOKEN,
+            Protocol.REMOVE_ACK_TOKEN,
+            Protocol.JOIN_TOKEN,
+            Protocol.REBALANCE_STORE_TOKEN,
+            Protocol.REBALANCE_COMPLETE_TOKEN,
+            Protocol.STATS_TOKEN,
+            Protocol.DIGEST_TOKEN,
+            Protocol.DIGEST_BUCKETS_TOKEN,
+            Protocol.LIST_PAGE_TOKEN,
+            Protocol.STORE_CHUNKED_TOKEN,
+            Protocol.STORE_TO_CHUNKED_TOKEN,
+            Protocol.LOAD_CHUNKED_TOKEN,
+            Protocol.LOAD_FROM_CHUNKED_TOKEN,
+            Protocol.STORE_EC_TOKEN,
+            Protocol.STORE_TO_EC_TOKEN,
+            Protocol.LOAD_EC_TOKEN,
+            Protocol.LOAD_FROM_EC_TOKEN,
+            Protocol.REBUILD_SHARD_TOKEN,
+            Protocol.LOAD_DONE_TOKEN,
+            Protocol.STORE_LINK_TOKEN,
+            Protocol.STORE_CODEC_TOKEN,
+            Protocol.LOAD_CODEC_TOKEN,
+            Protocol.CORRUPT_TOKEN,
+            Protocol.STORE_BATCH_TOKEN,
+            Protocol.STORE_TO_BATCH_TOKEN,
+            Protocol.STORE_BATCH_COMPLETE_TOKEN,
+            Protocol.LOAD_BATCH_TOKEN,
+            Protocol.LOAD_FROM_BATCH_TOKEN,
+            Protocol.REMOVE_BATCH_TOKEN,
+            Protocol.REMOVE_BATCH_COMPLETE_TOKEN,
+            Protocol.ERROR_TIMEOUT_TOKEN,
+    };
+    private static final Map<String, Byte> OPCODES = new HashMap<>();
+    static {
+        for (int i = 0; i < TOKENS.length; i++) {
+            OPCODES.put(TOKENS[i], (byte) i);
+        }
+    }
+
+    private BinaryProtocol() {}
+
+    /** A decoded frame: parts[0] is the token, the rest are its fields. */
+    public static final class Frame {
+        public final int requestId;
+        public final String[] parts;
+
+        Frame(int requestId, String[] parts) {
+            this.requestId = requestId;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * Encodes one message, including its length prefix.
+     * Integer and Long fields are sent as TYPE_LONG, everything else as a string.
+     */
+    public static byte[] encode(String token, int requestId, Object... fields) {
+        Byte opcode = OPCODES.get(token);
+        if (opcode == null) {
+            throw new IllegalArgumentException("No opcode for " + token);
+        }
+        if (fields.length > 0xFFFF) {
+            throw new IllegalArgumentException("Too many fields: " + fields.length);
+        }
+        byte[][] strings = new byte[fields.length][];
+        int length = 1 + 4 + 2;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] instanceof Integer || fields[i] instanceof Long) {
+                length += 1 + 8;
+            } else {
+                strings[i] = String.valueOf(fields[i]).getBytes(StandardCharsets.UTF_8);
+                if (strings[i].length > 0xFFFF) {
+                    throw new IllegalArgumentException("Field longer than 65535 bytes");
+                }
+                length += 1 + 2 + strings[i].length;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + length);
+        buf.putInt(length).put(opcode).putInt(requestId).putShort((short) fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            if (strings[i] == null) {
+                buf.put(TYPE_LONG).putLong(((Number) fields[i]).longValue());
+            } else {
+                buf.put(TYPE_STRING).putShort((short) strings[i].length).put(strings[i]);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decodes a frame body, i.e. everything after the length prefix.
+     * @throws IOException on an unknown opcode or a truncated body
+     */
+    public static Frame decode(ByteBuffer body) throws IOException {
+        try {
+            int opcode = body.get() & 0xFF;
+            if (opcode >= TOKENS.length) {
+                throw new IOException("Unknown opcode " + opcode);
+            }
+            int requestId = body.getInt();
+            int count = body.getShort() & 0xFFFF;
+            String[] parts = new String[count + 1];
+            parts[0] = TOKENS[opcode];
+            for (int i = 1; i <= count; i++) {
+                byte type = body.get();
+                if (type == TYPE_LONG) {
+                    parts[i] = Long.toString(body.getLong());
+                } else if (type == TYPE_STRING) {
+                    byte[] bytes = new byte[body.getShort() & 0xFFFF];
+                    body.get(bytes);
+                    parts[i] = new String(bytes, StandardCharsets.UTF_8);
+                } else {
+                    throw new IOException("Unknown field type " + type);
+                }
+            }
+            return new Frame(requestId, parts);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps each distinct file body a Dstore holds once. Bodies live in
+ * fileFolder/.blobs named by their SHA-256, and every filename with that
+ * content is a hard link to its blob, so LOAD_DATA, rebalancing and the
+ * Inventory keep working on plain names. A blob is deleted when the last
+ * name linked to it goes.
+ *
+ * The filename → blob index is not stored anywhere: at startup it is rebuilt
+ * by matching each file's inode against the blobs', so it cannot disagree
+ * with the disk after a crash, and blobs no name links to are deleted. The
+ * {@link Inventory} reports every file written over or deleted, whichever
+ * handler did it, and the name's reference is dropped if it no longer
+ * points at its blob.
+ *
+ * On a filesystem without hard links files are stored as before, once per name.
+ */
+public class BlobStore {
+    static final String BLOB_DIR = ".blobs";
+
+    private final Path folder;
+    private final Path blobDir;
+    private final Path tmpDir;
+    private final Map<String, String> names = new HashMap<>();
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private boolean linksSupported = true;
+    private long linked;
+
+    public BlobStore(String fileFolder) throws IOException {
+        this.folder = new File(fileFolder).toPath();
+        this.blobDir = folder.resolve(BLOB_DIR);
+        this.tmpDir = folder.resolve(DStoreStoreHandler.TEMP_DIR);
+        Files.createDirectories(blobDir);
+        Files.createDirectories(tmpDir);
+
+        Map<Object, String> byInode = new HashMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(blobDir, Files::isRegularFile)) {
+            for (Path p : entries) {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                String hash = p.getFileName().toString();
+                blobs.put(hash, new Blob(attrs.size()));
+                if (attrs.fileKey() != null) byInode.put(attrs.fileKey(), hash);
+            }
+        }
+        if (!byInode.isEmpty()) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder, Files::isRegularFile)) {
+                for (Path p : entries) {
+                    String hash = byInode.get(Files.readAttributes(p, BasicFileAttributes.class).fileKey());
+                    if (hash == null) continue;
+                    names.put(p.getFileName().toString(), hash);
+                    blobs.get(hash).refs++;
+                }
+            }
+        }
+        // left behind by a crash between writing a blob and linking a name to it
+        for (String hash : Set.copyOf(blobs.keySet())) {
+            if (blobs.get(hash).refs == 0) deleteBlob(hash);
+        }
+        System.out.printf("Blobs: %d for %d names%n", blobs.size(), names.size());
+    }
+
+    /** SHA-256 as it appears in blob names and on the wire. */
+    public static String hex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    public static boolean isHash(String s) {
+        return s.length() == 64 && s.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    /**
+     * Publishes a finished upload under filename. If a blob with this hash is
+     * already here the upload is discarded and the name linked to that blob.
+     */
+    public synchronized void publish(Path upload, String filename, String hash) throws IOException {
+        Path target = folder.resolve(filename);
+        if (!linksSupported) {
+            Files.move(upload, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Path blob = blobDir.resolve(hash);
+        boolean fresh = !blobs.containsKey(hash);
+        if (fresh) {
+            Files.move(upload, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            blobs.put(hash, new Blob(Files.size(blob)));
+        } else {
+            Files.deleteIfExists(upload);
+        }
+        if (!linkName(blob, target)) {
+            // no hard links here: keep the blob's content under the name instead
+            linksSupported = false;
+            System.err.println("⚠ Hard links not supported in " + folder + "; storing duplicates");
+            if (fresh) {
+                blobs.remove(hash);
+                Files.move(blob, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Path copy = Files.createTempFile(tmpDir, "blob-", ".part");
+                Files.copy(blob, copy, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return;
+        }
+        attach(filename, hash);
+        if (!fresh) linked++;
+    }
+
+    /**
+     * STORE_LINK: makes filename another name for a blob already held.
+     * @return the file's size, or -1 if there is no such blob of that size
+     */
+    public synchronized long link(String filename, String hash, long size) throws IOException {
+        Blob b = blobs.get(hash);
+        if (b == null || b.size != size || !linkName(blobDir.resolve(hash), folder.resolve(filename))) return -1;
+        attach(filename, hash);
+        linked++;
+        return b.size;
+    }
+
+    public synchronized boolean contains(String hash) {
+        return blobs.containsKey(hash);
+    }
+
+    /**
+     * filename was written over or deleted; if it is no longer the blob it
+     * was linked to, that blob loses a reference.
+     */
+    public synchronized void onChange(String filename) {
+        String hash = names.get(filename);
+        if (hash == null || sameFile(folder.resolve(filename), blobDir.resolve(hash))) return;
+        names.remove(filename);
+        release(hash);
+    }
+
+    /**
+     * filename's content is corrupt: its blob is deleted so that nothing new
+     * is linked to it. The names on it keep the bad copy until they are
+     * removed or written over.
+     */
+    public synchronized void distrust(String filename) {
+        String hash = names.get(filename);
+        if (hash == null) return;
+        names.values().removeIf(hash::equals);
+        deleteBlob(hash);
+    }
+
+    private void attach(String filename, String hash) {
+        String old = names.put(filename, hash);
+        if (hash.equals(old)) return;
+        blobs.get(hash).refs++;
+        if (old != null) release(old);
+    }
+
+    private void release(String hash) {
+        Blob b = blobs.get(hash);
+        if (b != null && --b.refs <= 0) deleteBlob(hash);
+    }
+
+    private void deleteBlob(String hash) {
+        blobs.remove(hash);
+        try {
+            Files.deleteIfExists(blobDir.resolve(hash));
+        } catch (IOException e) {
+            System.err.println("⚠ Could not delete blob " + hash + ": " + e.getMessage());
+        }
+    }
+
+    /** Hard-links target to blob, replacing target atomically; false if links are unsupported. */
+    private boolean linkName(Path blob, Path target) throws IOException {
+        Path link = tmpDir.resolve("link-" + Thread.currentThread().threadId() + "-" + System.nanoTime());
+        try {
+            Files.createLink(link, blob);
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (FileSystemException e) {
+            if (e.getReason() != null && e.getReason().contains("not permitted")) return false;
+            throw e;
+        }
+        try {
+            Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(link);
+        }
+        return true;
+    }
+
+    private static boolean sameFile(Path a, Path b) {
+        try {
+            return Files.isSameFile(a, b);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public synchronized void addStats(Map<String, Object> stats) {
+        long saved = 0;
+        for (Blob b : blobs.values()) saved += (b.refs - 1) * b.size;
+        stats.put("blobs",            blobs.size());
+        stats.put("blobNames",        names.size());
+        stats.put("blobLinks",        linked);
+        stats.put("dedupSavedBytes",  saved);
+    }
+
+    private static final class Blob {
+        final long size;
+        int refs;
+
+        Blob(long size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * OutputStream over a non-blocking SocketChannel, used for sockets owned by
+ * the NIO receiver where socket.getOutputStream() is not allowed.
+ * A write never waits for the peer: whatever the socket does not take at
+ * once is queued, and the event loop sends the queue when the channel
+ * becomes writable (OP_WRITE), so one client that stops reading cannot stall
+ * the other connections on its loop. Writes from different threads are
+ * serialised on the channel so lines never interleave. A peer with more
+ * than MAX_QUEUED_BYTES waiting is disconnected, and close() waits for the
+ * queue to drain.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private static final long MAX_QUEUED_BYTES = 4L * BinaryProtocol.MAX_FRAME_LENGTH;
+
+    private final SocketChannel channel;
+    // all guarded by channel
+    private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+    private long queuedBytes;
+    private SelectionKey key;
+    private boolean closing;
+    private boolean overflowed;
+
+    public ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /** The event loop registered the channel; from now on it sends the queue. */
+    void attach(SelectionKey key) {
+        synchronized (channel) {
+            this.key = key;
+            if (!queued.isEmpty() || closing) wantWrite();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        synchronized (channel) {
+            if (closing || overflowed) throw new IOException("Connection is closing");
+            if (queued.isEmpty()) channel.write(buf);
+            if (!buf.hasRemaining()) return;
+            if (queuedBytes + buf.remaining() > MAX_QUEUED_BYTES) {
+                overflowed = true;
+                queued.clear();
+                wantWrite();
+                throw new IOException("Peer is not reading, " + queuedBytes + " bytes already queued");
+            }
+            queuedBytes += buf.remaining();
+            queued.add(ByteBuffer.allocate(buf.remaining()).put(buf).flip());
+            wantWrite();
+        }
+    }
+
+    /**
+     * Sends as much of the queue as the peer takes; called by the event loop
+     * when the channel is writable.
+     * @return true if the connection should now be closed: it overflowed, or
+     *         was closed and everything queued has gone out
+     */
+    boolean onWritable() throws IOException {
+        synchronized (channel) {
+            if (overflowed) return true;
+            while (!queued.isEmpty()) {
+                ByteBuffer head = queued.peek();
+                channel.write(head);
+                if (head.hasRemaining()) return false;
+                queuedBytes -= head.capacity();
+                queued.poll();
+            }
+            if (closing) return true;
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            return false;
+        }
+    }
+
+    private void wantWrite() {
+        if (key == null || !key.isValid()) return;
+        key.interestOpsOr(SelectionKey.OP_WRITE);
+        key.selector().wakeup();
+    }
+
+    /** Has the event loop close the channel once the queue is sent; at once if no loop owns it. */
+    @Override
+    public void close() throws IOException {
+        synchronized (channel) {
+            if (key != null && key.isValid()) {
+                closing = true;
+                wantWrite();
+            } else {
+                channel.close();
+            }
+        }
+    }
+}
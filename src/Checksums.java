@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The CRC32C of each file a Dstore holds, taken over its plain contents as
+ * it was written. Each is kept in fileFolder/.crc/&lt;filename&gt; (4 bytes,
+ * written via a temp file and an atomic rename) and in memory, so the
+ * {@link Scrubber} has something to check a file against without asking
+ * anyone. The {@link Inventory} reports every file written over or deleted,
+ * whichever handler did it, and its checksum is dropped then; handlers that
+ * know the new file's checksum record it after updating the Inventory.
+ */
+public class Checksums {
+    static final String DIR = ".crc";
+
+    private final Path dir;
+    private final Path tmpDir;
+    private final Map<String, Entry> crcs = new ConcurrentHashMap<>();
+
+    /** A recorded checksum; a new one is a new object, so a reader can tell it was replaced. */
+    static final class Entry {
+        final int crc;
+
+        Entry(int crc) {
+            this.crc = crc;
+        }
+    }
+
+    /** Loads the checksums on disk, deleting those of files no longer in inventory. */
+    public Checksums(String fileFolder, Inventory inventory) throws IOException {
+        Path folder = new File(fileFolder).toPath();
+        this.dir = folder.resolve(DIR);
+        this.tmpDir = folder.resolve(DStoreStoreHandler.TEMP_DIR);
+        Files.createDirectories(dir);
+        Files.createDirectories(tmpDir);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+            for (Path p : entries) {
+                String name = p.getFileName().toString();
+                byte[] b = Files.readAllBytes(p);
+                if (b.length != 4 || !inventory.contains(name)) {
+                    Files.deleteIfExists(p);
+                    continue;
+                }
+                crcs.put(name, new Entry(ByteBuffer.wrap(b).getInt()));
+            }
+        }
+    }
+
+    /** CRC32C as it appears on the wire. */
+    public static String hex(int crc) {
+        return HexFormat.of().toHexDigits(crc);
+    }
+
+    public static int parse(String hex) {
+        return (int) Long.parseLong(hex, 16);
+    }
+
+    public static boolean isCrc(String s) {
+        return s.length() == 8 && s.chars().allMatch(HexFormat::isHexDigit);
+    }
+
+    /** null if none is recorded for filename. */
+    public Entry get(String filename) {
+        return crcs.get(filename);
+    }
+
+    /** Records the checksum of filename as just written. */
+    public synchronized void put(String filename, int crc) {
+        crcs.put(filename, new Entry(crc));
+        try {
+            Path tmp = Files.createTempFile(tmpDir, "crc-", ".part");
+            try {
+                Files.write(tmp, ByteBuffer.allocate(4).putInt(crc).array());
+                Files.move(tmp, dir.resolve(filename), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ex) {
+            System.err.println("⚠ Could not save checksum of " + filename + ": " + ex.getMessage());
+        }
+    }
+
+    /** Records a checksum taken later, unless one has been recorded meanwhile. */
+    public synchronized void record(String filename, int crc) {
+        if (!crcs.containsKey(filename)) put(filename, crc);
+    }
+
+    /** filename was written over or deleted. */
+    public synchronized void onChange(String filename) {
+        if (crcs.remove(filename) == null) return;
+        try {
+            Files.deleteIfExists(dir.resolve(filename));
+        } catch (IOException e) {
+            System.err.println("⚠ Could not delete checksum of " + filename + ": " + e.getMessage());
+        }
+    }
+
+    public int size() {
+        return crcs.size();
+    }
+}
@@ -1,6 +1,5 @@
 import java.io.IOException;
-import java.net.Socket;
 
 public interface CommandHandler {
-    void handle(String[] command , Socket socket ) throws IOException;
+    void handle(String[] command , Connection connection ) throws IOException;
 }
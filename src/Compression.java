@@ -0,0 +1,456 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Files a Dstore keeps deflated (zlib) on disk. They live in
+ * fileFolder/.deflate, each a header (magic, size, SHA-256 of the
+ * contents) followed by the stream exactly as it goes over the wire, so a
+ * client that asks for deflate (LOAD_CODEC) is sent the stored bytes with
+ * no re-encoding, and everyone else gets them inflated on the fly. A name
+ * is kept in one form only; writing it plain drops the deflated copy.
+ *
+ * Files arrive deflated from clients (STORE_CODEC) and peers, or, with
+ * -Ddstore.compressAtRest=true, plain uploads of at least MIN_SIZE bytes
+ * are deflated (-Ddstore.compressLevel, default 6) and kept that way if
+ * that saves at least a tenth. Names with the same contents are hard links
+ * to one file. Time spent in the codec and bytes in and out are counted
+ * for STATS.
+ */
+public class Compression {
+    public static final String IDENTITY = "identity";
+    public static final String DEFLATE = "deflate";
+    static final String DIR = ".deflate";
+    static final int HEADER_SIZE = 4 + 8 + 32;
+    private static final int MAGIC = 0x44464c31; // "DFL1"
+    private static final int MIN_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path folder;
+    private final Path dir;
+    private final Path tmpDir;
+    private final boolean atRest = Boolean.getBoolean("dstore.compressAtRest");
+    private final int level = Integer.getInteger("dstore.compressLevel", 6);
+    private final Map<String, Entry> files = new HashMap<>();
+    private final Map<String, Set<String>> byHash = new HashMap<>();
+
+    private final AtomicLong deflateNanos = new AtomicLong();
+    private final AtomicLong deflatedIn = new AtomicLong();
+    private final AtomicLong deflatedOut = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+    private final AtomicLong inflatedOut = new AtomicLong();
+    private final AtomicLong encodedLoads = new AtomicLong();
+
+    /** Picks up the deflated files already on disk and adds them to inventory. */
+    public Compression(String fileFolder, Inventory inventory) throws IOException {
+        this.folder = new File(fileFolder).toPath();
+        this.dir = folder.resolve(DIR);
+        this.tmpDir = folder.resolve(DStoreStoreHandler.TEMP_DIR);
+        Files.createDirectories(dir);
+        Files.createDirectories(tmpDir);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+            for (Path p : entries) {
+                String name = p.getFileName().toString();
+                Entry e = readHeader(p);
+                if (e == null || Files.exists(folder.resolve(name))) {
+                    // unreadable, or written plain since
+                    Files.deleteIfExists(p);
+                    continue;
+                }
+                add(name, e);
+                inventory.put(name, e.size);
+            }
+        }
+    }
+
+    public boolean atRest() {
+        return atRest;
+    }
+
+    public static boolean isCodec(String codec) {
+        return IDENTITY.equals(codec) || DEFLATE.equals(codec);
+    }
+
+    public synchronized boolean contains(String filename) {
+        return files.containsKey(filename);
+    }
+
+    /** Where a deflated file's stream starts, for sending it as is. */
+    public String dir() {
+        return dir.toString();
+    }
+
+    /** @return the plain size, or -1 if filename is not kept deflated */
+    public synchronized long size(String filename) {
+        Entry e = files.get(filename);
+        return e == null ? -1 : e.size;
+    }
+
+    /** @return the stored (deflated) length, or -1 if filename is not kept deflated */
+    public synchronized long storedLength(String filename) {
+        Entry e = files.get(filename);
+        return e == null ? -1 : e.stored - HEADER_SIZE;
+    }
+
+    public void countEncodedLoad() {
+        encodedLoads.incrementAndGet();
+    }
+
+    /** The contents of a deflated file, inflated as they are read. */
+    public InputStream open(String filename) throws IOException {
+        FileInputStream in = new FileInputStream(dir.resolve(filename).toFile());
+        in.skipNBytes(HEADER_SIZE);
+        return new InflatingStream(in);
+    }
+
+    /**
+     * Reads encodedSize deflated bytes from in into a new temp file behind a
+     * header, inflating them as they come to check they make up size bytes.
+     * It fails as soon as they inflate past size, or if upload bytes follow
+     * the end of the deflate stream. The plain bytes are also fed to crc.
+     * @return the temp file, to pass to {@link #publish}
+     */
+    public Path receive(InputStream in, long size, long encodedSize, Checksum crc) throws IOException {
+        Path tmp = Files.createTempFile(tmpDir, "deflated-", ".part");
+        MessageDigest sha = sha256();
+        Inflater inflater = new Inflater();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] plain = new byte[BUFFER_SIZE];
+        long inflated = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            out.position(HEADER_SIZE);
+            long remaining = encodedSize;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("Upload ended after " + (encodedSize - remaining)
+                            + " of " + encodedSize + " bytes");
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                while (chunk.hasRemaining()) out.write(chunk);
+                remaining -= n;
+                inflater.setInput(buffer, 0, n);
+                long start = System.nanoTime();
+                int m;
+                while ((m = inflater.inflate(plain)) > 0) {
+                    if (inflated + m > size) {
+                        throw new IOException("Deflated upload inflates to more than " + size + " bytes");
+                    }
+                    sha.update(plain, 0, m);
+                    crc.update(plain, 0, m);
+                    inflated += m;
+                }
+                inflateNanos.addAndGet(System.nanoTime() - start);
+                if (inflater.needsDictionary()) throw new IOException("Deflate stream needs a preset dictionary");
+                if (inflater.finished() && (inflater.getRemaining() > 0 || remaining > 0)) {
+                    throw new IOException("Deflated upload has " + (inflater.getRemaining() + remaining)
+                            + " bytes after the end of its stream");
+                }
+            }
+            if (!inflater.finished() || inflated != size) {
+                throw new IOException("Deflated upload inflates to " + inflated + " bytes"
+                        + (inflater.finished() ? "" : " and is cut short") + ", not " + size);
+            }
+            inflatedOut.addAndGet(inflated);
+            writeHeader(out, size, sha.digest());
+            return tmp;
+        } catch (IOException | DataFormatException e) {
+            Files.deleteIfExists(tmp);
+            throw e instanceof IOException io ? io : new IOException("Corrupt deflate stream: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** SHA-256 of the contents of a file from {@link #receive} or {@link #encode}. */
+    public static String hashOf(Path deflated) throws IOException {
+        Entry e = readHeader(deflated);
+        if (e == null) throw new IOException("Not a deflated file: " + deflated);
+        return e.hash;
+    }
+
+    /**
+     * Deflates a plain file for keeping at rest.
+     * @return the deflated temp file, or null if it would not save a tenth
+     */
+    public Path encode(Path plain, long size, String hash) throws IOException {
+        if (size < MIN_SIZE) return null;
+        Path tmp = Files.createTempFile(tmpDir, "deflated-", ".part");
+        Deflater deflater = new Deflater(level);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] packed = new byte[BUFFER_SIZE];
+        long written = 0;
+        long nanos = 0;
+        try (InputStream in = Files.newInputStream(plain);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            out.position(HEADER_SIZE);
+            int n;
+            while (!deflater.finished()) {
+                if (deflater.needsInput()) {
+                    n = in.read(buffer);
+                    if (n < 0) deflater.finish();
+                    else deflater.setInput(buffer, 0, n);
+                }
+                long start = System.nanoTime();
+                int m = deflater.deflate(packed);
+                nanos += System.nanoTime() - start;
+                ByteBuffer chunk = ByteBuffer.wrap(packed, 0, m);
+                while (chunk.hasRemaining()) out.write(chunk);
+                written += m;
+                // give up as soon as it is clearly not worth it
+                if (written > size * 9 / 10) break;
+            }
+            deflateNanos.addAndGet(nanos);
+            deflatedIn.addAndGet(deflater.getBytesRead());
+            deflatedOut.addAndGet(written);
+            if (!deflater.finished()) {
+                Files.deleteIfExists(tmp);
+                return null;
+            }
+            writeHeader(out, size, HexFormat.of().parseHex(hash));
+            return tmp;
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Puts a deflated temp file in place under filename and removes the
+     * plain copy, if any. If a file with the same contents is already kept
+     * deflated, filename becomes a hard link to it instead.
+     */
+    public synchronized void publish(Path deflated, String filename) throws IOException {
+        Entry e = readHeader(deflated);
+        if (e == null) throw new IOException("Not a deflated file: " + deflated);
+        Path target = dir.resolve(filename);
+        Set<String> same = byHash.get(e.hash);
+        String existing = same == null ? null : same.stream().filter(n -> !n.equals(filename)).findAny().orElse(null);
+        if (existing != null && linkTo(existing, filename)) {
+            Files.deleteIfExists(deflated);
+            e = files.get(existing);
+        } else {
+            Files.move(deflated, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        forget(filename);
+        add(filename, e);
+        Files.deleteIfExists(folder.resolve(filename));
+    }
+
+    /**
+     * STORE_LINK for content this Dstore keeps deflated.
+     * @return the file's size, or -1 if no deflated file of that size has this hash
+     */
+    public synchronized long link(String filename, String hash, long size) throws IOException {
+        Set<String> same = byHash.get(hash);
+        if (same == null || same.isEmpty()) return -1;
+        String existing = same.iterator().next();
+        if (files.get(existing).size != size) return -1;
+        if (existing.equals(filename)) return files.get(existing).size;
+        if (!linkTo(existing, filename)) return -1;
+        Entry e = files.get(existing);
+        forget(filename);
+        add(filename, e);
+        Files.deleteIfExists(folder.resolve(filename));
+        return e.size;
+    }
+
+    /** REMOVE: deletes the deflated form of filename. @return false if there was none */
+    public synchronized boolean delete(String filename) {
+        if (!files.containsKey(filename)) return false;
+        try {
+            Files.deleteIfExists(dir.resolve(filename));
+        } catch (IOException e) {
+            System.err.println("⚠ Could not delete deflated " + filename + ": " + e.getMessage());
+            return false;
+        }
+        forget(filename);
+        return true;
+    }
+
+    /** Inventory listener: a plain write of filename supersedes its deflated form. */
+    public synchronized void onChange(String filename) {
+        if (files.containsKey(filename) && Files.exists(folder.resolve(filename))) delete(filename);
+    }
+
+    private boolean linkTo(String existing, String filename) throws IOException {
+        Path link = tmpDir.resolve("link-" + Thread.currentThread().threadId() + "-" + System.nanoTime());
+        try {
+            Files.createLink(link, dir.resolve(existing));
+        } catch (UnsupportedOperationException | IOException e) {
+            return false;
+        }
+        try {
+            Files.move(link, dir.resolve(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(link);
+        }
+        return true;
+    }
+
+    /**
+     * filename's stored copy is corrupt: nothing new is linked to it or to
+     * the names sharing it, which stay until they are removed or written over.
+     */
+    public synchronized void distrust(String filename) {
+        Entry e = files.get(filename);
+        if (e != null) byHash.remove(e.hash);
+    }
+
+    private void add(String filename, Entry e) {
+        files.put(filename, e);
+        byHash.computeIfAbsent(e.hash, h -> new HashSet<>()).add(filename);
+    }
+
+    private void forget(String filename) {
+        Entry old = files.remove(filename);
+        if (old == null) return;
+        Set<String> same = byHash.get(old.hash);
+        if (same != null && same.remove(filename) && same.isEmpty()) byHash.remove(old.hash);
+    }
+
+    private static void writeHeader(FileChannel out, long size, byte[] hash) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(size).put(hash).flip();
+        while (header.hasRemaining()) out.write(header, header.position());
+    }
+
+    private static Entry readHeader(Path p) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(p))) {
+            if (in.readInt() != MAGIC) return null;
+            long size = in.readLong();
+            byte[] hash = in.readNBytes(32);
+            if (hash.length != 32) return null;
+            return new Entry(size, Files.size(p), BlobStore.hex(hash));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void addStats(Map<String, Object> stats) {
+        long logical = 0;
+        long stored = 0;
+        int n;
+        synchronized (this) {
+            n = files.size();
+            for (Entry e : files.values()) {
+                logical += e.size;
+                stored += e.stored - HEADER_SIZE;
+            }
+        }
+        stats.put("deflatedFiles",       n);
+        stats.put("deflatedBytes",       stored);
+        stats.put("deflatedRatio",       String.format(Locale.ROOT, "%.2f", stored == 0 ? 1.0 : logical / (double) stored));
+        stats.put("deflateInBytes",      deflatedIn.get());
+        stats.put("deflateOutBytes",     deflatedOut.get());
+        stats.put("deflateMs",           deflateNanos.get() / 1_000_000);
+        stats.put("inflateOutBytes",     inflatedOut.get());
+        stats.put("inflateMs",           inflateNanos.get() / 1_000_000);
+        stats.put("deflatedLoads",       encodedLoads.get());
+    }
+
+    private record Entry(long size, long stored, String hash) { }
+
+    /** Inflates a stored stream for plain readers, counting the time it takes. */
+    private final class InflatingStream extends FilterInputStream {
+        private final Inflater inflater = new Inflater();
+        private final byte[] input = new byte[BUFFER_SIZE];
+
+        InflatingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            try {
+                while (true) {
+                    if (inflater.finished()) return -1;
+                    if (inflater.needsInput()) {
+                        int n = in.read(input);
+                        if (n < 0) throw new EOFException("Deflated file ends early");
+                        inflater.setInput(input, 0, n);
+                    }
+                    long start = System.nanoTime();
+                    int m = inflater.inflate(b, off, len);
+                    inflateNanos.addAndGet(System.nanoTime() - start);
+                    if (m > 0) {
+                        inflatedOut.addAndGet(m);
+                        return m;
+                    }
+                    if (inflater.needsDictionary()) throw new IOException("Deflate stream needs a preset dictionary");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflated file: " + e.getMessage());
+            }
+        }
+
+        /** Skips inflated bytes; FilterInputStream would skip the deflated ones underneath. */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] scratch = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+            long skipped = 0;
+            while (skipped < n) {
+                int m = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+                if (m < 0) break;
+                skipped += m;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One TCP connection and its buffered stream state. TCPReceiver creates a
+ * single Connection per accepted socket and hands it to every handler, so
+ * there is exactly one reader and one writer per socket: bytes the line
+ * reader has buffered ahead stay available to handlers that switch to raw
+ * reads (see DStoreStoreHandler), and replies from different threads are
+ * written whole, one message at a time.
+ *
+ * A connection speaks the text Protocol unless the peer opens with the
+ * BinaryProtocol handshake; either way handlers see the same parts arrays
+ * and answer through {@link #reply}, which encodes for the negotiated mode.
+ *
+ * Also used for outbound links, see {@link #open(String, int)}.
+ */
+public class Connection {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH  = 1024 * 1024;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final long openedAt = System.currentTimeMillis();
+    private volatile boolean binary;
+    // request id of the message being dispatched; only touched by the receiving thread
+    private int requestId;
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong messagesSent     = new AtomicLong();
+    private final AtomicLong bytesReceived    = new AtomicLong();
+    private final AtomicLong bytesSent        = new AtomicLong();
+
+    public Connection(Socket socket) throws IOException {
+        this.socket = socket;
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && !channel.isBlocking()) {
+            // Owned by NioTCPReceiver: the event loop does the reading, we only write
+            this.in  = null;
+            this.out = new ChannelOutputStream(channel);
+        } else {
+            this.in  = new BufferedInputStream(new CountingInputStream(socket.getInputStream()));
+            this.out = socket.getOutputStream();
+        }
+    }
+
+    /**
+     * Connects to host:port, e.g. a Dstore's link to the Controller. The socket
+     * comes from a (blocking) SocketChannel so sendFile can use transferTo.
+     */
+    public static Connection open(String host, int port) throws IOException {
+        return new Connection(SocketChannel.open(new InetSocketAddress(host, port)).socket());
+    }
+
+    /** Connects to host:port and performs the BinaryProtocol handshake as the client side. */
+    public static Connection openBinary(String host, int port) throws IOException {
+        Connection c = open(host, port);
+        synchronized (c.out) {
+            c.out.write(new byte[] { BinaryProtocol.MAGIC, BinaryProtocol.VERSION });
+            c.out.flush();
+        }
+        byte[] echo = c.in.readNBytes(2);
+        if (echo.length != 2 || echo[0] != BinaryProtocol.MAGIC || echo[1] != BinaryProtocol.VERSION) {
+            c.close();
+            throw new IOException("Peer did not accept the binary protocol");
+        }
+        c.binary = true;
+        return c;
+    }
+
+    /**
+     * Checks whether the peer opened with the BinaryProtocol handshake and, if
+     * so, acknowledges it. Must be called before the first read; a no-op on
+     * connections we opened ourselves with {@link #openBinary}.
+     */
+    public void negotiate() throws IOException {
+        if (binary) return;
+        in.mark(2);
+        int first = in.read();
+        if (first != (BinaryProtocol.MAGIC & 0xFF)) {
+            in.reset();
+            return;
+        }
+        int version = in.read();
+        if (version != BinaryProtocol.VERSION) {
+            throw new IOException("Unsupported binary protocol version " + version);
+        }
+        enableBinary();
+    }
+
+    /** Switches to binary framing and echoes the handshake. */
+    void enableBinary() throws IOException {
+        synchronized (out) {
+            out.write(new byte[] { BinaryProtocol.MAGIC, BinaryProtocol.VERSION });
+            out.flush();
+        }
+        binary = true;
+        System.out.println("Binary protocol negotiated with " + socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Reads the next message in whichever encoding was negotiated.
+     * @return token followed by its fields, or null once the peer has closed the connection
+     */
+    public String[] readMessage() throws IOException {
+        if (!binary) {
+            String line = readLine();
+            return line == null ? null : line.split(" ");
+        }
+        DataInputStream data = new DataInputStream(in);
+        int length;
+        try {
+            length = data.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = new byte[length];
+        data.readFully(body);
+        BinaryProtocol.Frame frame = BinaryProtocol.decode(ByteBuffer.wrap(body));
+        messagesReceived.incrementAndGet();
+        beginRequest(frame.requestId);
+        return frame.parts;
+    }
+
+    /** Sets the id that {@link #reply} tags its message with. */
+    void beginRequest(int requestId) {
+        this.requestId = requestId;
+    }
+
+    /** Id of the message being handled; always 0 on text connections. */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Reads one '\n'-terminated line (a trailing '\r' is dropped).
+     * @return the line, or null once the peer has closed the connection
+     */
+    public String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return decodeLine(line);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? decodeLine(line) : null;
+    }
+
+    private String decodeLine(ByteArrayOutputStream line) {
+        messagesReceived.incrementAndGet();
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r') len--;
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /** Counts a line framed elsewhere (NioTCPReceiver reads the channel itself). */
+    void recordReceived(int bytes) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * Raw byte stream positioned right after the last line read,
+     * for handlers that receive file content.
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Sends an unsolicited message (request id 0), fire-and-forget.
+     * @return false if the connection is broken (it is closed in that case)
+     */
+    public boolean send(String token, Object... fields) {
+        return write(0, token, fields);
+    }
+
+    /**
+     * Sends a request of our own under the given id, so the peer's answer
+     * (sent with reply or replyTo) can be matched to it. Binary links only;
+     * text has nowhere to carry the id.
+     */
+    public boolean sendRequest(int requestId, String token, Object... fields) {
+        return write(requestId, token, fields);
+    }
+
+    /**
+     * Answers the message currently being handled on this connection.
+     * Replies sent later from another thread must go through {@link #replyTo()}.
+     */
+    public boolean reply(String token, Object... fields) {
+        return write(requestId, token, fields);
+    }
+
+    /** Captures the current request so it can be answered asynchronously. */
+    public ReplyTo replyTo() {
+        return new ReplyTo(this, requestId);
+    }
+
+    private boolean write(int id, String token, Object[] fields) {
+        if (!binary) {
+            StringBuilder sb = new StringBuilder(token);
+            for (Object f : fields) sb.append(' ').append(f);
+            return sendOneWay(sb.toString());
+        }
+        return writeBytes(BinaryProtocol.encode(token, id, fields), token + " #" + id);
+    }
+
+    /**
+     * Sends one raw text line, fire-and-forget.
+     * @return false if the connection is broken (it is closed in that case)
+     */
+    public boolean sendOneWay(String message) {
+        return writeBytes((message + "\n").getBytes(StandardCharsets.UTF_8), message);
+    }
+
+    private boolean writeBytes(byte[] bytes, String message) {
+        try {
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+            messagesSent.incrementAndGet();
+            bytesSent.addAndGet(bytes.length);
+            System.out.println("Sent: " + message);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Connection lost while sending message: " + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Sends a message and waits for the peer's one-line reply.
+     * Only valid while nothing else is reading this connection.
+     * @return the reply, or null on timeout or disconnect
+     */
+    public String sendMessage(String message) {
+        if (!sendOneWay(message)) return null;
+        try {
+            String response = readLine();
+            if (response == null) {
+                throw new IOException("Server closed connection");
+            }
+            return response;
+        } catch (java.net.SocketTimeoutException e) {
+            System.err.println("Read timed out: server unresponsive");
+        } catch (IOException e) {
+            System.err.println("Connection lost while sending message: " + e.getMessage());
+            close();
+        }
+        return null;
+    }
+
+    /**
+     * Streams the raw bytes of the given file over the socket,
+     * without sending any header or waiting for an ACK, then closes the connection.
+     * Sockets backed by a SocketChannel get a zero-copy FileChannel.transferTo;
+     * plain sockets fall back to copying through a heap buffer.
+     *
+     * @param folderPath  folder on disk holding the file
+     * @param filename    name of the file to send
+     * @return          true if the bytes were sent successfully, false on I/O error
+     */
+    public boolean sendFile(String folderPath, String filename) {
+        return sendFile(folderPath, filename, null);
+    }
+
+    /**
+     * As {@link #sendFile(String, String)}, taking permission from throttle
+     * (if not null) before each chunk so transfers can share a bandwidth cap.
+     */
+    public boolean sendFile(String folderPath, String filename, Throttle throttle) {
+        return sendFile(folderPath, filename, 0, Long.MAX_VALUE, throttle);
+    }
+
+    /**
+     * As {@link #sendFile(String, String)} for the bytes [offset, offset+length)
+     * of the file, cut short at its end; e.g. one part of a parallel download,
+     * or the rest of one that was interrupted.
+     * @return false as well if offset lies beyond the end of the file
+     */
+    public boolean sendFile(String folderPath, String filename, long offset, long length, Throttle throttle) {
+        return sendFile(folderPath, filename, offset, length, throttle, true);
+    }
+
+    /**
+     * As above; with close false the connection stays open after a
+     * successful send, e.g. for a peer that confirms what it received.
+     */
+    public boolean sendFile(String folderPath, String filename, long offset, long length, Throttle throttle,
+                            boolean close) {
+        File file = new File(folderPath, filename);
+        if (!file.exists() || !file.isFile()) {
+            System.err.println("File not found: " + file.getAbsolutePath());
+            close();
+            return false;
+        }
+        long size = file.length();
+        if (offset < 0 || length < 0 || offset > size) {
+            System.err.println("Range " + offset + "+" + length + " outside " + filename + " (" + size + " bytes)");
+            close();
+            return false;
+        }
+        long count = Math.min(length, size - offset);
+
+        try {
+            SocketChannel channel = socket.getChannel();
+            long sent;
+            synchronized (out) {
+                sent = (channel != null) ? transferFile(file, offset, count, channel, throttle)
+                                         : copyFile(file, offset, count, out, throttle);
+            }
+            bytesSent.addAndGet(sent);
+            System.out.println("Sent raw file content: " + filename);
+            return true;
+
+        } catch (IOException e) {
+            System.err.println("Error sending file '" + filename + "': " + e.getMessage());
+            close();
+            return false;
+        } finally {
+            if (close) close();
+        }
+    }
+
+    /**
+     * As {@link #sendFile(String, String)} for content already in memory:
+     * writes the raw bytes with no header, then closes the connection.
+     */
+    public boolean sendBytes(byte[] data) {
+        try {
+            synchronized (out) {
+                out.write(data);
+                out.flush();
+            }
+            bytesSent.addAndGet(data.length);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error sending " + data.length + " bytes: " + e.getMessage());
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * As {@link #sendBytes(byte[])} for a (direct) buffer, from its position
+     * to its limit, e.g. a file held by the {@link ReadCache}.
+     */
+    public boolean sendBuffer(ByteBuffer data) {
+        int count = data.remaining();
+        try {
+            SocketChannel channel = socket.getChannel();
+            synchronized (out) {
+                if (channel != null) {
+                    while (data.hasRemaining()) channel.write(data);
+                } else {
+                    byte[] buffer = new byte[Math.min(count, COPY_BUFFER_SIZE)];
+                    while (data.hasRemaining()) {
+                        int n = Math.min(buffer.length, data.remaining());
+                        data.get(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                    }
+                    out.flush();
+                }
+            }
+            bytesSent.addAndGet(count);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error sending " + count + " bytes: " + e.getMessage());
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * As {@link #sendFile(String, String, long, long, Throttle)} for content
+     * produced as it is read (e.g. a file inflated on the fly): skips offset
+     * bytes of in, sends up to length more, closes in and the connection.
+     */
+    public boolean sendStream(InputStream in, long offset, long length) {
+        long total = 0;
+        try (in) {
+            in.skipNBytes(offset);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            synchronized (out) {
+                while (total < length && (n = in.read(buffer, 0, (int) Math.min(buffer.length, length - total))) > 0) {
+                    out.write(buffer, 0, n);
+                    total += n;
+                }
+                out.flush();
+            }
+            bytesSent.addAndGet(total);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error sending stream after " + total + " bytes: " + e.getMessage());
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * As {@link #sendFile(String, String, long, long, Throttle)} for count
+     * bytes at position in a channel the caller keeps open, such as one
+     * file's record in a segment of packed files.
+     */
+    public boolean sendRegion(FileChannel fc, long position, long count, Throttle throttle) {
+        return sendRegion(fc, position, count, throttle, true);
+    }
+
+    /** As above, leaving the connection open after a successful send unless close. */
+    public boolean sendRegion(FileChannel fc, long position, long count, Throttle throttle, boolean close) {
+        long total = 0;
+        try {
+            SocketChannel channel = socket.getChannel();
+            synchronized (out) {
+                if (channel != null) {
+                    total = transferChannel(fc, position, count, channel, throttle);
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1)));
+                    while (total < count) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), count - total));
+                        int n = fc.read(buffer, position + total);
+                        if (n < 0) throw new EOFException("Region ends after " + total + " of " + count + " bytes");
+                        if (throttle != null) throttle.acquire(n);
+                        out.write(buffer.array(), 0, n);
+                        total += n;
+                    }
+                    out.flush();
+                }
+            }
+            bytesSent.addAndGet(total);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error sending region after " + total + " bytes: " + e.getMessage());
+            close();
+            return false;
+        } finally {
+            if (close) close();
+        }
+    }
+
+    /** sendfile(2) path: the kernel moves pages from the page cache to the socket. */
+    private static long transferFile(File file, long offset, long count, SocketChannel channel,
+                                     Throttle throttle) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return transferChannel(fc, offset, count, channel, throttle);
+        }
+    }
+
+    private static long transferChannel(FileChannel fc, long offset, long count, SocketChannel channel,
+                                        Throttle throttle) throws IOException {
+        long end = offset + count;
+        long position = offset;
+        while (position < end) {
+            long chunk = end - position;
+            if (throttle != null) {
+                chunk = Math.min(chunk, COPY_BUFFER_SIZE);
+                throttle.acquire(chunk);
+            }
+            long n = fc.transferTo(position, chunk, channel);
+            // transferTo gives 0 rather than -1 at end of file
+            if (n == 0 && position >= fc.size()) {
+                throw new EOFException("File ends after " + (position - offset) + " of " + count + " bytes");
+            }
+            position += n;
+        }
+        return count;
+    }
+
+    private static long copyFile(File file, long offset, long count, OutputStream out,
+                                 Throttle throttle) throws IOException {
+        long total = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int bytesRead;
+            while (total < count
+                    && (bytesRead = raf.read(buffer, 0, (int) Math.min(buffer.length, count - total))) != -1) {
+                if (throttle != null) throttle.acquire(bytesRead);
+                out.write(buffer, 0, bytesRead);
+                total += bytesRead;
+            }
+            out.flush();
+        }
+        return total;
+    }
+
+    /**
+     * Close the underlying socket and streams.
+     */
+    public void close() {
+        try {
+            // an NIO connection closes once its event loop has sent what is queued
+            if (out instanceof ChannelOutputStream channelOut) channelOut.close();
+            else if (!socket.isClosed()) socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+    }
+
+    public Socket getSocket() { return socket; }
+    /** The queueing stream of a connection owned by NioTCPReceiver, else null. */
+    ChannelOutputStream getChannelOutput() { return out instanceof ChannelOutputStream c ? c : null; }
+    public boolean isBinary() { return binary; }
+    public long getMessagesReceived() { return messagesReceived.get(); }
+    public long getMessagesSent() { return messagesSent.get(); }
+    public long getBytesReceived() { return bytesReceived.get(); }
+    public long getBytesSent() { return bytesSent.get(); }
+
+    @Override
+    public String toString() {
+        return socket.getRemoteSocketAddress()
+                + " (msgsIn=" + messagesReceived + ", msgsOut=" + messagesSent
+                + ", bytesIn=" + bytesReceived + ", bytesOut=" + bytesSent
+                + ", openMs=" + (System.currentTimeMillis() - openedAt) + ")";
+    }
+
+    /** Where to send the eventual answer to one request. */
+    public static final class ReplyTo {
+        private final Connection connection;
+        private final int requestId;
+
+        ReplyTo(Connection connection, int requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        public boolean send(String token, Object... fields) {
+            return connection.write(requestId, token, fields);
+        }
+
+        public Connection getConnection() { return connection; }
+        public int getRequestId() { return requestId; }
+    }
+
+    /** Counts every byte pulled off the socket, including file bodies. */
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) { super(in); }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) bytesReceived.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) bytesReceived.addAndGet(n);
+            return n;
+        }
+    }
+}
@@ -1,40 +1,71 @@
 
 
 import java.io.IOException;
-import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Controller implements DisconnectListener  {
     private final int                 replicationFactor;
     private final TCPReceiver         receiver;
     private final Index index = new Index();
-    private final Map<Integer,TCPSender> dstorePortstoSenders = new ConcurrentHashMap<>();
-    private final Map<Socket,Integer>      socketToDstorePort= new ConcurrentHashMap<>();
-    private final Map<String,TCPSender>    pendingClients    = new ConcurrentHashMap<>();
-
-    private final Map<String,Integer>      pendingAcks       = new ConcurrentHashMap<>();
-    private final Map<String,TCPSender>    pendingRemoveClients = new ConcurrentHashMap<>();
-    private final Map<String,Integer>      pendingRemoveAcks    = new ConcurrentHashMap<>();
-    private final Map<String, CountDownLatch>    pendingLatches = new ConcurrentHashMap<>();
-    private final Map<String, CountDownLatch>    pendingRemoveLatches = new ConcurrentHashMap<>();
-    private final AtomicInteger rrCounter = new AtomicInteger();
+    private final Map<Integer,Connection> dstorePortstoSenders = new ConcurrentHashMap<>();
+    private final Map<Connection,Integer> connectionToDstorePort = new ConcurrentHashMap<>();
+    // Dstore acks only name the file, and the index admits one STORE or REMOVE
+    // per file at a time, so the filename finds the request an ack belongs to.
+    private final Map<String,PendingRequest> pendingStores  = new ConcurrentHashMap<>();
+    private final Map<String,PendingRequest> pendingRemoves = new ConcurrentHashMap<>();
 
     private final ControllerHandlerFactory factory;
     private final int timeout;
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(5);
-
-    // map from clientSocket+filename → list of candidate Dstore ports
-    private final Map<String,List<Integer>> loadCandidates = new ConcurrentHashMap<>();
+    // answers clients once the index log is durable, off its writer thread,
+    // so one client that stops reading cannot hold up group commit
+    private final ExecutorService replies = Executors.newVirtualThreadPerTaskExecutor();
+    private final Rebalancer rebalancer;
+    private final Rereplicator rereplicator;
+    private final Reconciler reconciler;
+    private final ShardRepairer shardRepairer;
+    private final ReplicaSelector replicaSelector;
+    private final int rebalancePeriod;
+    private final IndexLog indexLog;
+    // ports the index lists whose Dstore was not connected at the last check
+    private final Set<Integer> absentSeen = ConcurrentHashMap.newKeySet();
+
+    // Dstores told to STORE_LINK content they already had instead of receiving an upload
+    private final AtomicLong storeLinks = new AtomicLong();
+    // replicas a Dstore's scrubber found corrupt, and STORE_ACKs whose CRC32C disagreed
+    private final AtomicLong corruptReplicas = new AtomicLong();
+    private final AtomicLong checksumMismatches = new AtomicLong();
+    // STORE_BATCH, LOAD_BATCH and REMOVE_BATCH requests, and the files named in them
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedFiles = new AtomicLong();
+
+    // per client connection: requestId|filename → Dstore ports not yet tried for that LOAD
+    private final Map<Connection,Map<String,List<Integer>>> loadCandidates = new ConcurrentHashMap<>();
+    private static final int MAX_TRACKED_LOADS = 1024;
 
     public Controller(int cport, int R, int timeout, int rebalancePeriod) throws IOException {
         this.replicationFactor = R;
-        this.receiver          = new TCPReceiver(cport, this::dispatch , this,0);
+        this.receiver          = Boolean.getBoolean("controller.nio")
+                ? new NioTCPReceiver(cport, this::dispatch, this, 0)
+                : new TCPReceiver(cport, this::dispatch , this,0);
         this.factory           = new ControllerHandlerFactory(this);
         this.timeout          = timeout;
+        this.rebalancePeriod  = rebalancePeriod;
+        this.rebalancer       = new Rebalancer(this, scheduler,
+                Long.getLong("controller.rebalanceTimeout", timeout));
+        this.rereplicator     = new Rereplicator(this, scheduler,
+                Long.getLong("controller.rebalanceTimeout", timeout));
+        this.reconciler       = new Reconciler(this, scheduler, timeout);
+        this.replicaSelector  = new ReplicaSelector(timeout);
+        this.shardRepairer    = new ShardRepairer(this, scheduler,
+                Long.getLong("controller.rebalanceTimeout", timeout));
+        String dataDir = System.getProperty("controller.dataDir");
+        this.indexLog = dataDir == null ? null : IndexLog.open(new java.io.File(dataDir), index,
+                Long.getLong("controller.snapshotBytes", 64L << 20));
     }
 
     public static void main(String[] args) throws Exception {
@@ -54,12 +85,46 @@ public class Controller implements DisconnectListener  {
 
     public void start() throws IOException {
         receiver.start();
+        rereplicator.start();
+        rebalancer.schedule(rebalancePeriod);
+        long grace = Long.getLong("controller.rejoinGrace", 10_000);
+        absentSeen.addAll(index.getAbsentDstores());
+        scheduler.scheduleWithFixedDelay(this::forgetAbsentDstores, grace, grace, TimeUnit.MILLISECONDS);
     }
 
-    private void dispatch(String line, Socket socket) throws IOException {
-        String[] parts = line.split(" ", 2);
+    /**
+     * After a restart the recovered index still lists Dstores that have not
+     * rejoined. Once they have been missing for a whole grace period they are
+     * treated as departed. The grace only starts when some Dstore has
+     * rejoined: until then it is more likely we cannot reach any of them
+     * than that all of them are gone.
+     */
+    private void forgetAbsentDstores() {
+        List<Integer> absent = index.getAbsentDstores();
+        if (absent.isEmpty() && absentSeen.isEmpty()) return;
+        if (dstorePortstoSenders.isEmpty()) {
+            absentSeen.clear();
+            return;
+        }
+        Set<Integer> previously = Set.copyOf(absentSeen);
+        absentSeen.clear();
+        absentSeen.addAll(absent);
+        for (int port : absent) {
+            if (dstorePortstoSenders.containsKey(port) || !previously.contains(port)) continue;
+            absentSeen.remove(port);
+            Set<String> hosted = Set.copyOf(index.getFilesOn(port));
+            List<String> lost = index.removeDstore(port);
+            rereplicator.enqueue(hosted);
+            shardRepairer.enqueue(lost);
+            System.err.println("⚠ D-store " + port + " did not rejoin – removed"
+                    + (lost.isEmpty() ? "" : ", lost last replica of " + lost.size() + " file(s)"));
+        }
+        rebalancer.trigger();
+    }
+
+    private void dispatch(String[] parts, Connection connection) throws IOException {
         CommandHandler h = factory.get(parts[0]);
-        if (h != null) h.handle(parts, socket);
+        if (h != null) h.handle(parts, connection);
         else System.err.println("Unknown: " + parts[0]);
     }
 
@@ -67,165 +132,375 @@ public class Controller implements DisconnectListener  {
 
     public Index getIndex() { return index; }
     public int getReplicationFactor() { return replicationFactor; }
-    public Map<Integer,TCPSender> getDstorePortstoSenders() { return dstorePortstoSenders; }
-    public Map<Socket,Integer> getSocketToPort() { return socketToDstorePort; }
+    public Map<Integer,Connection> getDstorePortstoSenders() { return dstorePortstoSenders; }
+    public Map<Connection,Integer> getConnectionToPort() { return connectionToDstorePort; }
+    public Rebalancer getRebalancer() { return rebalancer; }
+    public Rereplicator getRereplicator() { return rereplicator; }
+    public Reconciler getReconciler() { return reconciler; }
+    public ShardRepairer getShardRepairer() { return shardRepairer; }
+    public ReplicaSelector getReplicaSelector() { return replicaSelector; }
+
+    /** True for a shard of an erasure-coded file; it is kept once, and rebuilt rather than copied. */
+    public boolean isShard(String filename) {
+        if (!FileInfo.isChunkName(filename)) return false;
+        FileInfo parent = index.getFileInfo(FileInfo.parentName(filename));
+        return parent != null && parent.isErasureCoded();
+    }
+
+    /** The connected Dstore holding a complete shard, or -1 if it is gone. */
+    public int shardPort(String shard) {
+        FileInfo info = index.getFileInfo(shard);
+        if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) return -1;
+        for (int port : info.getdStorePorts()) {
+            if (dstorePortstoSenders.containsKey(port)) return port;
+        }
+        return -1;
+    }
 
-    public void addDstore(int port, TCPSender sender) {
+    /** How many replicas the file should have: R, or 1 for a shard. */
+    public int targetReplicas(String filename) {
+        return isShard(filename) ? 1 : replicationFactor;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("liveConnections",     receiver.getLiveConnections());
+        stats.put("acceptedConnections", receiver.getAcceptedConnections());
+        stats.put("rejectedConnections", receiver.getRejectedConnections());
+        stats.put("dstores",             dstorePortstoSenders.size());
+        stats.put("files",               index.size());
+        stats.put("rebalancing",         rebalancer.isRunning());
+        stats.put("rereplicationQueued",   rereplicator.getQueued());
+        stats.put("rereplicationInFlight", rereplicator.getInFlight());
+        stats.put("replicasRestored",      rereplicator.getRestored());
+        stats.put("reconciliations",       reconciler.getChecked());
+        stats.put("reconcileBuckets",      reconciler.getBucketsFetched());
+        stats.put("reconcileDropped",      reconciler.getDropped());
+        stats.put("reconcileAdopted",      reconciler.getAdopted());
+        stats.put("reconcileDeleted",      reconciler.getDeleted());
+        stats.put("shardRepairsInFlight",  shardRepairer.getInFlight());
+        stats.put("shardsRebuilt",         shardRepairer.getRebuilt());
+        stats.put("storeLinks",            storeLinks.get());
+        stats.put("corruptReplicas",       corruptReplicas.get());
+        stats.put("checksumMismatches",    checksumMismatches.get());
+        stats.put("batches",               batches.get());
+        stats.put("batchedFiles",          batchedFiles.get());
+        for (DstoreLoad load : index.getLoads()) {
+            stats.put("dstore." + load.getPort() + ".files", load.getFiles());
+            stats.put("dstore." + load.getPort() + ".bytes", load.getBytes());
+        }
+        replicaSelector.addStats(stats);
+        return stats;
+    }
+
+    public void addDstore(int port, Connection sender) {
         dstorePortstoSenders.put(port, sender);
+        index.addDstore(port);
         System.out.println("Dstore added: " + port);
-    }
-    public void mapSocketToPort(Socket s,int port) {
-        socketToDstorePort.put(s, port);
+        // check what it really holds before planning anything around it
+        reconciler.start(port);
     }
 
-    public synchronized ArrayList<Integer> selectLeastLoadedDstores() {
-        var counts = index.getFileCountPerDstore();
-        var ports  = new ArrayList<>(dstorePortstoSenders.keySet());
+    /** A joined Dstore's files have been checked against the index. */
+    public void onReconciled(int port) {
+        // new capacity: spread existing files onto it
+        rereplicator.retryParked();
+        shardRepairer.retryParked();
+        rebalancer.trigger();
+    }
+    public void mapConnectionToPort(Connection c, int port) {
+        connectionToDstorePort.put(c, port);
+    }
 
-        int base = rrCounter.getAndIncrement();
-        ports.sort(Comparator
-                .comparingInt((Integer p) -> counts.getOrDefault(p, 0))
-                .thenComparingInt(p -> (p + base) % ports.size()));
+    public ArrayList<Integer> selectLeastLoadedDstores() {
+        List<Integer> ports = index.selectLeastLoaded(replicationFactor);
         if (ports.size() < replicationFactor)
             throw new IllegalStateException("Not enough Dstores");
-        return new ArrayList<>(ports.subList(0, replicationFactor));
+        return new ArrayList<>(ports);
     }
 
+    /** As above, taking Dstores from preferred first (e.g. those that already hold the content). */
+    public ArrayList<Integer> selectLeastLoadedDstores(List<Integer> preferred) {
+        ArrayList<Integer> ports = new ArrayList<>(preferred.subList(0, Math.min(preferred.size(), replicationFactor)));
+        ports.addAll(index.selectLeastLoaded(replicationFactor - ports.size(), ports));
+        if (ports.size() < replicationFactor)
+            throw new IllegalStateException("Not enough Dstores");
+        return ports;
+    }
 
+    public void countStoreLinks(int n) {
+        storeLinks.addAndGet(n);
+    }
 
+    public void countCorruptReplica() {
+        corruptReplicas.incrementAndGet();
+    }
 
+    public void countChecksumMismatch() {
+        checksumMismatches.incrementAndGet();
+    }
 
+    public void countBatch(int files) {
+        batches.incrementAndGet();
+        batchedFiles.addAndGet(files);
+    }
 
-
-
-    public void scheduleStoreTimeout(String filename) {
-        CountDownLatch latch = pendingLatches.get(filename);
-        scheduler.schedule(() -> {
-            if (latch != null && latch.getCount() > 0) {
-                onStoreTimeout(filename);       // spec: send ERROR_TIMEOUT
-            }
-        }, timeout, TimeUnit.MILLISECONDS);
+    /** n Dstores for the shards of one erasure-coded file, each on a different one. */
+    public List<Integer> selectDistinctDstores(int n) {
+        List<Integer> ports = index.selectLeastLoaded(n);
+        if (ports.size() < n)
+            throw new IllegalStateException("Not enough Dstores");
+        return ports;
     }
 
-    public CountDownLatch initStoreTracking(String filename,
+    public PendingRequest initStoreTracking(String filename,
                                             int expectedAcks,
-                                            TCPSender client) {
-        CountDownLatch latch = new CountDownLatch(expectedAcks);
-        pendingLatches.put(filename, latch);
-        pendingClients.put(filename, client);
-        return latch;
+                                            Connection client) {
+        return initStoreTracking(filename, List.of(), expectedAcks, client);
     }
 
+    /** As above for a chunked file; acks name the chunks, so each chunk finds the request too. */
+    public PendingRequest initStoreTracking(String filename,
+                                            List<String> chunks,
+                                            int expectedAcks,
+                                            Connection client) {
+        return trackStore(new PendingRequest(filename, chunks, expectedAcks, client.replyTo()));
+    }
 
-    public void trackLoadRequest(String filename, Socket client, List<Integer> ports) {
-        loadCandidates.put(client.getRemoteSocketAddress() + "|" + filename, new ArrayList<>(ports));
+    /** As above for the file in slot of a batch. */
+    public PendingRequest initStoreTracking(String filename, int expectedAcks, BatchRequest batch, int slot) {
+        return trackStore(new PendingRequest(filename, List.of(), expectedAcks, batch, slot));
     }
-    public int nextLoadPort(String filename, Socket client) {
-        String key = client.getRemoteSocketAddress() + "|" + filename;
-        List<Integer> ports = loadCandidates.getOrDefault(key, List.of());
-        if (ports.isEmpty()) return -1;
-        // rotate list: drop the one just tried
-        int tried = ports.remove(0);
-        System.out.println("The remaining ports are: " + ports);
-        if (ports.isEmpty()) return -1;
-        return ports.get(0);
+
+    private PendingRequest trackStore(PendingRequest request) {
+        pendingStores.put(request.getFilename(), request);
+        for (String chunk : request.getChunks()) pendingStores.put(chunk, request);
+        return request;
     }
-    public void clearLoadRequest(String filename, Socket client) {
-        loadCandidates.remove(client.getRemoteSocketAddress() + "|" + filename);
+
+    public void scheduleStoreTimeout(PendingRequest request) {
+        scheduler.schedule(() -> onStoreTimeout(request), timeout, TimeUnit.MILLISECONDS);
     }
 
+    /** One timeout for every file of a batch, from the last ack of any of them. */
+    public void scheduleStoreTimeout(BatchRequest batch, List<PendingRequest> requests) {
+        scheduleBatchTimeout(batch, () -> requests.forEach(this::onStoreTimeout));
+    }
 
+    private void scheduleBatchTimeout(BatchRequest batch, Runnable expire) {
+        if (batch.isSettled()) return;
+        long wait = timeout - batch.idleMillis();
+        if (wait <= 0) expire.run();
+        else scheduler.schedule(() -> scheduleBatchTimeout(batch, expire), wait, TimeUnit.MILLISECONDS);
+    }
 
-    public void onStoreSuccess(String filename) {
-        pendingLatches.remove(filename);
-        TCPSender client = pendingClients.remove(filename);
+    public PendingRequest getPendingStore(String filename) {
+        return pendingStores.get(filename);
+    }
 
-        synchronized (index) {
-            index.getFileInfo(filename).setFileState(Index.FileState.STORE_COMPLETE);
+    public void onStoreSuccess(PendingRequest request) {
+        if (!request.finish()) return;
+        String filename = request.getFilename();
+        pendingStores.remove(filename, request);
+        for (String chunk : request.getChunks()) pendingStores.remove(chunk, request);
+
+        // chunks first, so the file is only listed once all of it is there
+        for (String chunk : request.getChunks()) {
+            if (!index.completeStore(chunk)) {
+                System.err.println("⚠ STORE of " + filename + " lost " + chunk + " before completion");
+                abortChunkedStore(request);
+                request.fail(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                return;
+            }
+        }
+        if (!index.completeStore(filename)) {
+            // every replica vanished with its Dstore while we waited
+            System.err.println("⚠ STORE of " + filename + " lost before completion");
+            request.fail(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
         }
-        if (client != null) client.sendOneWay(Protocol.STORE_COMPLETE_TOKEN);
-        System.out.println("→ STORE_COMPLETE for " + filename);
+        // acknowledge only once the completion is in the index log
+        index.durable().whenCompleteAsync((v, e) -> {
+            if (e != null) {
+                System.err.println("⚠ STORE of " + filename + " not logged: " + e.getMessage());
+                request.fail(Protocol.ERROR_TIMEOUT_TOKEN);
+                return;
+            }
+            request.complete(Protocol.STORE_COMPLETE_TOKEN);
+            System.out.println("→ STORE_COMPLETE for " + filename);
+        }, replies);
     }
 
-    public void onStoreTimeout(String filename) {
-        CountDownLatch latch = pendingLatches.remove(filename);
-        if (latch != null && latch.getCount() > 0) {
-            System.err.println("⚠ STORE failed due to timeout for file: " + filename);
-            index.removeFileInfo(filename);
-            TCPSender client = pendingClients.remove(filename);
+    public void onStoreTimeout(PendingRequest request) {
+        if (!request.finish()) return;
+        String filename = request.getFilename();
+        pendingStores.remove(filename, request);
+        for (String chunk : request.getChunks()) pendingStores.remove(chunk, request);
+        System.err.println("⚠ STORE failed due to timeout for file: " + filename
+                + " (missing acks=" + request.getRemainingAcks() + ")");
+        abortChunkedStore(request);
+        request.fail(Protocol.ERROR_TIMEOUT_TOKEN);
+    }
 
+    private void abortChunkedStore(PendingRequest request) {
+        for (String chunk : request.getChunks()) {
+            if (index.abortStore(chunk)) continue;
+            // a chunk that already completed has to go the same way, copies and all
+            FileInfo info = index.getFileInfo(chunk);
+            if (info == null) continue;
+            index.removeFileInfo(chunk);
+            for (int port : info.getdStorePorts()) {
+                Connection ds = dstorePortstoSenders.get(port);
+                if (ds != null) ds.send(Protocol.REMOVE_TOKEN, chunk);
+            }
         }
+        index.abortStore(request.getFilename());
     }
 
+    /**
+     * Placement for a chunked file: chunk i gets R consecutive Dstores from
+     * the least-loaded ordering, starting R places further along than chunk
+     * i-1, so chunks are striped over every live Dstore.
+     */
+    public List<List<Integer>> selectStripedDstores(int chunks) {
+        List<Integer> order = index.selectLeastLoaded(dstorePortstoSenders.size());
+        if (order.size() < replicationFactor)
+            throw new IllegalStateException("Not enough Dstores");
+        List<List<Integer>> placement = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            List<Integer> ports = new ArrayList<>(replicationFactor);
+            for (int j = 0; j < replicationFactor; j++) {
+                ports.add(order.get((i * replicationFactor + j) % order.size()));
+            }
+            placement.add(ports);
+        }
+        return placement;
+    }
 
-    public CountDownLatch getPendingLatches(String filename) {
-        return pendingLatches.get(filename);
 
+    /**
+     * Remembers the replicas of a LOAD so RELOAD can walk through them.
+     * Keyed by the request id as well as the filename: a pipelining client
+     * repeats the LOAD's id on its RELOAD (text clients always use 0).
+     */
+    public void trackLoadRequest(String filename, Connection client, List<Integer> ports) {
+        Map<String,List<Integer>> loads = loadCandidates.computeIfAbsent(client, c ->
+                Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, false) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String,List<Integer>> eldest) {
+                        return size() > MAX_TRACKED_LOADS;
+                    }
+                }));
+        loads.put(loadKey(filename, client), new ArrayList<>(ports));
+    }
+    public int nextLoadPort(String filename, Connection client) {
+        Map<String,List<Integer>> loads = loadCandidates.get(client);
+        if (loads == null) return -1;
+        synchronized (loads) {
+            List<Integer> ports = loads.get(loadKey(filename, client));
+            if (ports == null || ports.isEmpty()) return -1;
+            // rotate list: drop the one just tried
+            replicaSelector.onFailed(ports.remove(0), filename);
+            System.out.println("The remaining ports are: " + ports);
+            if (ports.isEmpty()) return -1;
+            replicaSelector.onAssigned(ports.get(0), filename);
+            return ports.get(0);
+        }
+    }
+    public void clearLoadRequest(String filename, Connection client) {
+        Map<String,List<Integer>> loads = loadCandidates.get(client);
+        if (loads != null) loads.remove(loadKey(filename, client));
     }
 
-    public void onDisconnect(Socket s) {
-        Integer port = socketToDstorePort.remove(s);
-        if (port == null) return;
-
-        dstorePortstoSenders.remove(port);
+    private static String loadKey(String filename, Connection client) {
+        return client.getRequestId() + "|" + filename;
+    }
 
-        // Purge the port from every FileInfo
-        for (Map.Entry<String,FileInfo> entry : index.getAllEntries()) {
-            FileInfo fi = entry.getValue();
-            fi.removeDstorePort(port);
 
-            // If all replicas are gone the file is effectively lost
-            if (fi.getdStorePorts().isEmpty()) {
-                index.removeFileInfo(entry.getKey());
-            }
-        }
+    public void onDisconnect(Connection c) {
+        loadCandidates.remove(c);
+        Integer port = connectionToDstorePort.remove(c);
+        if (port == null) return;
 
-        System.err.println("⚠ D-store " + port + " disconnected – removed");
+        dstorePortstoSenders.remove(port);
+        Set<String> hosted = Set.copyOf(index.getFilesOn(port));
+        List<String> lost = index.removeDstore(port);
+        rebalancer.onDstoreLeft(port);
+        replicaSelector.onDstoreLeft(port);
+        // every surviving file it hosted is now a replica short
+        rereplicator.enqueue(hosted);
+        // and shards kept only there have to be rebuilt from the others
+        shardRepairer.enqueue(lost);
+
+        System.err.println("⚠ D-store " + port + " disconnected – removed"
+                + (lost.isEmpty() ? "" : ", lost last replica of " + lost.size() + " file(s)"));
     }
 
-    public void scheduleRemoveTimeout(String filename) {
-                CountDownLatch latch = pendingRemoveLatches.get(filename);
-                scheduler.schedule(() -> {
-                       if (latch != null && latch.getCount() > 0) {
-                                onRemoveTimeout(filename);    // spec: leave entry as-is
-                            }
-                    }, timeout, TimeUnit.MILLISECONDS);
+    public PendingRequest initRemoveTracking(String filename,
+                                             int expectedAcks,
+                                             Connection client) {
+        return initRemoveTracking(filename, List.of(), expectedAcks, client);
     }
 
-    public void onRemoveSuccess(String filename) {
-        pendingRemoveLatches.remove(filename);
-        TCPSender client = pendingRemoveClients.remove(filename);
-
-        synchronized (index) {
-            index.removeFileInfo(filename);
-        }
-        if (client != null) client.sendOneWay(Protocol.REMOVE_COMPLETE_TOKEN);
-        System.out.println("→ REMOVE_COMPLETE for " + filename);
+    public PendingRequest initRemoveTracking(String filename,
+                                             List<String> chunks,
+                                             int expectedAcks,
+                                             Connection client) {
+        return trackRemove(new PendingRequest(filename, chunks, expectedAcks, client.replyTo()));
     }
 
-    public CountDownLatch getPendingRemoveLatches(String filename) {
-        return pendingRemoveLatches.get(filename);
+    /** As above for the file in slot of a batch. */
+    public PendingRequest initRemoveTracking(String filename, List<String> chunks, int expectedAcks,
+                                             BatchRequest batch, int slot) {
+        return trackRemove(new PendingRequest(filename, chunks, expectedAcks, batch, slot));
     }
 
-    public void onRemoveTimeout(String filename) {
-        CountDownLatch latch = pendingRemoveLatches.remove(filename);
-        if (latch != null && latch.getCount() > 0) {
-            System.err.println("⚠ REMOVE failed due to timeout for file: " + filename);
-            pendingRemoveClients.remove(filename);
+    private PendingRequest trackRemove(PendingRequest request) {
+        pendingRemoves.put(request.getFilename(), request);
+        for (String chunk : request.getChunks()) pendingRemoves.put(chunk, request);
+        return request;
+    }
 
-        }
+    public void scheduleRemoveTimeout(PendingRequest request) {
+        scheduler.schedule(() -> onRemoveTimeout(request), timeout, TimeUnit.MILLISECONDS);
     }
 
-    public CountDownLatch initRemoveTracking(String filename,
-                                             int expectedAcks,
-                                             TCPSender client) {
-               CountDownLatch latch = new CountDownLatch(expectedAcks);
-                pendingRemoveLatches.put(filename, latch);
-                pendingRemoveClients.put(filename, client);
-                return latch;
+    /** One timeout for every file of a batch, from the last ack of any of them. */
+    public void scheduleRemoveTimeout(BatchRequest batch, List<PendingRequest> requests) {
+        scheduleBatchTimeout(batch, () -> requests.forEach(this::onRemoveTimeout));
     }
 
+    public PendingRequest getPendingRemove(String filename) {
+        return pendingRemoves.get(filename);
+    }
 
+    public void onRemoveSuccess(PendingRequest request) {
+        if (!request.finish()) return;
+        String filename = request.getFilename();
+        pendingRemoves.remove(filename, request);
+        for (String chunk : request.getChunks()) {
+            pendingRemoves.remove(chunk, request);
+            index.completeRemove(chunk);
+        }
 
+        index.completeRemove(filename);
+        index.durable().whenCompleteAsync((v, e) -> {
+            if (e != null) {
+                System.err.println("⚠ REMOVE of " + filename + " not logged: " + e.getMessage());
+                request.fail(Protocol.ERROR_TIMEOUT_TOKEN);
+                return;
+            }
+            request.complete(Protocol.REMOVE_COMPLETE_TOKEN);
+            System.out.println("→ REMOVE_COMPLETE for " + filename);
+        }, replies);
+    }
 
+    public void onRemoveTimeout(PendingRequest request) {
+        if (!request.finish()) return;
+        // spec: leave the index entry as-is
+        pendingRemoves.remove(request.getFilename(), request);
+        for (String chunk : request.getChunks()) pendingRemoves.remove(chunk, request);
+        System.err.println("⚠ REMOVE failed due to timeout for file: " + request.getFilename());
+        request.fail(Protocol.ERROR_TIMEOUT_TOKEN);
+    }
 }
@@ -16,10 +16,24 @@ public class ControllerHandlerFactory {
         handlers.put(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN,
                new RemoveAckHandler(ctrl));
         handlers.put(Protocol.LIST_TOKEN,             new ListHandler(ctrl));
-//        handlers.put(Protocol.REBALANCE_COMPLETE_TOKEN,
-//                new RebalanceCompleteHandler(ctrl));
+        handlers.put(Protocol.LIST_PAGE_TOKEN,        new ListPageHandler(ctrl));
+        handlers.put(Protocol.STORE_CHUNKED_TOKEN,    new StoreChunkedHandler(ctrl));
+        handlers.put(Protocol.LOAD_CHUNKED_TOKEN,     new LoadChunkedHandler(ctrl));
+        handlers.put(Protocol.STORE_EC_TOKEN,         new StoreEcHandler(ctrl));
+        handlers.put(Protocol.LOAD_EC_TOKEN,          new LoadEcHandler(ctrl));
+        handlers.put(Protocol.REBUILD_SHARD_TOKEN,    new RebuildShardHandler(ctrl));
+        handlers.put(Protocol.LOAD_DONE_TOKEN,        new LoadDoneHandler(ctrl));
+        handlers.put(Protocol.REBALANCE_COMPLETE_TOKEN,
+                new RebalanceCompleteHandler(ctrl));
+        handlers.put(Protocol.DIGEST_TOKEN,           new DigestHandler(ctrl));
+        handlers.put(Protocol.DIGEST_BUCKETS_TOKEN,   new DigestBucketsHandler(ctrl));
+        handlers.put(Protocol.CORRUPT_TOKEN,          new CorruptHandler(ctrl));
+        handlers.put(Protocol.STORE_BATCH_TOKEN,      new StoreBatchHandler(ctrl));
+        handlers.put(Protocol.LOAD_BATCH_TOKEN,       new LoadBatchHandler(ctrl));
+        handlers.put(Protocol.REMOVE_BATCH_TOKEN,     new RemoveBatchHandler(ctrl));
 
         handlers.put(Protocol.RELOAD_TOKEN, new ReloadHandler(ctrl));
+        handlers.put(Protocol.STATS_TOKEN,  new StatsHandler(ctrl::stats));
     }
 
     public CommandHandler get(String command) {
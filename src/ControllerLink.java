@@ -0,0 +1,23 @@
+/**
+ * A Dstore's link to the Controller. Handlers send through this rather than
+ * holding on to the Connection, so that when the Controller restarts the
+ * Dstore can swap in a new connection (see Dstore#onDisconnect) and they
+ * carry on. A message sent while the link is down is dropped, as it would
+ * be on any broken connection.
+ */
+public class ControllerLink {
+    private volatile Connection connection;
+
+    public ControllerLink(Connection connection) {
+        this.connection = connection;
+    }
+
+    /** Fire-and-forget, as {@link Connection#send}. */
+    public boolean send(String token, Object... fields) {
+        return connection.send(token, fields);
+    }
+
+    Connection get() { return connection; }
+
+    void set(Connection connection) { this.connection = connection; }
+}
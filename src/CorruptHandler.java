@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * CORRUPT filename, from a Dstore whose {@link Scrubber} found its copy no
+ * longer matches its checksum. As when a join finds a replica missing (see
+ * {@link Reconciler}), the replica is dropped from the Index and the file
+ * queued to be copied again from a healthy holder (a shard is rebuilt from
+ * its siblings), and the Dstore is told to REMOVE the bad copy. The only
+ * replica of a file is kept, since there is nothing to restore it from.
+ */
+public class CorruptHandler implements CommandHandler {
+    private final Controller ctrl;
+
+    public CorruptHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // parts = ["CORRUPT", "filename"]
+        if (parts.length != 2) {
+            System.err.println("Malformed CORRUPT message");
+            return;
+        }
+        String filename = parts[1];
+        Integer port = ctrl.getConnectionToPort().get(dstore);
+        if (port == null) {
+            System.err.println("CORRUPT from unknown connection");
+            return;
+        }
+        Index index = ctrl.getIndex();
+        FileInfo info = index.getFileInfo(filename);
+        if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE
+                || !info.getdStorePorts().contains(port)) {
+            return;
+        }
+        System.err.println("⚠ " + port + " reports " + filename + " corrupt");
+        ctrl.countCorruptReplica();
+        if (ctrl.isShard(filename)) {
+            index.removeFileInfo(filename);
+            dstore.send(Protocol.REMOVE_TOKEN, filename);
+            ctrl.getShardRepairer().enqueue(List.of(filename));
+            return;
+        }
+        if (!index.removeReplica(filename, port)) {
+            System.err.println("⚠ Only replica of " + filename + " is corrupt on " + port + "; keeping it");
+            return;
+        }
+        dstore.send(Protocol.REMOVE_TOKEN, filename);
+        ctrl.getRereplicator().enqueue(List.of(filename));
+    }
+}
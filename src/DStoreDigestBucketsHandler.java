@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DIGEST_BUCKETS b… → DIGEST_BUCKETS (b n (filename size crc)×n)…, the
+ * contents of the requested buckets, each file with the CRC32C recorded
+ * when it was written ("-" if none is). Buckets that would push the reply
+ * past half a frame are left out; the Controller asks for them again.
+ */
+public class DStoreDigestBucketsHandler implements CommandHandler {
+    private static final int MAX_REPLY_BYTES = BinaryProtocol.MAX_FRAME_LENGTH / 2;
+    private static final int NUMBER_BYTES = 9;
+    private static final int CRC_BYTES = 3 + 8;
+
+    private final Inventory inventory;
+    private final Checksums checksums;
+    private final PackStore pack;
+
+    public DStoreDigestBucketsHandler(Inventory inventory, Checksums checksums, PackStore pack) {
+        this.inventory = inventory;
+        this.checksums = checksums;
+        this.pack      = pack;
+    }
+
+    @Override
+    public void handle(String[] parts, Connection connection) throws IOException {
+        List<Object> fields = new ArrayList<>();
+        int bytes = 0;
+        for (int i = 1; i < parts.length; i++) {
+            int b = Integer.parseInt(parts[i]);
+            List<Object> bucket = new ArrayList<>();
+            int bucketBytes = 2 * NUMBER_BYTES;
+            for (Map.Entry<String, Long> e : inventory.bucket(b).entrySet()) {
+                bucket.add(e.getKey());
+                bucket.add(e.getValue());
+                bucket.add(crcOf(e.getKey()));
+                bucketBytes += 3 + e.getKey().getBytes(StandardCharsets.UTF_8).length + NUMBER_BYTES + CRC_BYTES;
+            }
+            // always send at least one bucket so the exchange makes progress
+            if (!fields.isEmpty() && bytes + bucketBytes > MAX_REPLY_BYTES) break;
+            fields.add(b);
+            fields.add(bucket.size() / 3);
+            fields.addAll(bucket);
+            bytes += bucketBytes;
+        }
+        connection.reply(Protocol.DIGEST_BUCKETS_TOKEN, fields.toArray());
+    }
+
+    private String crcOf(String filename) {
+        Integer packed = pack.crcOf(filename);
+        if (packed != null) return Checksums.hex(packed);
+        Checksums.Entry entry = checksums.get(filename);
+        return entry == null ? "-" : Checksums.hex(entry.crc);
+    }
+}
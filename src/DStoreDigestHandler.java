@@ -0,0 +1,27 @@
+import java.io.IOException;
+
+/**
+ * DIGEST expectedRoot → DIGEST (nothing more) when this Dstore's inventory
+ * matches what the Controller expects, otherwise DIGEST followed by every
+ * bucket sum so the Controller can tell which buckets differ.
+ */
+public class DStoreDigestHandler implements CommandHandler {
+    private final Inventory inventory;
+
+    public DStoreDigestHandler(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    @Override
+    public void handle(String[] parts, Connection connection) throws IOException {
+        // parts = ["DIGEST", "<expectedRoot>"]
+        long[] buckets = inventory.getDigest().buckets();
+        if (InventoryDigest.root(buckets) == Long.parseLong(parts[1])) {
+            connection.reply(Protocol.DIGEST_TOKEN);
+            return;
+        }
+        Object[] fields = new Object[buckets.length];
+        for (int i = 0; i < buckets.length; i++) fields[i] = buckets[i];
+        connection.reply(Protocol.DIGEST_TOKEN, fields);
+    }
+}
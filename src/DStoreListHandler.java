@@ -1,32 +1,23 @@
-import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DStoreListHandler implements CommandHandler {
-    private TCPSender csender;
-    private String folder;
-    public DStoreListHandler(String fileFolder , TCPSender controllerSender) {
+    private ControllerLink csender;
+    private Inventory inventory;
+    public DStoreListHandler(Inventory inventory , ControllerLink controllerSender) {
         this.csender = controllerSender;
-        this.folder = fileFolder;
+        this.inventory = inventory;
 
     }
     @Override
-    public void handle(String[] command, Socket socket) throws IOException {
-        File folderFile = new File(folder);
-        File[] files = folderFile.listFiles();
-
-        if (files != null) {
-            StringBuilder sb = new StringBuilder("LIST");
-            for (File file : files) {
-                if (file.isFile()) {
-                    sb.append(" ").append(file.getName());
-                }
-            }
-            String listCommand = sb.toString();
-            csender.sendOneWay(listCommand);  // <-- Send back to controller
-        } else {
-            csender.sendOneWay("LIST");  // Send empty LIST if folder invalid
+    public void handle(String[] command, Connection connection) throws IOException {
+        // from the in-memory inventory, not a listing of the folder
+        List<String> names = new ArrayList<>(inventory.size());
+        for (int b = 0; b < InventoryDigest.BUCKETS; b++) {
+            names.addAll(inventory.bucket(b).keySet());
         }
+        csender.send(Protocol.LIST_TOKEN, names.toArray());  // <-- Send back to controller
     }
 
 }
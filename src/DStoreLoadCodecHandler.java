@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * LOAD_CODEC filename codec[,codec…]
+ * LOAD_DATA for clients that can decode: answers LOAD_CODEC codec length,
+ * then sends length bytes of the body in that codec and closes the
+ * connection. A file kept
+ * deflated goes to a client that accepts deflate exactly as it is stored,
+ * with no re-encoding; otherwise the reply is identity and the plain bytes
+ * follow, as LOAD_DATA would send them. Reported to the Controller with
+ * LOAD_DONE like LOAD_DATA.
+ */
+public class DStoreLoadCodecHandler implements CommandHandler {
+    private final ControllerLink controllerSender;
+    private final Compression compression;
+    private final DStoreLoadDataHandler plain;
+
+    public DStoreLoadCodecHandler(ControllerLink controllerSender, Compression compression, DStoreLoadDataHandler plain) {
+        this.controllerSender = controllerSender;
+        this.compression      = compression;
+        this.plain            = plain;
+    }
+
+    @Override
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["LOAD_CODEC", "filename", "codec,codec,…"]
+        if (parts.length != 3) {
+            System.err.println("Malformed LOAD_CODEC message: " + Arrays.toString(parts));
+            client.close();
+            return;
+        }
+        String filename = parts[1];
+        List<String> accepted = Arrays.asList(parts[2].split(","));
+        long start = System.nanoTime();
+        boolean ok;
+        long sent;
+        long stored = compression.storedLength(filename);
+        if (stored >= 0 && accepted.contains(Compression.DEFLATE)) {
+            client.reply(Protocol.LOAD_CODEC_TOKEN, Compression.DEFLATE, stored);
+            ok = client.sendFile(compression.dir(), filename, Compression.HEADER_SIZE, Long.MAX_VALUE, null);
+            sent = stored;
+            if (ok) compression.countEncodedLoad();
+        } else {
+            long size = plain.size(filename);
+            if (size < 0) {
+                System.err.println("File not found: " + filename);
+                client.close();
+                return;
+            }
+            client.reply(Protocol.LOAD_CODEC_TOKEN, Compression.IDENTITY, size);
+            ok = plain.send(client, filename, 0, Long.MAX_VALUE);
+            sent = size;
+        }
+        controllerSender.send(Protocol.LOAD_DONE_TOKEN, filename, (System.nanoTime() - start) / 1000, ok ? sent : 0,
+                              ok ? 1 : 0, 1);
+        if (!ok) {
+            System.err.println("Failed to send file: " + filename);
+            client.close();
+        }
+    }
+}
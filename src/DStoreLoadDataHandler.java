@@ -1,21 +1,108 @@
+import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 
+/**
+ * LOAD_DATA filename [offset length]
+ * Streams the file's raw bytes and closes the connection; with a range, only
+ * bytes [offset, offset+length), cut short at the end of the file, so a
+ * client can fetch disjoint parts from several replicas at once or pick up
+ * an interrupted download where it stopped. Each transfer is reported to
+ * the Controller as LOAD_DONE filename micros bytes ok whole, for its
+ * {@link ReplicaSelector}; whole is 0 for a range.
+ * Small hot files come out of the {@link ReadCache} when there is one, and
+ * files kept deflated are inflated on the way out (see {@link Compression}).
+ * Packed files are sent straight from their segment ({@link PackStore}).
+ */
 public class DStoreLoadDataHandler implements CommandHandler {
     private final String fileFolder;
+    private final ControllerLink controllerSender;
+    private final ReadCache cache;
+    private final Compression compression;
+    private final PackStore pack;
 
-    public DStoreLoadDataHandler(String fileFolder) {
+    public DStoreLoadDataHandler(String fileFolder, ControllerLink controllerSender, ReadCache cache,
+                                 Compression compression, PackStore pack) {
         this.fileFolder = fileFolder;
+        this.controllerSender = controllerSender;
+        this.cache = cache;
+        this.compression = compression;
+        this.pack = pack;
     }
 
     @Override
-    public void handle(String[] parts, Socket clientSocket) throws IOException {
-        // parts = ["LOAD_DATA", "filename"]
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["LOAD_DATA", "filename", "<offset>"?, "<length>"?]
         String filename = parts[1];
-        TCPSender sender = new TCPSender(clientSocket);
-        if (!sender.sendFile(fileFolder, filename)) {
+        long offset = 0;
+        long length = Long.MAX_VALUE;
+        if (parts.length == 4) {
+            try {
+                offset = Long.parseLong(parts[2]);
+                length = Long.parseLong(parts[3]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid range in LOAD_DATA: " + parts[2] + " " + parts[3]);
+                client.close();
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        boolean ok = send(client, filename, offset, length);
+        long bytes = ok ? Math.max(0, Math.min(length, size(filename) - offset)) : 0;
+        controllerSender.send(Protocol.LOAD_DONE_TOKEN, filename, (System.nanoTime() - start) / 1000, bytes, ok ? 1 : 0,
+                              parts.length == 4 ? 0 : 1);
+        if (!ok) {
             System.err.println("Failed to send file: " + filename);
-            clientSocket.close();
+            client.close();
+        }
+    }
+
+    /** Plain size of filename, or -1 if it is not here. */
+    long size(String filename) {
+        long size = compression.size(filename);
+        if (size < 0) size = pack.size(filename);
+        if (size >= 0) return size;
+        File file = new File(fileFolder, filename);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    /** The plain bytes of filename in range: inflated, from its segment, from the cache, or straight off disk. */
+    boolean send(Connection client, String filename, long offset, long length) {
+        if (compression.contains(filename)) {
+            try {
+                return client.sendStream(compression.open(filename), offset, length);
+            } catch (IOException e) {
+                System.err.println("Cannot read deflated " + filename + ": " + e.getMessage());
+                return false;
+            }
+        }
+        try (PackStore.Region packed = pack.open(filename)) {
+            if (packed != null) return sendPacked(client, packed, filename, offset, length);
+        }
+        ByteBuffer cached = cache == null ? null : cache.get(fileFolder, filename);
+        return cached == null ? client.sendFile(fileFolder, filename, offset, length, null)
+                              : sendCached(client, cached, filename, offset, length);
+    }
+
+    private static boolean sendPacked(Connection client, PackStore.Region region, String filename, long offset,
+                                      long length) {
+        if (offset < 0 || length < 0 || offset > region.size()) {
+            System.err.println("Range " + offset + "+" + length + " outside " + filename + " (" + region.size() + " bytes)");
+            client.close();
+            return false;
+        }
+        return client.sendRegion(region.channel(), region.position() + offset,
+                                 Math.min(length, region.size() - offset), null);
+    }
+
+    private static boolean sendCached(Connection client, ByteBuffer data, String filename, long offset, long length) {
+        if (offset < 0 || length < 0 || offset > data.limit()) {
+            System.err.println("Range " + offset + "+" + length + " outside " + filename + " (" + data.limit() + " bytes)");
+            client.close();
+            return false;
         }
+        data.position((int) offset);
+        data.limit((int) Math.min(data.limit(), offset + length));
+        return client.sendBuffer(data);
     }
 }
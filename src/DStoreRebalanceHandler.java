@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Carries out a REBALANCE from the Controller:
+ *   REBALANCE n (filename k port×k)×n m filename×m
+ * Each listed file is pushed to each listed peer with REBALANCE_STORE, at most
+ * `parallelism` transfers at a time and all sharing one Throttle; a copy
+ * counts only once the peer has ACKed it as stored. Then the m files are
+ * deleted, except any whose copy failed, and REBALANCE_COMPLETE lists the
+ * files that failed (copy or delete). It goes under the REBALANCE's request
+ * id so the Controller can tell jobs apart and leave those files as they
+ * were in its Index.
+ *
+ * The job runs off the Controller link's reader so REMOVEs keep flowing.
+ * -Ddstore.rebalanceParallelism (default 4) and
+ * -Ddstore.rebalanceBandwidth in bytes/s (default 0, unlimited) tune it.
+ */
+public class DStoreRebalanceHandler implements CommandHandler {
+    private final String fileFolder;
+    private final int timeout;
+    private final Inventory inventory;
+    private final Compression compression;
+    private final PackStore pack;
+    private final Semaphore transfers;
+    private final Throttle throttle;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public DStoreRebalanceHandler(String fileFolder, int timeout, Inventory inventory, Compression compression,
+                                  PackStore pack) {
+        this.fileFolder       = fileFolder;
+        this.timeout          = timeout;
+        this.inventory        = inventory;
+        this.compression      = compression;
+        this.pack             = pack;
+        this.transfers        = new Semaphore(Math.max(1, Integer.getInteger("dstore.rebalanceParallelism", 4)));
+        this.throttle         = new Throttle(Long.getLong("dstore.rebalanceBandwidth", 0L));
+    }
+
+    @Override
+    public void handle(String[] parts, Connection connection) throws IOException {
+        Map<String, List<Integer>> sends = new LinkedHashMap<>();
+        List<String> removes = new ArrayList<>();
+        try {
+            int i = 1;
+            int n = Integer.parseInt(parts[i++]);
+            for (int s = 0; s < n; s++) {
+                String filename = parts[i++];
+                int k = Integer.parseInt(parts[i++]);
+                List<Integer> ports = new ArrayList<>(k);
+                for (int p = 0; p < k; p++) ports.add(Integer.parseInt(parts[i++]));
+                sends.put(filename, ports);
+            }
+            int m = Integer.parseInt(parts[i++]);
+            for (int r = 0; r < m; r++) removes.add(parts[i++]);
+        } catch (RuntimeException e) {
+            System.err.println("Malformed REBALANCE message: " + e);
+            return;
+        }
+        Connection.ReplyTo controller = connection.replyTo();
+        executor.execute(() -> run(sends, removes, controller));
+    }
+
+    private void run(Map<String, List<Integer>> sends, List<String> removes, Connection.ReplyTo controller) {
+        Map<String, List<Future<Boolean>>> results = new LinkedHashMap<>();
+        int sent = 0;
+        for (Map.Entry<String, List<Integer>> e : sends.entrySet()) {
+            for (int port : e.getValue()) {
+                results.computeIfAbsent(e.getKey(), f -> new ArrayList<>())
+                       .add(executor.submit(() -> push(e.getKey(), port)));
+                sent++;
+            }
+        }
+        Set<String> failed = new LinkedHashSet<>();
+        for (Map.Entry<String, List<Future<Boolean>>> e : results.entrySet()) {
+            for (Future<Boolean> f : e.getValue()) {
+                boolean ok;
+                try {
+                    ok = f.get();
+                } catch (Exception ex) {
+                    ok = false;
+                }
+                if (!ok) failed.add(e.getKey());
+            }
+        }
+        if (!failed.isEmpty()) {
+            System.err.println("⚠ Rebalance transfers failed, keeping " + failed);
+        }
+
+        int removed = 0;
+        for (String filename : removes) {
+            if (failed.contains(filename)) continue;
+            File f = new File(fileFolder, filename);
+            if (!compression.delete(filename) && !pack.delete(filename) && !f.delete() && f.exists()) {
+                System.err.println("Could not remove " + filename + " during rebalance");
+                failed.add(filename);
+            } else {
+                inventory.remove(filename);
+                removed++;
+            }
+        }
+        controller.send(Protocol.REBALANCE_COMPLETE_TOKEN, failed.toArray());
+        System.out.println("Rebalance done: sent " + (sent - failed.size()) + "/" + sent + ", removed " + removed);
+    }
+
+    /**
+     * REBALANCE_STORE filename filesize → ACK → raw bytes → ACK; a file kept
+     * deflated goes as REBALANCE_STORE filename filesize deflate length and
+     * its stored bytes, so the peer keeps it deflated too.
+     */
+    private boolean push(String filename, int port) {
+        File file = new File(fileFolder, filename);
+        long deflated = compression.storedLength(filename);
+        PackStore.Region packed = deflated < 0 ? pack.open(filename) : null;
+        if (deflated < 0 && packed == null && !file.isFile()) {
+            System.err.println("Rebalance source missing: " + filename);
+            return false;
+        }
+        transfers.acquireUninterruptibly();
+        Connection peer = null;
+        try (packed) {
+            peer = Connection.openBinary("localhost", port);
+            peer.getSocket().setSoTimeout(timeout);
+            if (deflated >= 0) {
+                peer.send(Protocol.REBALANCE_STORE_TOKEN, filename, compression.size(filename),
+                          Compression.DEFLATE, deflated);
+            } else if (packed != null) {
+                peer.send(Protocol.REBALANCE_STORE_TOKEN, filename, packed.size());
+            } else {
+                peer.send(Protocol.REBALANCE_STORE_TOKEN, filename, file.length());
+            }
+            if (!acked(peer, port, filename)) return false;
+            boolean sent;
+            if (deflated >= 0) {
+                sent = peer.sendFile(compression.dir(), filename, Compression.HEADER_SIZE, Long.MAX_VALUE, throttle,
+                                     false);
+            } else if (packed != null) {
+                sent = peer.sendRegion(packed.channel(), packed.position(), packed.size(), throttle, false);
+            } else {
+                sent = peer.sendFile(fileFolder, filename, 0, Long.MAX_VALUE, throttle, false);
+            }
+            // written is not stored: only the peer's second ACK lets us delete our copy
+            return sent && acked(peer, port, filename);
+        } catch (IOException e) {
+            System.err.println("Rebalance transfer of " + filename + " to " + port + " failed: " + e.getMessage());
+            return false;
+        } finally {
+            if (peer != null) peer.close();
+            transfers.release();
+        }
+    }
+
+    private static boolean acked(Connection peer, int port, String filename) throws IOException {
+        String[] reply = peer.readMessage();
+        if (reply == null || !Protocol.ACK_TOKEN.equals(reply[0])) {
+            System.err.println("No ACK from " + port + " for " + filename);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * Recreates a lost shard of an erasure-coded file on this Dstore:
+ *   REBUILD_SHARD shard filesize shardSize k m port×(k+m)
+ * Reads k of the other shards from their Dstores (port -1 for those that are
+ * gone) a stripe of STRIPE bytes at a time, decodes the missing one into a
+ * temporary file, so shards of any size fit in a bounded heap, publishes it
+ * like an upload and answers
+ * REBUILD_SHARD under the request's id. Nothing is answered on failure; the
+ * Controller times out and tries again. Runs off the Controller link's reader.
+ */
+public class DStoreRebuildShardHandler implements CommandHandler {
+    private static final int STRIPE = 1 << 20;
+
+    private final String fileFolder;
+    private final Inventory inventory;
+    private final Checksums checksums;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public DStoreRebuildShardHandler(String fileFolder, Inventory inventory, Checksums checksums) {
+        this.fileFolder = fileFolder;
+        this.inventory  = inventory;
+        this.checksums  = checksums;
+    }
+
+    @Override
+    public void handle(String[] parts, Connection connection) throws IOException {
+        String shard;
+        long shardSize;
+        int k;
+        int m;
+        int[] ports;
+        try {
+            shard = parts[1];
+            shardSize = Long.parseLong(parts[3]);
+            k = Integer.parseInt(parts[4]);
+            m = Integer.parseInt(parts[5]);
+            ports = new int[k + m];
+            for (int i = 0; i < ports.length; i++) ports[i] = Integer.parseInt(parts[6 + i]);
+        } catch (RuntimeException e) {
+            System.err.println("Malformed REBUILD_SHARD message: " + Arrays.toString(parts));
+            return;
+        }
+        Connection.ReplyTo controller = connection.replyTo();
+        executor.execute(() -> run(shard, shardSize, k, m, ports, controller));
+    }
+
+    private void run(String shard, long shardSize, int k, int m, int[] ports, Connection.ReplyTo controller) {
+        int index = FileInfo.chunkIndex(shard);
+        ports[index] = -1;
+        ReedSolomon rs = new ReedSolomon(k, m);
+        CRC32C crc = new CRC32C();
+        Path tmp = null;
+        try {
+            Path tmpDir = new File(fileFolder, DStoreStoreHandler.TEMP_DIR).toPath();
+            Files.createDirectories(tmpDir);
+            tmp = Files.createTempFile(tmpDir, "rebuild-", ".part");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                ErasureClient.stream(FileInfo.parentName(shard), ports, shardSize, k, STRIPE,
+                        (shards, present, length) -> {
+                            rs.decode(shards, present);
+                            out.write(shards[index], 0, length);
+                            crc.update(shards[index], 0, length);
+                        });
+            }
+            Files.move(tmp, new File(fileFolder, shard).toPath(),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            inventory.put(shard, shardSize);
+            checksums.put(shard, (int) crc.getValue());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠ Could not rebuild " + shard + ": " + e.getMessage());
+            return;
+        } finally {
+            if (tmp != null) {
+                try { Files.deleteIfExists(tmp); } catch (IOException ignored) { }
+            }
+        }
+        controller.send(Protocol.REBUILD_SHARD_TOKEN);
+        System.out.println("Rebuilt " + shard);
+    }
+}
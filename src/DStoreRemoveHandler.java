@@ -1,29 +1,56 @@
 import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * REMOVE filename, or REMOVE_BATCH filename… from the Controller. The files
+ * removed are acked with one REMOVE_ACK listing them, and those not found
+ * with one ERROR_FILE_DOES_NOT_EXIST.
+ */
 public class DStoreRemoveHandler implements CommandHandler {
     private final String fileFolder;
-    private final TCPSender controllerSender;
+    private final ControllerLink controllerSender;
+    private final Inventory inventory;
+    private final Compression compression;
+    private final PackStore pack;
 
-    public DStoreRemoveHandler(String fileFolder, TCPSender controllerSender) {
+    public DStoreRemoveHandler(String fileFolder, ControllerLink controllerSender, Inventory inventory,
+                               Compression compression, PackStore pack) {
         this.fileFolder       = fileFolder;
         this.controllerSender = controllerSender;
+        this.inventory        = inventory;
+        this.compression      = compression;
+        this.pack             = pack;
     }
 
     @Override
-    public void handle(String[] parts, Socket socket) throws IOException {
-        // parts = ["REMOVE", "filename"]
-        String filename = parts[1];
-        File f = new File(fileFolder, filename);
+    public void handle(String[] parts, Connection connection) throws IOException {
+        // parts = ["REMOVE" | "REMOVE_BATCH", "filename"…]
+        List<String> removed = new ArrayList<>(parts.length - 1);
+        List<String> missing = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            String filename = parts[i];
+            if (remove(filename)) {
+                removed.add(filename);
+                System.out.println("Removed: " + filename);
+            } else {
+                missing.add(filename);
+                System.out.println("Remove failed/not found: " + filename);
+            }
+        }
+        if (!removed.isEmpty()) controllerSender.send(Protocol.REMOVE_ACK_TOKEN, removed.toArray());
+        if (!missing.isEmpty()) controllerSender.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, missing.toArray());
+    }
 
-        if (f.exists() && f.delete()) {
-            System.out.println("Removed: " + filename);
-            controllerSender.sendOneWay(Protocol.REMOVE_ACK_TOKEN + " " + filename);
-        } else {
-            System.out.println("Remove failed/not found: " + filename);
-            controllerSender.sendOneWay(
-                    Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
+    private boolean remove(String filename) {
+        File f = new File(fileFolder, filename);
+        boolean plain = f.exists() && f.delete();
+        boolean packed = pack.delete(filename);
+        if (compression.delete(filename) || packed || plain) {
+            inventory.remove(filename);
+            return true;
         }
+        return false;
     }
 }
@@ -1,46 +1,206 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
+/**
+ * Receives a STORE upload. The body is streamed through a fixed-size buffer
+ * into a temp file under fileFolder/.tmp and only becomes visible under its
+ * real name via an atomic rename, so memory use does not depend on file size
+ * and a half-written upload is never listed or served.
+ *
+ * Also serves REBALANCE_STORE from peer Dstores, which is the same exchange
+ * except that the Controller is not sent a STORE_ACK; the peer gets a second
+ * ACK once the file is stored, so it knows it may delete its own copy.
+ *
+ * The body is hashed (SHA-256) as it arrives. With a {@link BlobStore} the
+ * upload is published through it, so content already held is kept once,
+ * and the STORE_ACK carries the hash. A client may send
+ * STORE filename filesize sha256; an upload that does not match is dropped
+ * unacknowledged. A CRC32C of the contents is taken at the same time, kept
+ * in {@link Checksums} for the {@link Scrubber} and sent after the hash.
+ *
+ * Plain uploads small enough for the {@link PackStore} are read into memory
+ * and appended to a segment rather than written to a file of their own.
+ *
+ * STORE_CODEC filename filesize codec encodedSize [sha256] uploads the body
+ * encoded (see {@link Compression}); a deflated body is checked by
+ * inflating it as it arrives and kept deflated. A peer's REBALANCE_STORE
+ * may carry the same codec fields.
+ */
 public class DStoreStoreHandler implements CommandHandler {
+    static final String TEMP_DIR = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final String fileFolder;
-    private final TCPSender controllerSender;
+    private final ControllerLink controllerSender;
     private final int timeout;
+    private final Inventory inventory;
+    private final BlobStore blobs;
+    private final Compression compression;
+    private final Checksums checksums;
+    private final PackStore pack;
+    private final boolean ackController;
+
+    public DStoreStoreHandler(String fileFolder, ControllerLink controllerSender , int timeout, Inventory inventory,
+                              BlobStore blobs, Compression compression, Checksums checksums, PackStore pack) {
+        this(fileFolder, controllerSender, timeout, inventory, blobs, compression, checksums, pack, true);
+    }
 
-    public DStoreStoreHandler(String fileFolder, TCPSender controllerSender , int timeout) {
+    public DStoreStoreHandler(String fileFolder, ControllerLink controllerSender, int timeout, Inventory inventory,
+                              BlobStore blobs, Compression compression, Checksums checksums, PackStore pack,
+                              boolean ackController) {
         this.fileFolder        = fileFolder;
         this.controllerSender  = controllerSender;
         this.timeout         = timeout;
+        this.inventory       = inventory;
+        this.blobs           = blobs;
+        this.compression     = compression;
+        this.checksums       = checksums;
+        this.pack            = pack;
+        this.ackController   = ackController;
     }
 
     @Override
-    public void handle(String[] parts, Socket clientSocket) throws IOException {
-    // parts = ["STORE", "filename filesize"]
+    public void handle(String[] parts, Connection client) throws IOException {
+    // parts = ["STORE", "filename", "filesize", "<sha256>"?]
+    //      or ["STORE_CODEC", "filename", "filesize", "codec", "encodedSize", "<sha256>"?]
+    //      or ["REBALANCE_STORE", "filename", "filesize", ("codec", "encodedSize")?]
 
-      String[] args = parts[1].split(" ");
-      String filename = args[0];
-      int filesize = Integer.parseInt(args[1]);
-      clientSocket.setSoTimeout(timeout);
+      String filename = parts[1];
+      long filesize = Long.parseLong(parts[2]);
+      String codec = Compression.IDENTITY;
+      long encodedSize = filesize;
+      String claimed;
+      if (Protocol.STORE_CODEC_TOKEN.equals(parts[0]) || parts.length >= 5) {
+        codec = parts[3];
+        encodedSize = Long.parseLong(parts[4]);
+        claimed = parts.length > 5 ? parts[5] : null;
+      } else {
+        claimed = parts.length > 3 ? parts[3] : null;
+      }
+      if (!Compression.isCodec(codec) || (Compression.IDENTITY.equals(codec) && encodedSize != filesize)) {
+        // no ACK: the client falls back to a plain STORE
+        System.err.println("Cannot take " + filename + " as " + codec + " (" + encodedSize + " bytes)");
+        client.close();
+        return;
+      }
+      client.getSocket().setSoTimeout(timeout);
 
       // 1) ACK to client
-      new TCPSender(clientSocket).sendOneWay(Protocol.ACK_TOKEN);
+      client.reply(Protocol.ACK_TOKEN);
 
-      // 2) Read file content
-      InputStream in = clientSocket.getInputStream();
-      byte[] data = in.readNBytes(filesize);
+      // 2) Stream file content into a temp file
+      // Read through the connection's buffered stream so no read-ahead is lost
+      String hash;
+      Checksum crc = new CRC32C();
+      if (Compression.DEFLATE.equals(codec)) {
+        Path tmp = compression.receive(client.getInputStream(), filesize, encodedSize, crc);
+        try {
+          hash = Compression.hashOf(tmp);
+          if (!matches(filename, hash, claimed)) return;
 
-      // 3) Save to disk
-      File outFile = new File(fileFolder, filename);
-      try (FileOutputStream fos = new FileOutputStream(outFile)) {
-        fos.write(data);
+          // 3) Publish under the real name, still deflated
+          compression.publish(tmp, filename);
+          inventory.put(filename, filesize);
+        } finally {
+          Files.deleteIfExists(tmp);
+        }
+      } else if (pack.accepts(filesize)) {
+        // small: straight into a segment, no file of its own
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) filesize);
+        hash = receive(client.getInputStream(), body, filesize, crc);
+        if (!matches(filename, hash, claimed)) return;
+
+        // 3) Publish under the real name
+        pack.put(filename, body.toByteArray(), (int) crc.getValue(), hash);
+        inventory.put(filename, filesize);
+      } else {
+        Path tmpDir = new File(fileFolder, TEMP_DIR).toPath();
+        Files.createDirectories(tmpDir);
+        Path tmp = Files.createTempFile(tmpDir, "store-", ".part");
+        try {
+          try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            hash = receive(client.getInputStream(), out, filesize, crc);
+          }
+          if (!matches(filename, hash, claimed)) return;
+
+          // 3) Publish under the real name
+          publish(tmp, filename, filesize, hash);
+          inventory.put(filename, filesize);
+        } finally {
+          Files.deleteIfExists(tmp);
+        }
       }
+      // a packed file's record carries its own
+      if (!pack.contains(filename)) checksums.put(filename, (int) crc.getValue());
       System.out.println("Stored: " + filename);
 
       // 4) Notify Controller
-      controllerSender.sendOneWay(Protocol.STORE_ACK_TOKEN + " " + filename);
+      if (ackController) {
+        controllerSender.send(Protocol.STORE_ACK_TOKEN, filename, hash, Checksums.hex((int) crc.getValue()));
+      } else {
+        client.reply(Protocol.ACK_TOKEN);
+      }
 
 
     }
+
+    private static boolean matches(String filename, String hash, String claimed) {
+      if (claimed == null || claimed.equals(hash)) return true;
+      System.err.println("⚠ Upload of " + filename + " hashes to " + hash + ", not " + claimed + "; dropped");
+      return false;
+    }
+
+    /** Deflated if that is switched on and pays, else shared with identical content, else as is. */
+    private void publish(Path tmp, String filename, long filesize, String hash) throws IOException {
+      boolean known = blobs != null && blobs.contains(hash);
+      Path deflated = compression.atRest() && !known ? compression.encode(tmp, filesize, hash) : null;
+      if (deflated != null) {
+        try {
+          compression.publish(deflated, filename);
+        } finally {
+          Files.deleteIfExists(deflated);
+        }
+      } else if (blobs != null) {
+        blobs.publish(tmp, filename, hash);
+      } else {
+        Path target = new File(fileFolder, filename).toPath();
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    /** @return the SHA-256 of what was received, which is also fed to crc */
+    private static String receive(InputStream in, OutputStream out, long filesize, Checksum crc) throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long remaining = filesize;
+      MessageDigest sha;
+      try {
+        sha = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      while (remaining > 0) {
+        int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n < 0) {
+          throw new EOFException("Upload ended after " + (filesize - remaining)
+                  + " of " + filesize + " bytes");
+        }
+        out.write(buffer, 0, n);
+        sha.update(buffer, 0, n);
+        crc.update(buffer, 0, n);
+        remaining -= n;
+      }
+      return BlobStore.hex(sha.digest());
+    }
 }
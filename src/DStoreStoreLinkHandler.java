@@ -0,0 +1,58 @@
+import java.io.IOException;
+
+/**
+ * STORE_LINK filename filesize sha256 [crc32c], from the Controller
+ * Stores filename without an upload, as another name for content this
+ * Dstore already holds (see {@link BlobStore}, or {@link Compression} and
+ * {@link PackStore} for content kept deflated or packed), and acks it like
+ * a STORE.
+ * If the blob is not here after all, or is not filesize bytes long (the
+ * hash was claimed by a client, not checked against this content), nothing
+ * is linked or acked, and the STORE times out at the Controller. The CRC32C, when the Controller knows it, is
+ * recorded in {@link Checksums} as if the file had been uploaded.
+ */
+public class DStoreStoreLinkHandler implements CommandHandler {
+    private final ControllerLink controllerSender;
+    private final Inventory inventory;
+    private final BlobStore blobs;
+    private final Compression compression;
+    private final Checksums checksums;
+    private final PackStore pack;
+
+    public DStoreStoreLinkHandler(ControllerLink controllerSender, Inventory inventory, BlobStore blobs,
+                                  Compression compression, Checksums checksums, PackStore pack) {
+        this.controllerSender = controllerSender;
+        this.inventory        = inventory;
+        this.blobs            = blobs;
+        this.compression      = compression;
+        this.checksums        = checksums;
+        this.pack             = pack;
+    }
+
+    @Override
+    public void handle(String[] parts, Connection connection) throws IOException {
+        // parts = ["STORE_LINK", "filename", "filesize", "sha256", "<crc32c>"?]
+        if (parts.length != 4 && parts.length != 5) {
+            System.err.println("Malformed STORE_LINK message");
+            return;
+        }
+        String filename = parts[1];
+        long filesize = Long.parseLong(parts[2]);
+        String hash = parts[3];
+        long size = blobs == null ? -1 : blobs.link(filename, hash, filesize);
+        if (size < 0) size = compression.link(filename, hash, filesize);
+        if (size < 0) size = pack.link(filename, hash, filesize);
+        if (size < 0) {
+            System.err.println("⚠ STORE_LINK " + filename + ": no blob " + hash + " of " + filesize + " bytes");
+            return;
+        }
+        inventory.put(filename, size);
+        System.out.println("Linked: " + filename + " → " + hash);
+        if (parts.length == 5 && Checksums.isCrc(parts[4])) {
+            if (!pack.contains(filename)) checksums.put(filename, Checksums.parse(parts[4]));
+            controllerSender.send(Protocol.STORE_ACK_TOKEN, filename, hash, parts[4]);
+        } else {
+            controllerSender.send(Protocol.STORE_ACK_TOKEN, filename, hash);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+public class DigestBucketsHandler implements CommandHandler {
+    private final Controller ctrl;
+    public DigestBucketsHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // a Dstore answering the Reconciler, under the id of its request
+        Integer dport = ctrl.getConnectionToPort().get(dstore);
+        if (dport == null) {
+            System.err.println("DIGEST_BUCKETS from unknown connection");
+            return;
+        }
+        ctrl.getReconciler().onBuckets(dport, dstore.getRequestId(), parts);
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+public class DigestHandler implements CommandHandler {
+    private final Controller ctrl;
+    public DigestHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // a Dstore answering the Reconciler, under the id of its request
+        Integer dport = ctrl.getConnectionToPort().get(dstore);
+        if (dport == null) {
+            System.err.println("DIGEST from unknown connection");
+            return;
+        }
+        ctrl.getReconciler().onDigest(dport, dstore.getRequestId(), parts);
+    }
+}
@@ -1,5 +1,3 @@
-import java.net.Socket;
-
 public interface DisconnectListener {
-    void onDisconnect(Socket s);
+    void onDisconnect(Connection c);
 }
\ No newline at end of file
@@ -1,30 +1,60 @@
 
 
 import java.io.IOException;
-import java.net.Socket;
-
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A storage node. It keeps one link open to the Controller and JOINs over
+ * it; if that link drops (e.g. the Controller restarts) it reconnects with
+ * backoff and JOINs again, which has the Controller check its files against
+ * the index. -Ddstore.reconnectDelay (ms, default 500) is the first wait,
+ * doubling up to 16 times that.
+ */
 public class Dstore implements DisconnectListener {
 
     private final TCPReceiver receiver;
-    private final TCPSender   controllerSender;
+    private final ControllerLink controllerSender;
     private final DstoreHandlerFactory handlerFactory;
     private final int port;
     private final int timeout;
     private final int cPort;
+    private final Inventory inventory;
+    private final ReadCache cache;
+    private final BlobStore blobs;
+    private final Compression compression;
+    private final PackStore pack;
+    private final Checksums checksums;
+    private final Scrubber scrubber;
 
     public Dstore(int port, int controllerPort, int timeout, String fileFolder)
             throws IOException {
         this.port = port;
 
-        // 1) Open persistent channel back to Controller
-        this.controllerSender = new TCPSender("localhost", controllerPort);
-
-        // 2) Build the handler factory
-        this.handlerFactory = new DstoreHandlerFactory(fileFolder, controllerSender, timeout);
+        // 1) Open persistent channel back to Controller (binary framing, so
+        //    acks stay cheap to parse and filenames may contain spaces)
+        this.controllerSender = new ControllerLink(Connection.openBinary("localhost", controllerPort));
+
+        // 2) Index what is already on disk, then build the handler factory
+        this.inventory = new Inventory(fileFolder);
+        this.cache = ReadCache.fromProperties();
+        if (cache != null) inventory.onChange(cache::invalidate);
+        // one copy per distinct content unless -Ddstore.dedup=false
+        this.blobs = Boolean.parseBoolean(System.getProperty("dstore.dedup", "true")) ? new BlobStore(fileFolder) : null;
+        if (blobs != null) inventory.onChange(blobs::onChange);
+        this.compression = new Compression(fileFolder, inventory);
+        inventory.onChange(compression::onChange);
+        this.pack = new PackStore(fileFolder, inventory, compression);
+        inventory.onChange(pack::onChange);
+        this.checksums = new Checksums(fileFolder, inventory);
+        inventory.onChange(checksums::onChange);
+        this.scrubber = new Scrubber(fileFolder, controllerSender, inventory, checksums, blobs, compression, pack);
+        this.handlerFactory = new DstoreHandlerFactory(fileFolder, controllerSender, timeout, inventory, cache, blobs,
+                                                       compression, checksums, pack, this::stats);
 
         // 3) Listen for incoming connections on Dstore port
         this.receiver = new TCPReceiver(port, this::dispatch, this,timeout);
-        receiver.attach(controllerSender.getSocket());
+        receiver.attach(controllerSender.get());
         this.timeout = timeout;
         this.cPort = controllerPort;
 
@@ -35,17 +65,17 @@ public class Dstore implements DisconnectListener {
     public void start() throws IOException {
         receiver.start();
         // Send the JOIN after we’re listening
-        controllerSender.sendOneWay(Protocol.JOIN_TOKEN + " " + port);
+        controllerSender.send(Protocol.JOIN_TOKEN, port);
+        scrubber.start();
     }
 
-    private void dispatch(String line, Socket socket) {
+    private void dispatch(String[] parts, Connection connection) {
         try {
-            String[] parts = line.split(" ", 2);
             String cmd     = parts[0];
 
             CommandHandler handler = handlerFactory.get(cmd);
             if (handler != null) {
-                handler.handle(parts, socket);
+                handler.handle(parts, connection);
             } else {
                 System.err.println("Unknown DStore cmd: " + cmd);
             }
@@ -54,6 +84,20 @@ public class Dstore implements DisconnectListener {
         }
     }
 
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("liveConnections",     receiver.getLiveConnections());
+        stats.put("acceptedConnections", receiver.getAcceptedConnections());
+        stats.put("rejectedConnections", receiver.getRejectedConnections());
+        stats.put("files",               inventory.size());
+        if (cache != null) cache.addStats(stats);
+        if (blobs != null) blobs.addStats(stats);
+        compression.addStats(stats);
+        pack.addStats(stats);
+        scrubber.addStats(stats);
+        return stats;
+    }
+
     public static void main(String[] args) throws IOException {
         if (args.length != 4) {
             System.err.println("Usage: java DStore <port> <controllerPort> <timeout> <fileFolder>");
@@ -68,12 +112,34 @@ public class Dstore implements DisconnectListener {
     }
 
     @Override
-    public void onDisconnect(Socket s) {
-        if (s.getPort()==cPort) {
-            System.err.println("Disconnected from Controller: null");
-
+    public void onDisconnect(Connection c) {
+        if (c == controllerSender.get()) {
+            System.err.println("⚠ Disconnected from Controller, reconnecting");
+            Thread t = new Thread(this::reconnect, "Reconnect");
+            t.start();
         }
+    }
 
-
+    private void reconnect() {
+        long first = Long.getLong("dstore.reconnectDelay", 500L);
+        long delay = first;
+        while (true) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Connection c = Connection.openBinary("localhost", cPort);
+                // set before attach, so a drop straight away is recognised as ours
+                controllerSender.set(c);
+                receiver.attach(c);
+                c.send(Protocol.JOIN_TOKEN, port);
+                System.out.println("✔ Rejoined Controller:" + cPort);
+                return;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, first * 16);
+            }
+        }
     }
 }
@@ -1,19 +1,34 @@
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class DstoreHandlerFactory {
     private final Map<String, CommandHandler> handlers = new HashMap<>();
 
 
 
-    public DstoreHandlerFactory(String fileFolder, TCPSender controllerSender , int timeout ) {
-        handlers.put(Protocol.STORE_TOKEN,      new DStoreStoreHandler(fileFolder, controllerSender, timeout ));
-        handlers.put(Protocol.LOAD_DATA_TOKEN,  new DStoreLoadDataHandler(fileFolder ));
-        handlers.put(Protocol.REMOVE_TOKEN,     new DStoreRemoveHandler(fileFolder, controllerSender));
-        // If you add rebalance later, wire it here:
-        // handlers.put(Protocol.REBALANCE_TOKEN,        new RebalanceHandler(...));
-        // handlers.put(Protocol.REBALANCE_STORE_TOKEN,  new RebalanceStoreHandler(...));
-        // handlers.put(Protocol.REBALANCE_COMPLETE_TOKEN,new RebalanceCompleteHandler(...));
+    public DstoreHandlerFactory(String fileFolder, ControllerLink controllerSender , int timeout,
+                                Inventory inventory, ReadCache cache, BlobStore blobs, Compression compression,
+                                Checksums checksums, PackStore pack, Supplier<Map<String, Object>> stats) {
+        handlers.put(Protocol.STORE_TOKEN,      new DStoreStoreHandler(fileFolder, controllerSender, timeout, inventory, blobs, compression, checksums, pack));
+        DStoreLoadDataHandler loadData = new DStoreLoadDataHandler(fileFolder, controllerSender, cache, compression, pack);
+        handlers.put(Protocol.LOAD_DATA_TOKEN,  loadData);
+        handlers.put(Protocol.LOAD_CODEC_TOKEN, new DStoreLoadCodecHandler(controllerSender, compression, loadData));
+        DStoreRemoveHandler remove = new DStoreRemoveHandler(fileFolder, controllerSender, inventory, compression, pack);
+        handlers.put(Protocol.REMOVE_TOKEN,     remove);
+        handlers.put(Protocol.REMOVE_BATCH_TOKEN, remove);
+        handlers.put(Protocol.STATS_TOKEN,      new StatsHandler(stats));
+        handlers.put(Protocol.REBALANCE_TOKEN,  new DStoreRebalanceHandler(fileFolder, timeout, inventory, compression, pack));
+        handlers.put(Protocol.STORE_CODEC_TOKEN,
+                new DStoreStoreHandler(fileFolder, controllerSender, timeout, inventory, blobs, compression, checksums, pack));
+        handlers.put(Protocol.REBALANCE_STORE_TOKEN,
+                new DStoreStoreHandler(fileFolder, controllerSender, timeout, inventory, blobs, compression, checksums,
+                                       pack, false));
+        handlers.put(Protocol.DIGEST_TOKEN,     new DStoreDigestHandler(inventory));
+        handlers.put(Protocol.DIGEST_BUCKETS_TOKEN, new DStoreDigestBucketsHandler(inventory, checksums, pack));
+        handlers.put(Protocol.REBUILD_SHARD_TOKEN, new DStoreRebuildShardHandler(fileFolder, inventory, checksums));
+        handlers.put(Protocol.STORE_LINK_TOKEN, new DStoreStoreLinkHandler(controllerSender, inventory, blobs, compression,
+                                                                            checksums, pack));
     }
 
     /** Return null if no handler for that command */
@@ -0,0 +1,48 @@
+/**
+ * Immutable snapshot of how much one Dstore holds, ordered least loaded first:
+ * by file count, then bytes, then port so every Dstore has a distinct slot.
+ * Index keeps one per Dstore in a sorted set and swaps it on every change.
+ */
+public final class DstoreLoad implements Comparable<DstoreLoad> {
+    private final int port;
+    private final long files;
+    private final long bytes;
+
+    public DstoreLoad(int port, long files, long bytes) {
+        this.port = port;
+        this.files = files;
+        this.bytes = bytes;
+    }
+
+    public DstoreLoad plus(long fileDelta, long byteDelta) {
+        return new DstoreLoad(port, files + fileDelta, bytes + byteDelta);
+    }
+
+    public int getPort() { return port; }
+    public long getFiles() { return files; }
+    public long getBytes() { return bytes; }
+
+    @Override
+    public int compareTo(DstoreLoad o) {
+        int c = Long.compare(files, o.files);
+        if (c != 0) return c;
+        c = Long.compare(bytes, o.bytes);
+        if (c != 0) return c;
+        return Integer.compare(port, o.port);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DstoreLoad d && port == d.port && files == d.files && bytes == d.bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(port) * 31 + Long.hashCode(files * 31 + bytes);
+    }
+
+    @Override
+    public String toString() {
+        return port + "(files=" + files + ", bytes=" + bytes + ")";
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client side of erasure-coded files (STORE_EC / LOAD_EC), for Java clients
+ * and for Dstores rebuilding a shard. Encoding and decoding happen here, so
+ * the Controller only ever handles placement. Shards travel over ordinary
+ * STORE and LOAD_DATA exchanges, one connection per Dstore, all in parallel.
+ * A load reads the k data shards when they are there and needs no decoding;
+ * when some are missing it reads parity shards in their place and decodes.
+ * Files and shards are held in memory whole, except by {@link #stream},
+ * which Dstores rebuilding a shard use so its size is not bounded by heap.
+ */
+public final class ErasureClient {
+    private static final int TIMEOUT_MS = 30_000;
+
+    private ErasureClient() {}
+
+    /** Stores data under filename with the cluster's default k and m. */
+    public static void store(Connection controller, String filename, byte[] data) throws IOException {
+        store(controller, filename, data, new Object[] { filename, data.length });
+    }
+
+    /** Stores data under filename as k data and m parity shards. */
+    public static void store(Connection controller, String filename, byte[] data, int k, int m) throws IOException {
+        store(controller, filename, data, new Object[] { filename, data.length, k, m });
+    }
+
+    private static void store(Connection controller, String filename, byte[] data, Object[] request) throws IOException {
+        controller.send(Protocol.STORE_EC_TOKEN, request);
+        String[] reply = expect(controller, Protocol.STORE_TO_EC_TOKEN, filename);
+        int shardSize = Integer.parseInt(reply[1]);
+        int k = Integer.parseInt(reply[2]);
+        int m = Integer.parseInt(reply[3]);
+
+        byte[][] shards = new byte[k + m][shardSize];
+        for (int d = 0; d < k; d++) {
+            int off = d * shardSize;
+            if (off < data.length) System.arraycopy(data, off, shards[d], 0, Math.min(shardSize, data.length - off));
+        }
+        new ReedSolomon(k, m).encode(shards);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Boolean>> uploads = new ArrayList<>();
+            for (int i = 0; i < k + m; i++) {
+                int port = Integer.parseInt(reply[4 + i]);
+                String shard = FileInfo.chunkName(filename, i);
+                byte[] bytes = shards[i];
+                uploads.add(executor.submit(() -> upload(port, shard, bytes)));
+            }
+            for (Future<Boolean> f : uploads) {
+                if (!get(f)) throw new IOException("Upload of a shard of " + filename + " failed");
+            }
+        }
+        expect(controller, Protocol.STORE_COMPLETE_TOKEN, filename);
+    }
+
+    /** Loads an erasure-coded file, decoding it if some of its shards are gone. */
+    public static byte[] load(Connection controller, String filename) throws IOException {
+        controller.send(Protocol.LOAD_EC_TOKEN, filename);
+        String[] reply = expect(controller, Protocol.LOAD_FROM_EC_TOKEN, filename);
+        long size = Long.parseLong(reply[1]);
+        int shardSize = Integer.parseInt(reply[2]);
+        int k = Integer.parseInt(reply[3]);
+        int m = Integer.parseInt(reply[4]);
+        int[] ports = new int[k + m];
+        for (int i = 0; i < ports.length; i++) ports[i] = Integer.parseInt(reply[5 + i]);
+
+        byte[][] shards = new byte[k + m][];
+        boolean[] present = new boolean[k + m];
+        fetch(filename, ports, shardSize, k, shards, present);
+        for (int d = 0; d < k; d++) {
+            if (!present[d]) {
+                new ReedSolomon(k, m).decode(shards, present);
+                break;
+            }
+        }
+        byte[] data = new byte[Math.toIntExact(size)];
+        for (int d = 0; d < k; d++) {
+            int off = d * shardSize;
+            if (off < data.length) System.arraycopy(shards[d], 0, data, off, Math.min(shardSize, data.length - off));
+        }
+        return data;
+    }
+
+    /**
+     * Reads k shards of a file into shards, data shards first, moving on to
+     * the next untried shard for each one that cannot be read.
+     * @param ports the Dstore of each shard, -1 for a shard that is gone
+     * @throws IOException if fewer than k shards could be read
+     */
+    static void fetch(String filename, int[] ports, int shardSize, int k,
+                      byte[][] shards, boolean[] present) throws IOException {
+        int have = 0;
+        int next = 0;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (have < k) {
+                Map<Integer, Future<byte[]>> batch = new LinkedHashMap<>();
+                while (batch.size() < k - have && next < ports.length) {
+                    int i = next++;
+                    if (ports[i] < 0) continue;
+                    String shard = FileInfo.chunkName(filename, i);
+                    batch.put(i, executor.submit(() -> download(ports[i], shard, shardSize)));
+                }
+                if (batch.isEmpty()) {
+                    throw new IOException("Only " + have + " of the " + k + " shards needed for "
+                            + filename + " could be read");
+                }
+                for (Map.Entry<Integer, Future<byte[]>> e : batch.entrySet()) {
+                    byte[] bytes = get(e.getValue());
+                    if (bytes == null) continue;
+                    shards[e.getKey()] = bytes;
+                    present[e.getKey()] = true;
+                    have++;
+                }
+            }
+        }
+    }
+
+    /** Receives one stripe of a {@link #stream}ed file. */
+    interface StripeSink {
+        /**
+         * @param shards  all k+m shards' bytes for this stripe, each length long where present
+         * @param present which entries of shards hold real data
+         */
+        void accept(byte[][] shards, boolean[] present, int length) throws IOException;
+    }
+
+    /**
+     * Reads k shards of a file stripe by stripe, stripe bytes of each at a
+     * time, and hands every stripe to sink, so only one stripe per shard is
+     * in memory however large the shards are. Data shards are read first. A
+     * shard that cannot be read is replaced with the next untried one, read
+     * from the same offset with a ranged LOAD_DATA.
+     * @param ports the Dstore of each shard, -1 for a shard that is gone
+     * @throws IOException if fewer than k shards could be read at some offset
+     */
+    static void stream(String filename, int[] ports, long shardSize, int k, int stripe,
+                       StripeSink sink) throws IOException {
+        byte[][] shards = new byte[ports.length][];
+        boolean[] present = new boolean[ports.length];
+        List<ShardReader> readers = new ArrayList<>(k);
+        int next = 0;
+        try {
+            for (long offset = 0; offset < shardSize; ) {
+                int length = (int) Math.min(stripe, shardSize - offset);
+                Arrays.fill(present, false);
+                readers.removeIf(reader -> !reader.read(shards, present, length));
+                while (readers.size() < k) {
+                    if (next == ports.length) {
+                        throw new IOException("Only " + readers.size() + " of the " + k + " shards needed for "
+                                + filename + " could be read at offset " + offset);
+                    }
+                    int i = next++;
+                    if (ports[i] < 0) continue;
+                    ShardReader reader = ShardReader.open(filename, i, ports[i], offset, shardSize - offset);
+                    if (reader != null && reader.read(shards, present, length)) readers.add(reader);
+                }
+                sink.accept(shards, present, length);
+                offset += length;
+            }
+        } finally {
+            for (ShardReader reader : readers) reader.close();
+        }
+    }
+
+    /** One shard's LOAD_DATA stream, read a stripe at a time. */
+    private static final class ShardReader {
+        private final int index;
+        private final String shard;
+        private final int port;
+        private final Connection ds;
+        private final InputStream in;
+
+        private ShardReader(int index, String shard, int port, Connection ds) {
+            this.index = index;
+            this.shard = shard;
+            this.port = port;
+            this.ds = ds;
+            this.in = ds.getInputStream();
+        }
+
+        /** LOAD_DATA shard offset length; null if the Dstore cannot be reached. */
+        static ShardReader open(String filename, int index, int port, long offset, long length) {
+            String shard = FileInfo.chunkName(filename, index);
+            try {
+                Connection ds = Connection.openBinary("localhost", port);
+                ds.getSocket().setSoTimeout(TIMEOUT_MS);
+                ds.send(Protocol.LOAD_DATA_TOKEN, shard, offset, length);
+                return new ShardReader(index, shard, port, ds);
+            } catch (IOException e) {
+                System.err.println("⚠ Could not read " + shard + " from " + port + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        /** The next length bytes into shards[index]; false, and closed, if they are not all there. */
+        boolean read(byte[][] shards, boolean[] present, int length) {
+            if (shards[index] == null || shards[index].length != length) shards[index] = new byte[length];
+            try {
+                int n = in.readNBytes(shards[index], 0, length);
+                if (n == length) {
+                    present[index] = true;
+                    return true;
+                }
+                System.err.println("⚠ " + shard + " on " + port + " is short");
+            } catch (IOException e) {
+                System.err.println("⚠ Could not read " + shard + " from " + port + ": " + e.getMessage());
+            }
+            close();
+            return false;
+        }
+
+        void close() {
+            ds.close();
+        }
+    }
+
+    /** STORE shard size → ACK → raw bytes. */
+    private static boolean upload(int port, String shard, byte[] bytes) {
+        try {
+            Connection ds = Connection.openBinary("localhost", port);
+            ds.getSocket().setSoTimeout(TIMEOUT_MS);
+            ds.send(Protocol.STORE_TOKEN, shard, bytes.length);
+            String[] reply = ds.readMessage();
+            if (reply == null || !Protocol.ACK_TOKEN.equals(reply[0])) {
+                ds.close();
+                System.err.println("No ACK from " + port + " for " + shard);
+                return false;
+            }
+            return ds.sendBytes(bytes);
+        } catch (IOException e) {
+            System.err.println("Upload of " + shard + " to " + port + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** LOAD_DATA shard → raw bytes; null if the Dstore does not have all of it. */
+    private static byte[] download(int port, String shard, int shardSize) {
+        Connection ds = null;
+        try {
+            ds = Connection.openBinary("localhost", port);
+            ds.getSocket().setSoTimeout(TIMEOUT_MS);
+            ds.send(Protocol.LOAD_DATA_TOKEN, shard);
+            byte[] bytes = ds.getInputStream().readNBytes(shardSize);
+            if (bytes.length == shardSize) return bytes;
+            System.err.println("⚠ " + shard + " on " + port + " is short: " + bytes.length + " of " + shardSize + " bytes");
+        } catch (IOException e) {
+            System.err.println("⚠ Could not read " + shard + " from " + port + ": " + e.getMessage());
+        } finally {
+            if (ds != null) ds.close();
+        }
+        return null;
+    }
+
+    private static String[] expect(Connection controller, String token, String filename) throws IOException {
+        String[] reply = controller.readMessage();
+        if (reply == null) throw new IOException("Controller closed the connection");
+        if (!token.equals(reply[0])) throw new IOException(filename + ": " + reply[0]);
+        return reply;
+    }
+
+    private static <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
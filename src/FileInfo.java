@@ -1,23 +1,54 @@
 import java.util.ArrayList;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class FileInfo {
+    /** Chunk i of a chunked file is stored (and indexed) as filename + CHUNK_SEPARATOR + i. */
+    public static final String CHUNK_SEPARATOR = "#~";
 
-    private volatile Index.FileState fileState;
-    private int fileSize;
+    private final AtomicReference<Index.FileState> fileState;
+    private long fileSize;
     private CopyOnWriteArrayList<Integer> dStorePorts;
-    public FileInfo(Index.FileState fileState, int fileSize, CopyOnWriteArrayList<Integer> dStorePorts){
-        this.fileState = fileState;
-        this.fileSize = fileSize;
-        this.dStorePorts = dStorePorts;
+    private final int chunkCount;
+    private final long chunkSize;
+    private final int parityShards;
+    // SHA-256 of the contents, when a client or Dstore has told us
+    private volatile String contentHash;
+    // CRC32C of the contents, when a Dstore has told us
+    private volatile Integer crc32c;
+    public FileInfo(Index.FileState fileState, long fileSize, CopyOnWriteArrayList<Integer> dStorePorts){
+        this(fileState, fileSize, dStorePorts, 0, 0);
+    }
 
+    /**
+     * A chunked file: its data lives in chunkCount chunk entries of chunkSize
+     * bytes (the last may be shorter), each placed and replicated on its own;
+     * this entry itself has no Dstores.
+     */
+    public FileInfo(Index.FileState fileState, long fileSize, CopyOnWriteArrayList<Integer> dStorePorts,
+                    int chunkCount, long chunkSize){
+        this(fileState, fileSize, dStorePorts, chunkCount, chunkSize, 0);
+    }
 
+    /**
+     * An erasure-coded file: chunkCount shards of chunkSize bytes, the last
+     * parityShards of them Reed-Solomon parity over the others. Each shard
+     * is kept once, on its own Dstore.
+     */
+    public FileInfo(Index.FileState fileState, long fileSize, CopyOnWriteArrayList<Integer> dStorePorts,
+                    int chunkCount, long chunkSize, int parityShards){
+        this.fileState = new AtomicReference<>(fileState);
+        this.fileSize = fileSize;
+        this.dStorePorts = dStorePorts;
+        this.chunkCount = chunkCount;
+        this.chunkSize = chunkSize;
+        this.parityShards = parityShards;
     }
 
     public Index.FileState getFileState() {
-        return fileState;
+        return fileState.get();
     }
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
     public CopyOnWriteArrayList<Integer> getdStorePorts() {
@@ -29,13 +60,53 @@ public class FileInfo {
     }
 
     public void setFileState(Index.FileState fileState) {
-        this.fileState = fileState;
+        this.fileState.set(fileState);
+    }
+
+    /** Moves from one state to the next only if no one else has moved it first. */
+    public boolean transition(Index.FileState from, Index.FileState to) {
+        return fileState.compareAndSet(from, to);
     }
 
     public void removeDstorePort(int port) {
                  dStorePorts.remove(Integer.valueOf(port));
     }
 
+    public String getContentHash() { return contentHash; }
+    public void setContentHash(String contentHash) { this.contentHash = contentHash; }
+    public Integer getCrc32c() { return crc32c; }
+    public void setCrc32c(Integer crc32c) { this.crc32c = crc32c; }
+
+    public boolean isChunked() { return chunkCount > 0; }
+    public int getChunkCount() { return chunkCount; }
+    public long getChunkSize() { return chunkSize; }
+    public boolean isErasureCoded() { return parityShards > 0; }
+    public int getParityShards() { return parityShards; }
+    public int getDataShards() { return chunkCount - parityShards; }
+
+    /** Length of chunk i of this file; shards are all full length, the data zero-padded. */
+    public long getChunkLength(int i) {
+        if (isErasureCoded()) return chunkSize;
+        return Math.min(chunkSize, fileSize - i * chunkSize);
+    }
+
+    public static String chunkName(String filename, int i) {
+        return filename + CHUNK_SEPARATOR + i;
+    }
+
+    public static boolean isChunkName(String filename) {
+        return filename.contains(CHUNK_SEPARATOR);
+    }
+
+    /** The file a chunk or shard belongs to. */
+    public static String parentName(String chunkName) {
+        return chunkName.substring(0, chunkName.lastIndexOf(CHUNK_SEPARATOR));
+    }
+
+    public static int chunkIndex(String chunkName) {
+        return Integer.parseInt(chunkName.substring(chunkName.lastIndexOf(CHUNK_SEPARATOR) + CHUNK_SEPARATOR.length()));
+    }
+
 
 
 
@@ -0,0 +1,56 @@
+/**
+ * Approximate access counts for the {@link ReadCache} admission policy: a
+ * count-min sketch of 4-bit counters (saturating at 15) over DEPTH rows.
+ * After every sampleSize increments all counters are halved, so the counts
+ * follow recent popularity rather than all-time totals. Not thread-safe;
+ * the cache calls it under its own lock.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {
+        0x97cb3127b9d3e0a5L, 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL };
+
+    private final byte[][] rows = new byte[DEPTH][];
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(64, expectedEntries) - 1) << 1;
+        for (int i = 0; i < DEPTH; i++) rows[i] = new byte[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    int frequency(String key) {
+        int h = key.hashCode();
+        int min = 15;
+        for (int i = 0; i < DEPTH; i++) min = Math.min(min, rows[i][index(h, i)]);
+        return min;
+    }
+
+    void increment(String key) {
+        int h = key.hashCode();
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int j = index(h, i);
+            if (rows[i][j] < 15) {
+                rows[i][j]++;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) halve();
+    }
+
+    private void halve() {
+        for (byte[] row : rows) {
+            for (int j = 0; j < row.length; j++) row[j] >>= 1;
+        }
+        additions /= 2;
+    }
+
+    private int index(int h, int row) {
+        long z = (h + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return (int) (z ^ (z >>> 32)) & mask;
+    }
+}
@@ -1,35 +1,244 @@
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
+/**
+ * Filename → FileInfo, plus a load table: per-Dstore file and byte counts kept
+ * up to date as entries are added and removed, and held in a sorted set so
+ * placement reads the least loaded Dstores off the front instead of scanning
+ * every file, and a reverse map from each Dstore to the files it hosts so a
+ * departure only touches that Dstore's files. Changes to a file's Dstore list
+ * must go through this class so the counts and the reverse map stay right.
+ *
+ * STORE and REMOVE move a file through its states with per-key operations on
+ * the map (compute, compareAndSet on the FileInfo state, conditional
+ * remove), so each file's transitions are atomic while operations on
+ * different files never wait on each other. The counts, reverse maps and
+ * digests are updated inside the same per-key operation, so a REMOVE and a
+ * new STORE of the same name cannot undo each other's accounting.
+ *
+ * With an IndexLog attached every transition is also appended to the log
+ * from inside its per-key operation, so the log holds each file's changes in
+ * the order they happened. A record is appended before its per-key
+ * operation publishes the change, so those operations share a read lock
+ * that a snapshot takes exclusively to rotate the log: every record in an
+ * older segment is then visible in the map it iterates. Counts are kept for every port that appears in
+ * the index, but only Dstores that have joined are offered for placement.
+ *
+ * Each Dstore also has an InventoryDigest of the (filename, size) entries
+ * the index places on it, kept up to date alongside the counts, which a
+ * joining Dstore's own digest is checked against.
+ *
+ * The names of STORE_COMPLETE files (not chunks) are also kept in a sorted set, updated
+ * inside the same per-key operations, so LIST can page through them in name
+ * order without touching the map.
+ *
+ * Files whose content hash is known are also listed under that hash, so a
+ * STORE of content already held can find the Dstores that have it.
+ */
 public class Index {
+    // entries before rebuild() splits a pass over the common pool
+    private static final long BULK_PARALLELISM = 1 << 16;
     private ConcurrentHashMap<String, FileInfo> files;
+    private final ConcurrentHashMap<Integer, DstoreLoad> loads = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<DstoreLoad> byLoad = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<Integer, Set<String>> filesByDstore = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, InventoryDigest> digests = new ConcurrentHashMap<>();
+    private final Set<Integer> live = ConcurrentHashMap.newKeySet();
+    private final ConcurrentSkipListSet<String> complete = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Set<String>> filesByHash = new ConcurrentHashMap<>();
+    private volatile IndexLog log;
+    // held shared by every logged transition, exclusively while the log rotates
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
 
     public Index() {
         files = new ConcurrentHashMap<>();
     }
 
+    /** From now on every transition is appended to log (null to stop). */
+    public void setLog(IndexLog log) {
+        this.log = log;
+    }
+
+    /** Runs action while no logged transition is half done, i.e. appended but not yet published. */
+    void betweenTransitions(Runnable action) {
+        Lock exclusive = gate.writeLock();
+        exclusive.lock();
+        try {
+            action.run();
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    private void logged(Runnable transition) {
+        Lock shared = gate.readLock();
+        shared.lock();
+        try {
+            transition.run();
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /** Completes once every transition made so far is on disk (at once without a log). */
+    public CompletableFuture<Void> durable() {
+        IndexLog l = log;
+        return l == null ? CompletableFuture.completedFuture(null) : l.sync();
+    }
+
     public FileInfo getFileInfo(String filename) {
         return files.get(filename);
     }
 
     public void setFileInfo(String filename, FileInfo fileInfo) {
-        files.put(filename, fileInfo);
+        logged(() -> files.compute(filename, (k, current) -> {
+            logPut(filename, fileInfo);
+            listComplete(filename, fileInfo.getFileState());
+            if (current != null) account(filename, current, -1);
+            account(filename, fileInfo, 1);
+            return fileInfo;
+        }));
     }
 
 
     public void addFileInfo(String filename, FileInfo fileInfo) {
-        files.put(filename, fileInfo);
+        setFileInfo(filename, fileInfo);
+    }
+
+    /**
+     * Claims a filename for a new STORE.
+     * @return false if the name is already taken, in whatever state
+     */
+    public boolean tryBeginStore(String filename, FileInfo fileInfo) {
+        boolean[] claimed = new boolean[1];
+        logged(() -> files.compute(filename, (k, current) -> {
+            if (current != null) return current;
+            claimed[0] = true;
+            logPut(filename, fileInfo);
+            account(filename, fileInfo, 1);
+            return fileInfo;
+        }));
+        return claimed[0];
+    }
+
+    /** STORE_IN_PROGRESS → STORE_COMPLETE once every Dstore has acked. */
+    public boolean completeStore(String filename) {
+        return transition(filename, FileState.STORE_IN_PROGRESS, FileState.STORE_COMPLETE) != null;
+    }
+
+    /** Drops a STORE that never completed; leaves a completed or newer entry alone. */
+    public boolean abortStore(String filename) {
+        return removeIf(filename, FileState.STORE_IN_PROGRESS);
+    }
+
+    /**
+     * STORE_COMPLETE → REMOVE_IN_PROGRESS.
+     * @return the entry being removed, or null if there is no complete file by that name
+     */
+    public FileInfo tryBeginRemove(String filename) {
+        return transition(filename, FileState.STORE_COMPLETE, FileState.REMOVE_IN_PROGRESS);
+    }
+
+    /** Drops the entry once every Dstore has acked the REMOVE. */
+    public boolean completeRemove(String filename) {
+        return removeIf(filename, FileState.REMOVE_IN_PROGRESS);
+    }
+
+    private FileInfo transition(String filename, FileState from, FileState to) {
+        FileInfo[] moved = new FileInfo[1];
+        logged(() -> files.computeIfPresent(filename, (k, info) -> {
+            if (info.transition(from, to)) {
+                moved[0] = info;
+                IndexLog l = log;
+                if (l != null) l.state(filename, to);
+                listComplete(filename, to);
+            }
+            return info;
+        }));
+        return moved[0];
+    }
+
+    /**
+     * Records that a complete file now also lives on port (after a rebalance).
+     * @return false if the file is gone, no longer complete, or already there
+     */
+    public boolean addReplica(String filename, int port) {
+        boolean[] changed = new boolean[1];
+        logged(() -> files.computeIfPresent(filename, (k, info) -> {
+            if (info.getFileState() == FileState.STORE_COMPLETE && !info.getdStorePorts().contains(port)) {
+                info.addDStorePorts(port);
+                changed[0] = true;
+                IndexLog l = log;
+                if (l != null) l.addReplica(filename, port);
+                accountReplica(filename, info, port, 1);
+            }
+            return info;
+        }));
+        return changed[0];
     }
 
+    /**
+     * Records that a file no longer lives on port. The last replica is never
+     * dropped this way; use the STORE/REMOVE transitions for that.
+     */
+    public boolean removeReplica(String filename, int port) {
+        boolean[] changed = new boolean[1];
+        logged(() -> files.computeIfPresent(filename, (k, info) -> {
+            List<Integer> ports = info.getdStorePorts();
+            if (ports.size() > 1 && ports.contains(port)) {
+                info.removeDstorePort(port);
+                changed[0] = true;
+                IndexLog l = log;
+                if (l != null) l.removeReplica(filename, port);
+                accountReplica(filename, info, port, -1);
+            }
+            return info;
+        }));
+        return changed[0];
+    }
 
+    private boolean removeIf(String filename, FileState expected) {
+        boolean[] removed = new boolean[1];
+        logged(() -> files.computeIfPresent(filename, (k, info) -> {
+            // Retire the entry by clearing its state, so a transition racing
+            // with this removal on a stale reference fails instead of reviving it
+            if (!info.transition(expected, null)) return info;
+            removed[0] = true;
+            logDelete(filename);
+            complete.remove(filename);
+            account(filename, info, -1);
+            return null;
+        }));
+        return removed[0];
+    }
 
+    /** Keeps the sorted set of listable names in step; chunks are never listed. */
+    private void listComplete(String filename, FileState state) {
+        if (state == FileState.STORE_COMPLETE && !FileInfo.isChunkName(filename)) complete.add(filename);
+        else complete.remove(filename);
+    }
 
+    private void logPut(String filename, FileInfo info) {
+        IndexLog l = log;
+        if (l != null) l.put(filename, info);
+    }
 
+    private void logDelete(String filename) {
+        IndexLog l = log;
+        if (l != null) l.delete(filename);
+    }
 
     /**
      * The state of the File
@@ -41,41 +250,320 @@ public class Index {
     }
 
 
+    // ─── load table ───────────────────────────────────────────────────────────
+
+    /**
+     * Offers a Dstore that just joined for placement. Its counts start from
+     * whatever the index already says it holds (e.g. after a restart).
+     */
+    public void addDstore(int port) {
+        filesByDstore.putIfAbsent(port, ConcurrentHashMap.newKeySet());
+        loads.compute(port, (p, current) -> {
+            DstoreLoad load = current != null ? current : new DstoreLoad(p, 0, 0);
+            if (live.add(p)) byLoad.add(load);
+            return load;
+        });
+    }
+
+    /**
+     * Forgets a departed Dstore: drops it from the load table and from the
+     * replica list of each file it hosted, and drops files that have no
+     * replica left. Each file is changed (and logged) in its own per-key
+     * operation, like any other transition. A STORE or addReplica that
+     * lands on the port while this runs is swept up too: the reverse map's
+     * set is only dropped once it is empty. Costs O(files on that Dstore),
+     * not O(index).
+     * @return the files that were lost with it
+     */
+    public List<String> removeDstore(int port) {
+        loads.computeIfPresent(port, (p, current) -> {
+            if (live.remove(p)) byLoad.remove(current);
+            return null;
+        });
+        List<String> lost = new ArrayList<>();
+        Set<String> hosted;
+        while ((hosted = filesByDstore.get(port)) != null) {
+            Set<String> on = hosted;
+            for (String filename : List.copyOf(on)) {
+                logged(() -> files.compute(filename, (k, fi) -> {
+                    if (fi == null || !fi.getdStorePorts().contains(port)) {
+                        on.remove(filename);
+                        return fi;
+                    }
+                    accountReplica(filename, fi, port, -1);
+                    fi.removeDstorePort(port);
+                    IndexLog l = log;
+                    if (!fi.getdStorePorts().isEmpty()) {
+                        if (l != null) l.removeReplica(filename, port);
+                        return fi;
+                    }
+                    // If all replicas are gone the file is effectively lost
+                    logDelete(filename);
+                    complete.remove(filename);
+                    account(filename, fi, -1);
+                    lost.add(filename);
+                    return null;
+                }));
+            }
+            filesByDstore.computeIfPresent(port, (p, set) -> set.isEmpty() ? null : set);
+        }
+        digests.remove(port);
+        return lost;
+    }
+
+    /** Ports the index has files on whose Dstore has not joined (yet). */
+    public List<Integer> getAbsentDstores() {
+        List<Integer> absent = new ArrayList<>();
+        for (int port : filesByDstore.keySet()) {
+            if (!live.contains(port)) absent.add(port);
+        }
+        return absent;
+    }
+
+    /** Live view of the files a Dstore hosts (empty for an unknown port). */
+    public Set<String> getFilesOn(int port) {
+        Set<String> hosted = filesByDstore.get(port);
+        return hosted == null ? Set.of() : Collections.unmodifiableSet(hosted);
+    }
+
+    /** What the index expects a Dstore to hold, as a digest (empty for an unknown port). */
+    public InventoryDigest getDigest(int port) {
+        InventoryDigest digest = digests.get(port);
+        return digest == null ? new InventoryDigest() : digest;
+    }
+
+    /** Number of files a Dstore hosts, from the load table. */
+    public long getFileCount(int port) {
+        DstoreLoad load = loads.get(port);
+        return load == null ? 0 : load.getFiles();
+    }
+
+    /**
+     * Up to r distinct Dstores, least loaded first. Walks the front of the
+     * sorted set, so it costs O(r log d) however many files there are.
+     */
+    public List<Integer> selectLeastLoaded(int r) {
+        return selectLeastLoaded(r, Set.of());
+    }
+
+    /** As {@link #selectLeastLoaded(int)}, skipping the given ports (e.g. current holders). */
+    public List<Integer> selectLeastLoaded(int r, Collection<Integer> exclude) {
+        List<Integer> ports = new ArrayList<>(r);
+        for (DstoreLoad load : byLoad) {
+            if (ports.size() == r) break;
+            // a Dstore being updated can briefly appear twice
+            if (!ports.contains(load.getPort()) && !exclude.contains(load.getPort())) ports.add(load.getPort());
+        }
+        return ports;
+    }
+
+    public List<DstoreLoad> getLoads() {
+        return new ArrayList<>(byLoad);
+    }
+
+    private void account(String filename, FileInfo info, int sign) {
+        for (int port : info.getdStorePorts()) {
+            accountReplica(filename, info, port, sign);
+        }
+        String hash = info.getContentHash();
+        if (hash != null) accountHash(filename, hash, sign);
+    }
+
+    private void accountHash(String filename, String hash, int sign) {
+        if (sign > 0) {
+            filesByHash.computeIfAbsent(hash, h -> ConcurrentHashMap.newKeySet()).add(filename);
+        } else {
+            filesByHash.computeIfPresent(hash, (h, names) -> {
+                names.remove(filename);
+                return names.isEmpty() ? null : names;
+            });
+        }
+    }
+
+    /**
+     * Records a file's content hash and CRC32C reported by a Dstore, each
+     * unless one is known already (either may be null).
+     * @return the CRC32C now on record, or null
+     */
+    public Integer recordContent(String filename, String hash, Integer crc) {
+        Integer[] known = new Integer[1];
+        logged(() -> files.computeIfPresent(filename, (k, info) -> {
+            if (info.getFileState() == null) return info;
+            boolean changed = false;
+            if (hash != null && info.getContentHash() == null) {
+                info.setContentHash(hash);
+                accountHash(filename, hash, 1);
+                changed = true;
+            }
+            if (crc != null && info.getCrc32c() == null) {
+                info.setCrc32c(crc);
+                changed = true;
+            }
+            if (changed) logPut(filename, info);
+            known[0] = info.getCrc32c();
+            return info;
+        }));
+        return known[0];
+    }
+
+    /** CRC32C of a complete file with this content hash and size, or null if none is known. */
+    public Integer checksumOf(String hash, long size) {
+        Set<String> names = filesByHash.get(hash);
+        if (names == null) return null;
+        for (String name : names) {
+            FileInfo info = files.get(name);
+            if (info != null && info.getFileState() == FileState.STORE_COMPLETE && info.getFileSize() == size
+                    && info.getCrc32c() != null) {
+                return info.getCrc32c();
+            }
+        }
+        return null;
+    }
+
     /**
-     * Returns a map of Dstore port → number of files
-     * that are in STORE_COMPLETE state on that Dstore.
+     * Joined Dstores holding a complete file with this content hash and size;
+     * a hash is only as good as the client that claimed it, so a file of
+     * another size under the same hash does not count.
      */
-    public Map<Integer,Integer> getFileCountPerDstore() {
-        Map<Integer,Integer> counts = new HashMap<>();
-        for (FileInfo info : files.values()) {
-            // Count both completed and in-progress files
-            if (info.getFileState() == FileState.STORE_COMPLETE ||
-                    info.getFileState() == FileState.STORE_IN_PROGRESS) {
-                for (int port : info.getdStorePorts()) {
-                    counts.merge(port, 1, Integer::sum);
-                }
+    public List<Integer> holdersOf(String hash, long size) {
+        Set<String> names = filesByHash.get(hash);
+        if (names == null) return List.of();
+        List<Integer> ports = new ArrayList<>();
+        for (String name : names) {
+            FileInfo info = files.get(name);
+            if (info == null || info.getFileState() != FileState.STORE_COMPLETE || info.getFileSize() != size) continue;
+            for (int port : info.getdStorePorts()) {
+                if (live.contains(port) && !ports.contains(port)) ports.add(port);
             }
         }
-        return counts;
+        return ports;
+    }
+
+    private void accountReplica(String filename, FileInfo info, int port, int sign) {
+        adjustLoad(port, sign, sign * info.getFileSize());
+        InventoryDigest digest = sign > 0
+                ? digests.computeIfAbsent(port, p -> new InventoryDigest())
+                : digests.get(port);
+        if (digest != null) {
+            if (sign > 0) digest.add(filename, info.getFileSize());
+            else digest.remove(filename, info.getFileSize());
+        }
+        Set<String> hosted = sign > 0
+                ? filesByDstore.computeIfAbsent(port, p -> ConcurrentHashMap.newKeySet())
+                : filesByDstore.get(port);
+        if (hosted == null) return;
+        if (sign > 0) hosted.add(filename);
+        else hosted.remove(filename);
+    }
+
+    private void adjustLoad(int port, long fileDelta, long byteDelta) {
+        loads.compute(port, (p, current) -> {
+            if (current == null) {
+                // a late decrement for a Dstore that already left
+                if (fileDelta < 0) return null;
+                current = new DstoreLoad(p, 0, 0);
+            }
+            DstoreLoad next = current.plus(fileDelta, byteDelta);
+            if (live.contains(p)) {
+                // add before remove so a concurrent selection never misses this Dstore
+                byLoad.add(next);
+                byLoad.remove(current);
+            }
+            return next;
+        });
     }
 
     public Set<String> getAllFileNames() {
         return files.keySet();
     }
 
+    /** Live, name-ordered view of the files that are STORE_COMPLETE. */
+    public NavigableSet<String> getCompleteFileNames() {
+        return Collections.unmodifiableNavigableSet(complete);
+    }
 
-    public void removeFileInfo(String filename) {
-        files.remove(filename);
+    /**
+     * Sets a file's state outright, for log replay; normal operation goes
+     * through the STORE/REMOVE transitions.
+     */
+    public void restoreState(String filename, FileState state) {
+        files.computeIfPresent(filename, (k, info) -> {
+            info.setFileState(state);
+            listComplete(filename, state);
+            return info;
+        });
     }
 
-    public Set<Map.Entry<String, FileInfo>> getAllEntries() {
-        // Return a copy of the entry set
-        return new HashSet<>(files.entrySet());
+    /**
+     * Puts a recovered entry with none of the bookkeeping; {@link #rebuild}
+     * then does that for all of them at once. Only for filling an unused
+     * Index, see IndexLog.
+     */
+    void load(String filename, FileInfo info) {
+        files.put(filename, info);
+    }
 
+    /**
+     * Builds the counts, reverse maps, digests and listable names for every
+     * entry at once: one pass sums each Dstore's load and sizes its reverse
+     * map, a second fills the maps and digests, both spread over the common
+     * pool. For an Index filled with {@link #load} that nothing else is
+     * using yet.
+     */
+    void rebuild() {
+        if (!loads.isEmpty()) throw new IllegalStateException("Index already in use");
+        ConcurrentHashMap<Integer, LongAdder[]> totals = new ConcurrentHashMap<>();
+        files.forEach(BULK_PARALLELISM, (filename, info) -> {
+            for (int port : info.getdStorePorts()) {
+                LongAdder[] t = totals.computeIfAbsent(port, p -> new LongAdder[] { new LongAdder(), new LongAdder() });
+                t[0].increment();
+                t[1].add(info.getFileSize());
+            }
+        });
+        for (Map.Entry<Integer, LongAdder[]> t : totals.entrySet()) {
+            int port = t.getKey();
+            long count = t.getValue()[0].sum();
+            loads.put(port, new DstoreLoad(port, count, t.getValue()[1].sum()));
+            filesByDstore.put(port, ConcurrentHashMap.newKeySet((int) Math.min(count, 1 << 30)));
+            digests.put(port, new InventoryDigest());
+        }
+        files.forEach(BULK_PARALLELISM, (filename, info) -> {
+            long nameHash = InventoryDigest.nameHash(filename);
+            for (int port : info.getdStorePorts()) {
+                filesByDstore.get(port).add(filename);
+                digests.get(port).add(nameHash, info.getFileSize());
+            }
+            String hash = info.getContentHash();
+            if (hash != null) accountHash(filename, hash, 1);
+        });
+        List<String> listable = new ArrayList<>();
+        for (Map.Entry<String, FileInfo> e : files.entrySet()) {
+            if (e.getValue().getFileState() == FileState.STORE_COMPLETE && !FileInfo.isChunkName(e.getKey())) {
+                listable.add(e.getKey());
+            }
+        }
+        // in order, so each insert lands at the tail of the skip list
+        Collections.sort(listable);
+        complete.addAll(listable);
+    }
 
+    /** Live view of every entry, for snapshots. */
+    public Set<Map.Entry<String, FileInfo>> entries() {
+        return files.entrySet();
     }
 
-}
+    public int size() {
+        return files.size();
+    }
 
 
+    public void removeFileInfo(String filename) {
+        logged(() -> files.computeIfPresent(filename, (k, info) -> {
+            logDelete(filename);
+            complete.remove(filename);
+            account(filename, info, -1);
+            return null;
+        }));
+    }
 
+}
@@ -0,0 +1,464 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log and snapshots that make the Controller's Index survive a
+ * restart. Enabled by pointing -Dcontroller.dataDir at a directory.
+ *
+ * Index appends one record per transition. Appending only queues the bytes;
+ * a single writer thread drains whatever has queued up, writes it with one
+ * write and one fsync (group commit) and then completes every {@link #sync}
+ * barrier that was queued behind those records. Each record is
+ *   int32 length, int32 CRC32 of the payload, payload
+ * so a torn tail left by a crash is recognised and ignored on replay.
+ *
+ * The log is split into segments wal-N.log. A snapshot first rotates to a new
+ * segment, then writes every entry to index.snapshot (via a temp file and an
+ * atomic rename) tagged with that segment number, then deletes older
+ * segments. The rotation is queued between Index transitions, so each
+ * record left in an older segment is already in the map the snapshot
+ * reads. The snapshot may already contain some changes from the new
+ * segment; replaying those again is harmless because every record sets
+ * state rather than adjusting it. A snapshot is taken at startup and again
+ * whenever the current segment grows past snapshotBytes.
+ *
+ * A failed write, fsync or rotation poisons the log: the records in flight
+ * may be missing from it, so every barrier and rotation from then on fails
+ * with that error rather than reporting durability over a hole.
+ */
+public class IndexLog implements Runnable {
+    private static final byte PUT = 1, STATE = 2, DELETE = 3, ADD_REPLICA = 4, REMOVE_REPLICA = 5, DSTORE_GONE = 6;
+    // set on an entry's state byte when a chunk count and size follow its ports,
+    // and then a parity shard count for an erasure-coded file; last, the
+    // content hash if one is known, then its CRC32C
+    private static final int CHUNKED = 0x80;
+    private static final int ERASURE = 0x40;
+    private static final int HASHED = 0x20;
+    private static final int CHECKSUMMED = 0x10;
+    private static final int SNAPSHOT_MAGIC = 0x49445831; // "IDX1"
+    private static final String SNAPSHOT = "index.snapshot";
+    private static final int BATCH = 4096;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File dir;
+    private final Index index;
+    private final long snapshotBytes;
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "IndexLog-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // writer thread only
+    private FileOutputStream file;
+    private OutputStream out;
+    private long segment;
+    private long segmentBytes;
+    private IOException failed;
+
+    /** Queued behind records; completed once they are on disk. */
+    private static final class Barrier {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    /** Queued behind records; switches to the next segment and reports its number. */
+    private static final class Rotate {
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+    }
+
+    private IndexLog(File dir, Index index, long segment, long snapshotBytes) {
+        this.dir = dir;
+        this.index = index;
+        this.segment = segment;
+        this.snapshotBytes = snapshotBytes;
+    }
+
+    /**
+     * Rebuilds index from the latest snapshot plus the log tail in dir, then
+     * attaches a fresh log to it and writes a new snapshot.
+     */
+    public static IndexLog open(File dir, Index index, long snapshotBytes) throws IOException {
+        Files.createDirectories(dir.toPath());
+        long start = System.nanoTime();
+
+        long fromSegment = 0;
+        File snapshot = new File(dir, SNAPSHOT);
+        if (snapshot.exists()) fromSegment = readSnapshot(snapshot, index);
+        int snapshotFiles = index.size();
+        long loaded = System.nanoTime();
+        index.rebuild();
+        long rebuilt = System.nanoTime();
+
+        long records = 0;
+        long lastSegment = fromSegment;
+        for (Map.Entry<Long, File> e : segments(dir).entrySet()) {
+            lastSegment = Math.max(lastSegment, e.getKey());
+            if (e.getKey() >= fromSegment) records += replay(e.getValue(), index);
+        }
+
+        // Nobody is waiting on these any more: the client got no completion
+        int dropped = 0;
+        for (String filename : new ArrayList<>(index.getAllFileNames())) {
+            FileInfo info = index.getFileInfo(filename);
+            if (info != null && info.getFileState() != Index.FileState.STORE_COMPLETE) {
+                index.removeFileInfo(filename);
+                dropped++;
+            }
+        }
+        System.out.printf("Index recovered from %s: %d files (%d from snapshot, %d log records, %d unfinished dropped) "
+                        + "in %d ms (read %d, rebuild %d)%n",
+                dir, index.size(), snapshotFiles, records, dropped, (System.nanoTime() - start) / 1_000_000,
+                (loaded - start) / 1_000_000, (rebuilt - loaded) / 1_000_000);
+
+        IndexLog log = new IndexLog(dir, index, lastSegment + 1, snapshotBytes);
+        log.openSegment();
+        Thread writer = new Thread(log, "IndexLog-writer");
+        writer.setDaemon(true);
+        writer.start();
+        index.setLog(log);
+        log.snapshot();
+        return log;
+    }
+
+    // ─── appending (called from inside Index's per-key operations) ─────────────────
+
+    void put(String filename, FileInfo info) {
+        append(out -> {
+            out.writeByte(PUT);
+            out.writeUTF(filename);
+            writeEntry(out, info, info.getFileState());
+        });
+    }
+
+    void state(String filename, Index.FileState state) {
+        append(out -> {
+            out.writeByte(STATE);
+            out.writeUTF(filename);
+            out.writeByte(state.ordinal());
+        });
+    }
+
+    void delete(String filename) {
+        append(out -> {
+            out.writeByte(DELETE);
+            out.writeUTF(filename);
+        });
+    }
+
+    void addReplica(String filename, int port) {
+        append(out -> {
+            out.writeByte(ADD_REPLICA);
+            out.writeUTF(filename);
+            out.writeInt(port);
+        });
+    }
+
+    void removeReplica(String filename, int port) {
+        append(out -> {
+            out.writeByte(REMOVE_REPLICA);
+            out.writeUTF(filename);
+            out.writeInt(port);
+        });
+    }
+
+    /** Completes once everything appended before this call is on disk. */
+    public CompletableFuture<Void> sync() {
+        Barrier b = new Barrier();
+        queue.add(b);
+        return b.done;
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(RecordWriter payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(0);
+            data.writeInt(0);
+            payload.write(data);
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+            writeInt(record, 0, record.length - 8);
+            writeInt(record, 4, (int) crc.getValue());
+            queue.add(record);
+        } catch (IOException e) {
+            // only a name longer than 64 KB can get here
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void writeEntry(DataOutputStream out, FileInfo info, Index.FileState state) throws IOException {
+        List<Integer> ports = List.copyOf(info.getdStorePorts());
+        String hash = info.getContentHash();
+        Integer crc = info.getCrc32c();
+        out.writeByte(state.ordinal() | (info.isChunked() ? CHUNKED : 0)
+                | (info.isErasureCoded() ? ERASURE : 0) | (hash != null ? HASHED : 0)
+                | (crc != null ? CHECKSUMMED : 0));
+        out.writeLong(info.getFileSize());
+        out.writeShort(ports.size());
+        for (int p : ports) out.writeInt(p);
+        if (info.isChunked()) {
+            out.writeInt(info.getChunkCount());
+            out.writeLong(info.getChunkSize());
+            if (info.isErasureCoded()) out.writeInt(info.getParityShards());
+        }
+        if (hash != null) out.writeUTF(hash);
+        if (crc != null) out.writeInt(crc);
+    }
+
+    private static FileInfo readEntry(DataInputStream in) throws IOException {
+        int flags = in.readUnsignedByte();
+        Index.FileState state = Index.FileState.values()[flags & ~(CHUNKED | ERASURE | HASHED | CHECKSUMMED)];
+        long size = in.readLong();
+        int n = in.readUnsignedShort();
+        List<Integer> ports = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) ports.add(in.readInt());
+        FileInfo info;
+        if ((flags & CHUNKED) == 0) {
+            info = new FileInfo(state, size, new CopyOnWriteArrayList<>(ports));
+        } else {
+            int chunks = in.readInt();
+            long chunkSize = in.readLong();
+            int parity = (flags & ERASURE) != 0 ? in.readInt() : 0;
+            info = new FileInfo(state, size, new CopyOnWriteArrayList<>(ports), chunks, chunkSize, parity);
+        }
+        if ((flags & HASHED) != 0) info.setContentHash(in.readUTF());
+        if ((flags & CHECKSUMMED) != 0) info.setCrc32c(in.readInt());
+        return info;
+    }
+
+    // ─── writer thread ────────────────────────────────────────────────────────────
+
+    @Override
+    public void run() {
+        List<Object> batch = new ArrayList<>(BATCH);
+        List<Barrier> barriers = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                if (failed != null) {
+                    refuse(batch);
+                    continue;
+                }
+                boolean dirty = false;
+                for (Object o : batch) {
+                    if (o instanceof byte[] record) {
+                        out.write(record);
+                        segmentBytes += record.length;
+                        dirty = true;
+                    } else if (o instanceof Barrier b) {
+                        barriers.add(b);
+                    } else if (o instanceof Rotate r) {
+                        closeSegment();
+                        dirty = false;
+                        segment++;
+                        openSegment();
+                        r.done.complete(segment);
+                    }
+                }
+                if (dirty) {
+                    out.flush();
+                    file.getChannel().force(false);
+                }
+                for (Barrier b : barriers) b.done.complete(null);
+                if (segmentBytes > snapshotBytes) snapshotInBackground();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("⚠ Index log write failed, refusing further commits: " + e.getMessage());
+                failed = e;
+                refuse(batch);
+            } finally {
+                batch.clear();
+                barriers.clear();
+            }
+        }
+    }
+
+    /** Fails the barriers and rotations in batch with the error that poisoned the log. */
+    private void refuse(List<Object> batch) {
+        for (Object o : batch) {
+            if (o instanceof Barrier b) b.done.completeExceptionally(failed);
+            else if (o instanceof Rotate r) r.done.completeExceptionally(failed);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        file = new FileOutputStream(new File(dir, "wal-" + segment + ".log"), true);
+        out = new BufferedOutputStream(file, BUFFER_SIZE);
+        segmentBytes = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        out.flush();
+        file.getChannel().force(false);
+        out.close();
+    }
+
+    // ─── snapshots ────────────────────────────────────────────────────────────────
+
+    private void snapshotInBackground() {
+        if (!snapshotting.compareAndSet(false, true)) return;
+        snapshotter.execute(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("⚠ Index snapshot failed: " + e.getMessage());
+            } finally {
+                snapshotting.set(false);
+            }
+        });
+    }
+
+    /** Rotates the log, writes every entry to a new snapshot and drops older segments. */
+    public void snapshot() throws IOException {
+        long start = System.nanoTime();
+        Rotate rotate = new Rotate();
+        // records queued before the rotation are then all visible to index.entries()
+        index.betweenTransitions(() -> queue.add(rotate));
+        long fromSegment;
+        try {
+            fromSegment = rotate.done.join();
+        } catch (CompletionException e) {
+            throw new IOException("Index log could not rotate: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        File tmp = new File(dir, SNAPSHOT + ".tmp");
+        int count = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(fromSegment);
+            for (Map.Entry<String, FileInfo> e : index.entries()) {
+                FileInfo info = e.getValue();
+                Index.FileState state = info.getFileState();
+                if (state == null) continue; // being removed right now
+                out.writeByte(1);
+                out.writeUTF(e.getKey());
+                writeEntry(out, info, state);
+                count++;
+            }
+            out.writeByte(0);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (Map.Entry<Long, File> e : segments(dir).entrySet()) {
+            if (e.getKey() < fromSegment) Files.deleteIfExists(e.getValue().toPath());
+        }
+        System.out.printf("Index snapshot: %d files, log from segment %d, %d ms%n",
+                count, fromSegment, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Loads the entries without bookkeeping; the caller has the Index rebuild it.
+     * @return the first log segment not covered by the snapshot
+     */
+    private static long readSnapshot(File f, Index index) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not an index snapshot: " + f);
+            long fromSegment = in.readLong();
+            while (in.readByte() == 1) {
+                String filename = in.readUTF();
+                index.load(filename, readEntry(in));
+            }
+            return fromSegment;
+        }
+    }
+
+    // ─── replay ───────────────────────────────────────────────────────────────────
+
+    private static TreeMap<Long, File> segments(File dir) {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("wal-") && name.endsWith(".log"));
+        if (files == null) return segments;
+        for (File f : files) {
+            String n = f.getName();
+            try {
+                segments.put(Long.parseLong(n.substring(4, n.length() - 4)), f);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return segments;
+    }
+
+    /** Applies every intact record in one segment; stops at a torn or corrupt tail. */
+    private static long replay(File f, Index index) throws IOException {
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int crc = in.readInt();
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) break;
+                byte[] payload = new byte[length];
+                if (in.readNBytes(payload, 0, length) < length) break;
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc) {
+                    System.err.println("⚠ Corrupt record in " + f + ", ignoring the rest of it");
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)), index);
+                records++;
+            }
+        } catch (EOFException e) {
+            // torn header at the very end
+        }
+        return records;
+    }
+
+    private static void apply(DataInputStream in, Index index) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case PUT -> {
+                String filename = in.readUTF();
+                index.setFileInfo(filename, readEntry(in));
+            }
+            case STATE -> {
+                String filename = in.readUTF();
+                index.restoreState(filename, Index.FileState.values()[in.readByte()]);
+            }
+            case DELETE -> index.removeFileInfo(in.readUTF());
+            case ADD_REPLICA -> index.addReplica(in.readUTF(), in.readInt());
+            case REMOVE_REPLICA -> index.removeReplica(in.readUTF(), in.readInt());
+            // no longer written (removeDstore logs each file), still read from older logs
+            case DSTORE_GONE -> index.removeDstore(in.readInt());
+            default -> throw new IOException("Unknown index log record " + type);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * What a Dstore holds: filename → size, grouped by digest bucket, plus the
+ * running {@link InventoryDigest} over it. Built by one scan of the folder at
+ * startup and then kept current by the STORE, REMOVE and REBALANCE handlers,
+ * so answering the Controller never lists the folder again. Every change is
+ * also passed to the listeners (the {@link ReadCache}, {@link BlobStore},
+ * {@link Compression} and {@link Checksums}).
+ */
+public class Inventory {
+    private final List<Map<String, Long>> buckets;
+    private final InventoryDigest digest = new InventoryDigest();
+    private volatile Consumer<String> listener = name -> { };
+
+    public Inventory(String fileFolder) throws IOException {
+        buckets = new ArrayList<>(InventoryDigest.BUCKETS);
+        for (int i = 0; i < InventoryDigest.BUCKETS; i++) buckets.add(new ConcurrentHashMap<>());
+
+        Path folder = new File(fileFolder).toPath();
+        Files.createDirectories(folder);
+        long start = System.nanoTime();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder, Files::isRegularFile)) {
+            for (Path p : entries) put(p.getFileName().toString(), Files.size(p));
+        }
+        System.out.printf("Inventory: %d files in %d ms%n", size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /** Adds a listener called with the name of every file written over or deleted from now on. */
+    public synchronized void onChange(Consumer<String> listener) {
+        this.listener = this.listener.andThen(listener);
+    }
+
+    /** A file was written (or overwritten) under this name. */
+    public void put(String filename, long size) {
+        listener.accept(filename);
+        buckets.get(InventoryDigest.bucket(filename)).compute(filename, (k, old) -> {
+            if (old != null) digest.remove(k, old);
+            digest.add(k, size);
+            return size;
+        });
+    }
+
+    /** A file was deleted. */
+    public void remove(String filename) {
+        listener.accept(filename);
+        buckets.get(InventoryDigest.bucket(filename)).computeIfPresent(filename, (k, old) -> {
+            digest.remove(k, old);
+            return null;
+        });
+    }
+
+    public boolean contains(String filename) {
+        return buckets.get(InventoryDigest.bucket(filename)).containsKey(filename);
+    }
+
+    /** Live view of the files in one digest bucket. */
+    public Map<String, Long> bucket(int b) {
+        return buckets.get(b);
+    }
+
+    public InventoryDigest getDigest() {
+        return digest;
+    }
+
+    public int size() {
+        int n = 0;
+        for (Map<String, Long> b : buckets) n += b.size();
+        return n;
+    }
+}
@@ -0,0 +1,82 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Order-independent digest of a set of (filename, size) entries, split into
+ * BUCKETS buckets by a hash of the name. Each bucket holds the sum of its
+ * entries' 64-bit hashes, so adding or removing one file is a single atomic
+ * add, and the root folds the bucket sums into one value. Two sides holding
+ * the same files have the same root; when the roots differ, only buckets
+ * whose sums differ need to be listed (a two-level Merkle tree).
+ *
+ * The Dstore keeps one over its folder ({@link Inventory}), the Controller
+ * one per Dstore over what its Index expects there.
+ */
+public final class InventoryDigest {
+    public static final int BUCKETS = 1024;
+
+    private final AtomicLongArray sums = new AtomicLongArray(BUCKETS);
+
+    public void add(String filename, long size) {
+        add(nameHash(filename), size);
+    }
+
+    /** As above, taking the name's {@link #nameHash} so it is worked out once for several digests. */
+    void add(long nameHash, long size) {
+        sums.addAndGet(bucketOf(nameHash), leafOf(nameHash, size));
+    }
+
+    public void remove(String filename, long size) {
+        sums.addAndGet(bucket(filename), -leaf(filename, size));
+    }
+
+    public long[] buckets() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = sums.get(i);
+        return copy;
+    }
+
+    public long root() {
+        return root(buckets());
+    }
+
+    public static long root(long[] buckets) {
+        long h = 0;
+        for (long b : buckets) h = mix(h ^ b);
+        return h;
+    }
+
+    public static int bucket(String filename) {
+        return bucketOf(nameHash(filename));
+    }
+
+    static long leaf(String filename, long size) {
+        return leafOf(nameHash(filename), size);
+    }
+
+    private static int bucketOf(long nameHash) {
+        return (int) (nameHash >>> 54) & (BUCKETS - 1);
+    }
+
+    private static long leafOf(long nameHash, long size) {
+        return mix(nameHash ^ mix(size));
+    }
+
+    /** FNV-1a over the UTF-8 bytes, the same on every JVM. */
+    static long nameHash(String filename) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : filename.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /** splitmix64 finaliser. */
+    private static long mix(long z) {
+        z += 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,18 +1,16 @@
 import java.io.IOException;
-import java.net.Socket;
 
 public class JoinHandler implements CommandHandler {
     private final Controller ctrl;
     public JoinHandler(Controller ctrl) { this.ctrl = ctrl; }
 
     @Override
-    public void handle(String[] parts, Socket socket) throws IOException {
+    public void handle(String[] parts, Connection connection) throws IOException {
         // parts = ["<JOIN>", "<dstorePort>"]
         int dport = Integer.parseInt(parts[1]);
-        // Open persistent sender back to the Dstore's listening port:
-        TCPSender sender = new TCPSender(socket);
-        ctrl.addDstore(dport, sender);
-        // Map the incoming socket → the dstore port for later ACKs:
-        ctrl.mapSocketToPort(socket, dport);
+        // Map the incoming connection → the dstore port for later ACKs:
+        ctrl.mapConnectionToPort(connection, dport);
+        // The Dstore's own connection carries our commands back to it:
+        ctrl.addDstore(dport, connection);
     }
 }
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * LIST_PAGE pageSize [prefix [cursor]] → LIST_PAGE nextCursor name…
+ *
+ * One page of completed filenames in name order, optionally only those
+ * starting with prefix, resuming after cursor. nextCursor is the last name
+ * sent, or empty once there is nothing more; pass it back to get the next
+ * page. Each page is read straight off the Index's sorted set, so a request
+ * costs O(log n + pageSize) however many files there are. Pages are capped at
+ * MAX_PAGE names and half a frame. A text client leaves the prefix empty
+ * with two spaces, e.g. "LIST_PAGE 100  file42".
+ */
+public class ListPageHandler implements CommandHandler {
+    static final int MAX_PAGE = 10_000;
+    private static final int MAX_REPLY_BYTES = BinaryProtocol.MAX_FRAME_LENGTH / 2;
+
+    private final Controller ctrl;
+    public ListPageHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["LIST_PAGE", "<pageSize>", "<prefix>"?, "<cursor>"?]
+        int pageSize;
+        try {
+            pageSize = Math.max(1, Math.min(MAX_PAGE, Integer.parseInt(parts[1])));
+        } catch (RuntimeException e) {
+            System.err.println("Malformed LIST_PAGE message");
+            return;
+        }
+        String prefix = parts.length > 2 ? parts[2] : "";
+        String cursor = parts.length > 3 ? parts[3] : "";
+        if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
+            client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        NavigableSet<String> names = ctrl.getIndex().getCompleteFileNames();
+        NavigableSet<String> from = cursor.compareTo(prefix) >= 0 && !cursor.isEmpty()
+                ? names.tailSet(cursor, false)
+                : names.tailSet(prefix, true);
+        List<Object> fields = new ArrayList<>(Math.max(1, Math.min(pageSize, 1024)) + 1);
+        fields.add("");
+        int bytes = 0;
+        String last = null;
+        boolean more = false;
+        for (String name : from) {
+            if (!name.startsWith(prefix)) break;
+            if (fields.size() > pageSize || bytes > MAX_REPLY_BYTES) {
+                more = true;
+                break;
+            }
+            fields.add(name);
+            bytes += 3 + name.getBytes(StandardCharsets.UTF_8).length;
+            last = name;
+        }
+        if (more) fields.set(0, last);
+        client.reply(Protocol.LIST_PAGE_TOKEN, fields.toArray());
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LOAD_BATCH filename [filename …]
+ *   → LOAD_FROM_BATCH (filename LOAD_FROM port filesize | filename ERROR_…)…
+ *
+ * Many LOADs for one round trip. Each file's replica is picked by the
+ * {@link ReplicaSelector} as for LOAD, and RELOAD filename walks through
+ * the rest of its replicas as if it had been loaded on its own. A file that
+ * does not exist gets ERROR_FILE_DOES_NOT_EXIST, and a chunked one ERROR_LOAD.
+ */
+public class LoadBatchHandler implements CommandHandler {
+    private final Controller ctrl;
+    public LoadBatchHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["LOAD_BATCH", "filename"…]
+        List<String> filenames = BatchRequest.filenames(parts, 1);
+        if (filenames == null) return;
+
+        if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
+            client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        List<Object> fields = new ArrayList<>(filenames.size() * 4);
+        for (String filename : filenames) {
+            fields.add(filename);
+            FileInfo info = ctrl.getIndex().getFileInfo(filename);
+            if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) {
+                fields.add(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                continue;
+            }
+            if (info.isChunked()) {
+                fields.add(Protocol.ERROR_LOAD_TOKEN);
+                continue;
+            }
+            List<Integer> ports = ctrl.getReplicaSelector().order(info.getdStorePorts(),
+                    ctrl.getDstorePortstoSenders()::containsKey, info.getFileSize());
+            ctrl.getReplicaSelector().onAssigned(ports.getFirst(), filename);
+            fields.add(Protocol.LOAD_FROM_TOKEN);
+            fields.add(ports.getFirst());
+            fields.add(info.getFileSize());
+            ctrl.trackLoadRequest(filename, client, ports);
+        }
+        client.reply(Protocol.LOAD_FROM_BATCH_TOKEN, fields.toArray());
+        ctrl.countBatch(filenames.size());
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LOAD_CHUNKED filename
+ *   → LOAD_FROM_CHUNKED filesize n (chunkName chunkSize k port×k)×n
+ *
+ * Every chunk with all of its replicas, so the client can fetch chunks from
+ * many Dstores at once with LOAD_DATA chunkName and fail over on its own. A
+ * file stored whole comes back as a single chunk under its own name.
+ */
+public class LoadChunkedHandler implements CommandHandler {
+    private final Controller ctrl;
+    public LoadChunkedHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["LOAD_CHUNKED", "filename"]
+        if (parts.length != 2) {
+            return;
+        }
+        if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
+            client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        String filename = parts[1];
+        Index index = ctrl.getIndex();
+        FileInfo info = index.getFileInfo(filename);
+        if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) {
+            client.reply(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        if (info.isErasureCoded()) {
+            // shards are not pieces of the file; LOAD_EC decodes them
+            client.reply(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        List<Object> fields = new ArrayList<>();
+        fields.add(info.getFileSize());
+        if (!info.isChunked()) {
+            fields.add(1);
+            addChunk(fields, filename, info);
+        } else {
+            fields.add(info.getChunkCount());
+            for (int i = 0; i < info.getChunkCount(); i++) {
+                String chunk = FileInfo.chunkName(filename, i);
+                FileInfo chunkInfo = index.getFileInfo(chunk);
+                if (chunkInfo == null || chunkInfo.getdStorePorts().isEmpty()) {
+                    // every copy of this chunk went with its Dstores
+                    System.err.println("⚠ " + chunk + " has no replica left");
+                    client.reply(Protocol.ERROR_LOAD_TOKEN);
+                    return;
+                }
+                addChunk(fields, chunk, chunkInfo);
+            }
+        }
+        client.reply(Protocol.LOAD_FROM_CHUNKED_TOKEN, fields.toArray());
+    }
+
+    private static void addChunk(List<Object> fields, String name, FileInfo info) {
+        List<Integer> ports = List.copyOf(info.getdStorePorts());
+        fields.add(name);
+        fields.add(info.getFileSize());
+        fields.add(ports.size());
+        fields.addAll(ports);
+    }
+}
@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+public class LoadDoneHandler implements CommandHandler {
+    private final Controller ctrl;
+    public LoadDoneHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // parts = ["LOAD_DONE", "filename", "micros", "bytes", "ok", "whole"]
+        Integer dport = ctrl.getConnectionToPort().get(dstore);
+        if (dport == null || parts.length != 6) {
+            System.err.println("Stray LOAD_DONE from " + dstore);
+            return;
+        }
+        ctrl.getReplicaSelector().onDone(dport, parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                                         "1".equals(parts[4]), "1".equals(parts[5]));
+    }
+}
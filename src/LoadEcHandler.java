@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LOAD_EC filename
+ *   → LOAD_FROM_EC filesize shardSize k m port×(k+m)
+ *
+ * Where each shard filename#~i of an erasure-coded file lives, -1 for a
+ * shard that is gone (its Dstore left and it has not been rebuilt yet). The
+ * client fetches any k of them with LOAD_DATA and decodes; the data shards
+ * alone need no decoding. ERROR_LOAD if fewer than k are left.
+ */
+public class LoadEcHandler implements CommandHandler {
+    private final Controller ctrl;
+    public LoadEcHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["LOAD_EC", "filename"]
+        if (parts.length != 2) {
+            return;
+        }
+        String filename = parts[1];
+        Index index = ctrl.getIndex();
+        FileInfo info = index.getFileInfo(filename);
+        if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) {
+            client.reply(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        if (!info.isErasureCoded()) {
+            client.reply(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        List<Object> fields = new ArrayList<>();
+        fields.add(info.getFileSize());
+        fields.add(info.getChunkSize());
+        fields.add(info.getDataShards());
+        fields.add(info.getParityShards());
+        int present = 0;
+        for (int i = 0; i < info.getChunkCount(); i++) {
+            int port = ctrl.shardPort(FileInfo.chunkName(filename, i));
+            if (port >= 0) present++;
+            fields.add(port);
+        }
+        if (present < info.getDataShards()) {
+            System.err.println("⚠ " + filename + " has only " + present + " of " + info.getDataShards() + " shards needed");
+            client.reply(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        client.reply(Protocol.LOAD_FROM_EC_TOKEN, fields.toArray());
+    }
+}
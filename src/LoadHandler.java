@@ -1,39 +1,63 @@
 import java.io.IOException;
-import java.net.Socket;
-
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LOAD filename [ALL]
+ *   → LOAD_FROM port filesize [port…]
+ *
+ * The {@link ReplicaSelector} picks the replica and orders the rest, which
+ * RELOAD then walks through. With ALL the other replicas follow the first,
+ * so a client can fetch disjoint ranges from several of them at once
+ * (LOAD_DATA filename offset length); without it the reply is the classic one.
+ */
 public class LoadHandler implements CommandHandler {
     private final Controller ctrl;
     public LoadHandler(Controller ctrl) { this.ctrl = ctrl; }
 
     @Override
-    public void handle(String[] parts, Socket clientSocket) throws IOException {
-        // parts = ["<LOAD>", "filename"]
-        String[] args = parts[1].split(" ");
-        if (args.length != 1) {
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["<LOAD>", "filename", "ALL"?]
+        boolean allReplicas = parts.length == 3 && Protocol.ALL_REPLICAS_FLAG.equals(parts[2]);
+        if (parts.length != 2 && !allReplicas) {
             return;
         }
 
         // Check if enough Dstores are available
         if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
-            new TCPSender(clientSocket).sendOneWay(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
             return;
         }
 
         String filename = parts[1];
         FileInfo info = ctrl.getIndex().getFileInfo(filename);
 
-        TCPSender client = new TCPSender(clientSocket);
         if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) {
-            client.sendOneWay(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            client.reply(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        if (info.isChunked()) {
+            // no single Dstore has it whole; the client has to use LOAD_CHUNKED
+            client.reply(Protocol.ERROR_LOAD_TOKEN);
             return;
         }
 
 
 
-        int dport = info.getdStorePorts().getFirst();
-        String resp = Protocol.LOAD_FROM_TOKEN + " " + dport + " " + info.getFileSize();
-        client.sendOneWay(resp);
-        ctrl.trackLoadRequest(filename, clientSocket, info.getdStorePorts());
-        System.out.println("ports: " + info.getdStorePorts());
+        List<Integer> ports = ctrl.getReplicaSelector().order(info.getdStorePorts(),
+                ctrl.getDstorePortstoSenders()::containsKey, info.getFileSize());
+        if (allReplicas) {
+            // the client spreads ranges over all of them, so no one replica is handed the load
+            List<Object> fields = new ArrayList<>(ports.size() + 1);
+            fields.add(ports.getFirst());
+            fields.add(info.getFileSize());
+            fields.addAll(ports.subList(1, ports.size()));
+            client.reply(Protocol.LOAD_FROM_TOKEN, fields.toArray());
+        } else {
+            ctrl.getReplicaSelector().onAssigned(ports.getFirst(), filename);
+            client.reply(Protocol.LOAD_FROM_TOKEN, ports.getFirst(), info.getFileSize());
+        }
+        ctrl.trackLoadRequest(filename, client, ports);
+        System.out.println("ports: " + ports);
     }
 }
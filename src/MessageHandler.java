@@ -1,7 +1,7 @@
 import java.io.IOException;
-import java.net.Socket;
 
 @FunctionalInterface
 public interface MessageHandler {
-    void handle(String message, Socket socket) throws IOException;
+    /** @param parts the message token followed by its fields */
+    void handle(String[] parts, Connection connection) throws IOException;
 }
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector-based alternative to TCPReceiver for the Controller's control plane.
+ * A handful of event loops own all connections; each loop reads whatever is
+ * available, frames complete lines (or BinaryProtocol frames, if the client
+ * opened with the handshake) without blocking and dispatches them to the
+ * MessageHandler on the loop thread, so idle connections cost no thread at all.
+ *
+ * Only suitable for text traffic: handlers must not read from the socket
+ * themselves (Dstores still use TCPReceiver because STORE reads raw bytes).
+ * Replies go out through ChannelOutputStream, which queues what the socket
+ * does not take at once; the loop sends the rest on OP_WRITE. Connections
+ * passed to attach() are still served the blocking way by TCPReceiver.
+ * The number of loops is set with -Dreceiver.nioLoops.
+ */
+public class NioTCPReceiver extends TCPReceiver {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_MESSAGE_LENGTH = BinaryProtocol.MAX_FRAME_LENGTH + 4;
+
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    public NioTCPReceiver(int port, MessageHandler handler, DisconnectListener listener, int timeout) {
+        super(port, handler, listener, timeout);
+        int n = Integer.getInteger("receiver.nioLoops",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.loops = new EventLoop[Math.max(1, n)];
+    }
+
+    @Override
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            new Thread(loops[i], "NioTCPReceiver-loop-" + port + "-" + i).start();
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), backlog);
+        System.out.println("NioTCPReceiver listening on port " + port + " (loops=" + loops.length
+                + ", maxConnections=" + maxConnections + ", backlog=" + backlog + ")");
+
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel client = server.accept();
+                    if (!connectionPermits.tryAcquire()) {
+                        rejectedConnections.incrementAndGet();
+                        System.err.println("⚠ Connection limit reached, rejecting " + client.getRemoteAddress());
+                        client.close();
+                        continue;
+                    }
+                    acceptedConnections.incrementAndGet();
+                    register(client);
+                } catch (IOException e) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }, "NioTCPReceiver-accept-" + port);
+        acceptor.start();
+    }
+
+    private void register(SocketChannel ch) {
+        Connection connection;
+        try {
+            ch.configureBlocking(false);
+            connection = new Connection(ch.socket());
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            connectionPermits.release();
+            return;
+        }
+        liveConnections.incrementAndGet();
+        EventLoop loop;
+        synchronized (loops) {
+            loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+        loop.pending.add(new ChannelState(ch, connection));
+        loop.selector.wakeup();
+    }
+
+    /** Per-connection framing state. */
+    private static final class ChannelState {
+        final SocketChannel channel;
+        final Connection connection;
+        boolean negotiated;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        ChannelState(SocketChannel channel, Connection connection) {
+            this.channel = channel;
+            this.connection = connection;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<ChannelState> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    ChannelState c;
+                    while ((c = pending.poll()) != null) {
+                        adopt(c);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isWritable()) {
+                            onWritable(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            onReadable(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                }
+            }
+        }
+
+        /** Registers a new connection with this loop; one that cannot be is closed. */
+        private void adopt(ChannelState c) {
+            try {
+                SelectionKey key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                c.connection.getChannelOutput().attach(key);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Connection error: " + e.getMessage());
+                SelectionKey key = c.channel.keyFor(selector);
+                if (key != null) key.cancel();
+                liveConnections.decrementAndGet();
+                connectionPermits.release();
+                c.connection.close();
+            }
+        }
+
+        private void onWritable(SelectionKey key) {
+            ChannelState c = (ChannelState) key.attachment();
+            try {
+                if (c.connection.getChannelOutput().onWritable()) close(key, c);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Connection error: " + e.getMessage());
+                close(key, c);
+            }
+        }
+
+        private void onReadable(SelectionKey key) {
+            ChannelState c = (ChannelState) key.attachment();
+            try {
+                int n = c.channel.read(c.buffer);
+                if (n < 0) {
+                    close(key, c);
+                    return;
+                }
+                dispatch(c);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Connection error: " + e.getMessage());
+                close(key, c);
+            }
+        }
+
+        /** Hands every complete message in the buffer to the handler, keeps the partial tail. */
+        private void dispatch(ChannelState c) throws IOException {
+            ByteBuffer buf = c.buffer;
+            buf.flip();
+            if (!c.negotiated && buf.hasRemaining()) {
+                if (buf.get(buf.position()) == BinaryProtocol.MAGIC) {
+                    if (buf.remaining() < 2) {
+                        buf.compact();
+                        return;
+                    }
+                    buf.get();
+                    byte version = buf.get();
+                    if (version != BinaryProtocol.VERSION) {
+                        throw new IOException("Unsupported binary protocol version " + version);
+                    }
+                    c.connection.enableBinary();
+                }
+                c.negotiated = true;
+            }
+
+            if (c.connection.isBinary()) {
+                dispatchFrames(c, buf);
+            } else {
+                dispatchLines(c, buf);
+            }
+            buf.compact();
+
+            if (!buf.hasRemaining()) {
+                if (buf.capacity() > MAX_MESSAGE_LENGTH) {
+                    throw new IOException("Message exceeds " + MAX_MESSAGE_LENGTH + " bytes");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                buf.flip();
+                bigger.put(buf);
+                c.buffer = bigger;
+            }
+        }
+
+        private void dispatchLines(ChannelState c, ByteBuffer buf) throws IOException {
+            int start = buf.position();
+            for (int i = start; i < buf.limit(); i++) {
+                if (buf.get(i) != '\n') continue;
+                int end = (i > start && buf.get(i - 1) == '\r') ? i - 1 : i;
+                String line = new String(buf.array(), start, end - start, StandardCharsets.UTF_8);
+                c.connection.recordReceived(i + 1 - start);
+                start = i + 1;
+                System.out.println("Received: " + line);
+                handler.handle(line.split(" "), c.connection);
+            }
+            buf.position(start);
+        }
+
+        private void dispatchFrames(ChannelState c, ByteBuffer buf) throws IOException {
+            while (buf.remaining() >= 4) {
+                int pos = buf.position();
+                int length = buf.getInt(pos);
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (buf.remaining() < 4 + length) return;
+
+                BinaryProtocol.Frame frame = BinaryProtocol.decode(buf.slice(pos + 4, length));
+                buf.position(pos + 4 + length);
+                c.connection.recordReceived(4 + length);
+                c.connection.beginRequest(frame.requestId);
+                System.out.println("Received: " + String.join(" ", frame.parts) + " #" + frame.requestId);
+                handler.handle(frame.parts, c.connection);
+            }
+        }
+
+        private void close(SelectionKey key, ChannelState c) {
+            key.cancel();
+            liveConnections.decrementAndGet();
+            connectionPermits.release();
+            Listener.onDisconnect(c.connection);
+            c.connection.close();
+            System.out.println("Closed " + c.connection);
+        }
+    }
+}
@@ -0,0 +1,515 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small files packed into large append-only segments, so a Dstore holding
+ * millions of them does not pay an inode and an open/close for each.
+ * With -Ddstore.packThreshold=N, plain uploads of at most N bytes are
+ * appended to fileFolder/.pack/seg-&lt;n&gt;.dat instead of getting a file of
+ * their own; larger ones, and deflated ones, are kept as before. A segment
+ * is sealed once it passes -Ddstore.segmentBytes (default 64 MB) and the
+ * next one started.
+ *
+ * Each record is magic, type, name, then for a PUT the size, CRC32C and
+ * SHA-256 of the contents followed by the contents; a DEL (tombstone) is
+ * only the name. The name → record index lives in memory and is rebuilt at
+ * startup by reading the record headers in segment order, and a torn
+ * record at the end of a segment is cut off. Segments stay open, and
+ * LOAD_DATA sends a record straight from its segment with sendfile(2).
+ *
+ * A sealed segment in which at least -Ddstore.compactRatio of the bytes
+ * (default 0.5) belong to removed or replaced files is compacted in the
+ * background: its live records are appended to the current segment and
+ * forced to disk, and it is deleted once the last read from it has finished. A tombstone is
+ * carried over only while an older segment might still hold the record it
+ * deletes.
+ *
+ * As with {@link Compression}, a name is kept in one form only: packing a
+ * file deletes its plain or deflated copy, and writing it in another form
+ * (which the {@link Inventory} reports) appends a tombstone.
+ */
+public class PackStore {
+    static final String DIR = ".pack";
+    private static final int MAGIC = 0x504b5231; // "PKR1"
+    private static final byte PUT = 1, DEL = 2;
+    // magic, type, name length
+    private static final int PREFIX_SIZE = 4 + 1 + 2;
+    // size, CRC32C, SHA-256
+    private static final int PUT_FIELDS_SIZE = 8 + 4 + 32;
+
+    private final Path folder;
+    private final Path dir;
+    private final Compression compression;
+    private final long threshold = Long.getLong("dstore.packThreshold", 0L);
+    private final long segmentBytes = Long.getLong("dstore.segmentBytes", 64L << 20);
+    private final double compactRatio = Double.parseDouble(System.getProperty("dstore.compactRatio", "0.5"));
+    private final Map<String, Extent> index = new HashMap<>();
+    private final Map<String, Set<String>> byHash = new HashMap<>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Set<Long> compacting = new HashSet<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "PackStore-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private Segment active;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    /** One segment file; kept open for reads and, while it is the current one, appends. */
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        // bytes of records that are the current version of their file
+        long live;
+        int readers;
+        boolean retired;
+
+        Segment(long id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /** Where one file's current record is. */
+    private static final class Extent {
+        final String name;
+        final Segment segment;
+        final int recordLength;
+        final long body;
+        final long size;
+        final int crc;
+        final String hash;
+
+        Extent(String name, Segment segment, int recordLength, long body, long size, int crc, String hash) {
+            this.name = name;
+            this.segment = segment;
+            this.recordLength = recordLength;
+            this.body = body;
+            this.size = size;
+            this.crc = crc;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A packed file opened for reading. Its segment is not deleted by
+     * compaction until this is closed.
+     */
+    public final class Region implements AutoCloseable {
+        private final Extent extent;
+        private boolean closed;
+
+        private Region(Extent extent) {
+            this.extent = extent;
+        }
+
+        public FileChannel channel() { return extent.segment.channel; }
+        public long position() { return extent.body; }
+        public long size() { return extent.size; }
+        public int crc() { return extent.crc; }
+
+        /** False once the file has been removed or written over. */
+        public boolean isCurrent() {
+            synchronized (PackStore.this) {
+                return index.get(extent.name) == extent;
+            }
+        }
+
+        /** The contents, read with positional reads. */
+        public InputStream stream() {
+            return new InputStream() {
+                private long done;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (done >= extent.size) return -1;
+                    ByteBuffer dst = ByteBuffer.wrap(b, off, (int) Math.min(len, extent.size - done));
+                    int n = channel().read(dst, extent.body + done);
+                    if (n < 0) throw new EOFException("Segment ends inside a record");
+                    done += n;
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            synchronized (PackStore.this) {
+                if (closed) return;
+                closed = true;
+                if (--extent.segment.readers == 0 && extent.segment.retired) deleteSegment(extent.segment);
+            }
+        }
+    }
+
+    /** Reads the segments on disk and adds the files in them to inventory. */
+    public PackStore(String fileFolder, Inventory inventory, Compression compression) throws IOException {
+        this.folder = new File(fileFolder).toPath();
+        this.dir = folder.resolve(DIR);
+        this.compression = compression;
+        Files.createDirectories(dir);
+
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "seg-*.dat")) {
+            for (Path p : entries) {
+                String name = p.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        ids.sort(null);
+        for (long id : ids) {
+            Path p = segmentPath(id);
+            FileChannel channel = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment seg = new Segment(id, p, channel, 0);
+            segments.put(id, seg);
+            replay(seg);
+        }
+        for (String name : List.copyOf(index.keySet())) {
+            // written in another form since
+            if (Files.exists(folder.resolve(name)) || compression.contains(name)) delete(name);
+        }
+        for (Map.Entry<String, Extent> e : index.entrySet()) inventory.put(e.getKey(), e.getValue().size);
+        System.out.printf("Pack: %d files in %d segments%n", index.size(), segments.size());
+        for (Segment seg : List.copyOf(segments.values())) {
+            if (seg != active) maybeCompact(seg);
+        }
+    }
+
+    /** True if a plain upload of this size is to be packed. */
+    public boolean accepts(long size) {
+        return threshold > 0 && size <= Math.min(threshold, segmentBytes);
+    }
+
+    public synchronized boolean contains(String filename) {
+        return index.containsKey(filename);
+    }
+
+    /** CRC32C in a packed file's record, or null if filename is not packed. */
+    public synchronized Integer crcOf(String filename) {
+        Extent extent = index.get(filename);
+        return extent == null ? null : extent.crc;
+    }
+
+    /** @return the size, or -1 if filename is not packed */
+    public synchronized long size(String filename) {
+        Extent e = index.get(filename);
+        return e == null ? -1 : e.size;
+    }
+
+    /** Opens a packed file for reading; null if filename is not packed. Close it when done. */
+    public synchronized Region open(String filename) {
+        Extent e = index.get(filename);
+        if (e == null) return null;
+        e.segment.readers++;
+        return new Region(e);
+    }
+
+    /** Packs contents under filename, replacing any copy of it in another form. */
+    public void put(String filename, byte[] contents, int crc, String hash) throws IOException {
+        Files.deleteIfExists(folder.resolve(filename));
+        compression.delete(filename);
+        append(filename, contents, crc, hash);
+    }
+
+    /**
+     * STORE_LINK: packs filename with the contents of a packed file with this hash.
+     * @return the file's size, or -1 if there is none of that size
+     */
+    public long link(String filename, String hash, long size) throws IOException {
+        byte[] contents;
+        int crc;
+        Region r;
+        synchronized (this) {
+            Set<String> same = byHash.get(hash);
+            if (same == null || same.isEmpty()) return -1;
+            r = open(same.iterator().next());
+            if (r.size() != size) {
+                r.close();
+                return -1;
+            }
+        }
+        try (r) {
+            contents = r.stream().readAllBytes();
+            crc = r.crc();
+        }
+        put(filename, contents, crc, hash);
+        return contents.length;
+    }
+
+    /** @return false if filename was not packed */
+    public synchronized boolean delete(String filename) {
+        Extent old = index.remove(filename);
+        if (old == null) return false;
+        unlinkHash(filename, old);
+        old.segment.live -= old.recordLength;
+        try {
+            writeRecord(filename, DEL, null, 0, null);
+        } catch (IOException e) {
+            System.err.println("⚠ Could not write tombstone for " + filename + ": " + e.getMessage());
+        }
+        maybeCompact(old.segment);
+        return true;
+    }
+
+    /** filename was written; if that was in another form, the packed copy goes. */
+    public void onChange(String filename) {
+        if (!contains(filename)) return;
+        if (Files.exists(folder.resolve(filename)) || compression.contains(filename)) delete(filename);
+    }
+
+    /** filename's record is corrupt: nothing new is linked to it. */
+    public synchronized void distrust(String filename) {
+        Extent e = index.get(filename);
+        if (e != null) byHash.remove(e.hash);
+    }
+
+    private synchronized void append(String filename, byte[] contents, int crc, String hash) throws IOException {
+        Extent e = writeRecord(filename, PUT, contents, crc, hash);
+        Extent old = index.put(filename, e);
+        if (old != null) {
+            unlinkHash(filename, old);
+            old.segment.live -= old.recordLength;
+            maybeCompact(old.segment);
+        }
+        e.segment.live += e.recordLength;
+        byHash.computeIfAbsent(hash, h -> new HashSet<>()).add(filename);
+    }
+
+    /** Appends a record to the current segment, starting the next one if it is full. */
+    private Extent writeRecord(String filename, byte type, byte[] contents, int crc, String hash) throws IOException {
+        if (active == null || active.size >= segmentBytes) {
+            long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            Segment sealed = active;
+            Path p = segmentPath(id);
+            active = new Segment(id, p, FileChannel.open(p, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE), 0);
+            segments.put(id, active);
+            if (sealed != null) maybeCompact(sealed);
+        }
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int headerLength = PREFIX_SIZE + name.length + (type == PUT ? PUT_FIELDS_SIZE : 0);
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(MAGIC).put(type).putShort((short) name.length).put(name);
+        if (type == PUT) header.putLong(contents.length).putInt(crc).put(HexFormat.of().parseHex(hash));
+        header.flip();
+        ByteBuffer[] record = type == PUT ? new ByteBuffer[] { header, ByteBuffer.wrap(contents) }
+                                          : new ByteBuffer[] { header };
+        long start = active.size;
+        long position = start;
+        for (ByteBuffer b : record) {
+            while (b.hasRemaining()) position += active.channel.write(b, position);
+        }
+        active.size = position;
+        return type != PUT ? null : new Extent(filename, active, (int) (position - start), start + headerLength,
+                                               contents.length, crc, hash);
+    }
+
+    /** Rebuilds the index from one segment's records, cutting off a torn one at the end. */
+    private void replay(Segment seg) throws IOException {
+        FileChannel ch = seg.channel;
+        long length = ch.size();
+        long position = 0;
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+        while (position < length) {
+            prefix.clear();
+            if (readFully(ch, prefix, position) < PREFIX_SIZE || prefix.getInt(0) != MAGIC) break;
+            byte type = prefix.get(4);
+            int nameLength = Short.toUnsignedInt(prefix.getShort(5));
+            if (type != PUT && type != DEL) break;
+            ByteBuffer rest = ByteBuffer.allocate(nameLength + (type == PUT ? PUT_FIELDS_SIZE : 0));
+            if (readFully(ch, rest, position + PREFIX_SIZE) < rest.capacity()) break;
+            rest.flip();
+            byte[] name = new byte[nameLength];
+            rest.get(name);
+            String filename = new String(name, StandardCharsets.UTF_8);
+            long headerEnd = position + PREFIX_SIZE + rest.capacity();
+            Extent old;
+            if (type == PUT) {
+                long size = rest.getLong();
+                int crc = rest.getInt();
+                byte[] sha = new byte[32];
+                rest.get(sha);
+                if (size < 0 || headerEnd + size > length) break;
+                Extent e = new Extent(filename, seg, (int) (headerEnd + size - position), headerEnd, size, crc,
+                                      HexFormat.of().formatHex(sha));
+                old = index.put(filename, e);
+                seg.live += e.recordLength;
+                byHash.computeIfAbsent(e.hash, h -> new HashSet<>()).add(filename);
+                position = headerEnd + size;
+            } else {
+                old = index.remove(filename);
+                position = headerEnd;
+            }
+            if (old != null) {
+                unlinkHash(filename, old);
+                old.segment.live -= old.recordLength;
+            }
+        }
+        if (position < length) {
+            System.err.println("⚠ Cutting off a torn record at " + position + " in " + seg.path);
+            ch.truncate(position);
+        }
+        seg.size = position;
+        active = seg;
+    }
+
+    private static int readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private void unlinkHash(String filename, Extent e) {
+        Set<String> same = byHash.get(e.hash);
+        if (same != null && same.remove(filename) && same.isEmpty()) byHash.remove(e.hash);
+    }
+
+    /** Queues seg for compaction if it is sealed and mostly dead. */
+    private void maybeCompact(Segment seg) {
+        if (seg == active || seg.retired || compacting.contains(seg.id)) return;
+        if (seg.size - seg.live < compactRatio * seg.size) return;
+        compacting.add(seg.id);
+        compactor.execute(() -> compact(seg));
+    }
+
+    private void compact(Segment seg) {
+        try {
+            List<String> tombstones = new ArrayList<>();
+            List<Extent> live = new ArrayList<>();
+            synchronized (this) {
+                for (Extent e : index.values()) {
+                    if (e.segment == seg) live.add(e);
+                }
+            }
+            // the segment is sealed, so it can be read without the lock
+            scanTombstones(seg, tombstones);
+            Set<Segment> written = new HashSet<>();
+            for (Extent x : live) {
+                byte[] contents = new byte[(int) x.size];
+                readFully(seg.channel, ByteBuffer.wrap(contents), x.body);
+                synchronized (this) {
+                    if (index.get(x.name) == x) {
+                        append(x.name, contents, x.crc, x.hash);
+                        written.add(active);
+                    }
+                }
+            }
+            synchronized (this) {
+                boolean older = segments.firstKey() < seg.id;
+                for (String name : tombstones) {
+                    if (older && !index.containsKey(name)) {
+                        writeRecord(name, DEL, null, 0, null);
+                        written.add(active);
+                    }
+                }
+            }
+            // the copies must be on disk before the only other copy is deleted
+            for (Segment s : written) s.channel.force(false);
+            if (!written.isEmpty()) syncDir();
+            synchronized (this) {
+                segments.remove(seg.id);
+                seg.retired = true;
+                reclaimed.addAndGet(seg.size - seg.live);
+                if (seg.readers == 0) deleteSegment(seg);
+                compactions.incrementAndGet();
+            }
+            System.out.println("Compacted " + seg.path.getFileName() + ": moved " + live.size() + " files");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠ Could not compact " + seg.path + ": " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                compacting.remove(seg.id);
+            }
+        }
+    }
+
+    private static void scanTombstones(Segment seg, List<String> names) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+        long position = 0;
+        while (position < seg.size) {
+            prefix.clear();
+            readFully(seg.channel, prefix, position);
+            byte type = prefix.get(4);
+            int nameLength = Short.toUnsignedInt(prefix.getShort(5));
+            if (type == DEL) {
+                ByteBuffer name = ByteBuffer.allocate(nameLength);
+                readFully(seg.channel, name, position + PREFIX_SIZE);
+                names.add(new String(name.array(), StandardCharsets.UTF_8));
+                position += PREFIX_SIZE + nameLength;
+            } else {
+                ByteBuffer size = ByteBuffer.allocate(8);
+                readFully(seg.channel, size, position + PREFIX_SIZE + nameLength);
+                position += PREFIX_SIZE + nameLength + PUT_FIELDS_SIZE + size.getLong(0);
+            }
+        }
+    }
+
+    /** Makes segment files created or deleted so far survive a crash. */
+    private void syncDir() throws IOException {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        }
+    }
+
+    private void deleteSegment(Segment seg) {
+        try {
+            seg.channel.close();
+            Files.deleteIfExists(seg.path);
+        } catch (IOException e) {
+            System.err.println("⚠ Could not delete " + seg.path + ": " + e.getMessage());
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return dir.resolve("seg-" + id + ".dat");
+    }
+
+    public synchronized void addStats(Map<String, Object> stats) {
+        long bytes = 0;
+        for (Extent e : index.values()) bytes += e.size;
+        long dead = 0;
+        for (Segment s : segments.values()) dead += s.size - s.live;
+        stats.put("packedFiles",       index.size());
+        stats.put("packedBytes",       bytes);
+        stats.put("packSegments",      segments.size());
+        stats.put("packDeadBytes",     dead);
+        stats.put("packCompactions",   compactions.get());
+        stats.put("packReclaimedBytes", reclaimed.get());
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads a replicated file from all of its replicas at once. LOAD with
+ * ALL names every replica; the file is cut into PART_SIZE parts, and each
+ * replica has its own connection pulling the next part with a ranged
+ * LOAD_DATA and writing it in place, so faster Dstores simply take more
+ * parts. When a transfer breaks off, the rest of its part goes back on the
+ * queue for the remaining replicas to pick up from the byte it stopped at,
+ * and that replica is not used again.
+ */
+public final class ParallelLoader {
+    private static final long PART_SIZE = 4L << 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 30_000;
+
+    private ParallelLoader() {}
+
+    /** Loads filename into target, replacing its contents. */
+    public static void load(Connection controller, String filename, File target) throws IOException {
+        controller.send(Protocol.LOAD_TOKEN, filename, Protocol.ALL_REPLICAS_FLAG);
+        String[] reply = controller.readMessage();
+        if (reply == null) throw new IOException("Controller closed the connection");
+        if (!Protocol.LOAD_FROM_TOKEN.equals(reply[0])) throw new IOException(filename + ": " + reply[0]);
+        long size = Long.parseLong(reply[2]);
+        List<Integer> replicas = new ArrayList<>();
+        replicas.add(Integer.parseInt(reply[1]));
+        for (int i = 3; i < reply.length; i++) replicas.add(Integer.parseInt(reply[i]));
+
+        Deque<long[]> parts = new ConcurrentLinkedDeque<>();
+        for (long offset = 0; offset < size; offset += PART_SIZE) {
+            parts.add(new long[] { offset, Math.min(PART_SIZE, size - offset) });
+        }
+        Set<Integer> live = ConcurrentHashMap.newKeySet();
+        live.addAll(replicas);
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // a part given back after the other workers finished needs another round
+            while (!parts.isEmpty()) {
+                if (live.isEmpty()) throw new IOException("No replica of " + filename + " could send the rest");
+                try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                    for (int port : live) executor.execute(() -> drain(port, filename, parts, out, live));
+                }
+            }
+        }
+    }
+
+    private static void drain(int port, String filename, Deque<long[]> parts, FileChannel out, Set<Integer> live) {
+        long[] part;
+        while ((part = parts.poll()) != null) {
+            long got = fetchRange(port, filename, part[0], part[1], out);
+            if (got < part[1]) {
+                System.err.println("⚠ " + port + " sent " + got + " of " + part[1] + " bytes at " + part[0]
+                        + " of " + filename + "; resuming from another replica");
+                parts.addFirst(new long[] { part[0] + got, part[1] - got });
+                live.remove(port);
+                return;
+            }
+        }
+    }
+
+    /**
+     * LOAD_DATA filename offset length from one Dstore, written to out at the
+     * same offset. Also the way to resume a download: ask for the bytes
+     * after the ones already on disk.
+     * @return how many bytes arrived before the stream ended or failed
+     */
+    public static long fetchRange(int port, String filename, long offset, long length, FileChannel out) {
+        long got = 0;
+        Connection ds = null;
+        try {
+            ds = Connection.openBinary("localhost", port);
+            ds.getSocket().setSoTimeout(TIMEOUT_MS);
+            ds.send(Protocol.LOAD_DATA_TOKEN, filename, offset, length);
+            InputStream in = ds.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (got < length) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - got));
+                if (n < 0) break;
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                while (bytes.hasRemaining()) out.write(bytes, offset + got + bytes.position());
+                got += n;
+            }
+        } catch (IOException e) {
+            System.err.println("⚠ Range " + offset + "+" + length + " of " + filename + " from " + port
+                    + " stopped after " + got + " bytes: " + e.getMessage());
+        } finally {
+            if (ds != null) ds.close();
+        }
+        return got;
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One client STORE or REMOVE waiting for Dstore acknowledgements.
+ * Remembers who asked and under which request id, so the completion can be
+ * sent whenever the last ack arrives, regardless of what else the client has
+ * in flight on the same connection. For a chunked file the acks of all its
+ * chunks count towards the one request. A file of a batch reports how it
+ * ended to its {@link BatchRequest} instead of to the client.
+ */
+public class PendingRequest {
+    private final String filename;
+    private final Connection.ReplyTo client;
+    private final AtomicInteger remainingAcks;
+    private final List<String> chunks;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final BatchRequest batch;
+    private final int slot;
+
+    public PendingRequest(String filename, int expectedAcks, Connection.ReplyTo client) {
+        this(filename, List.of(), expectedAcks, client);
+    }
+
+    public PendingRequest(String filename, List<String> chunks, int expectedAcks, Connection.ReplyTo client) {
+        this(filename, chunks, expectedAcks, client, null, -1);
+    }
+
+    /** File slot of batch. */
+    public PendingRequest(String filename, List<String> chunks, int expectedAcks, BatchRequest batch, int slot) {
+        this(filename, chunks, expectedAcks, batch.getClient(), batch, slot);
+    }
+
+    private PendingRequest(String filename, List<String> chunks, int expectedAcks, Connection.ReplyTo client,
+                           BatchRequest batch, int slot) {
+        this.filename = filename;
+        this.chunks = chunks;
+        this.client = client;
+        this.remainingAcks = new AtomicInteger(expectedAcks);
+        this.batch = batch;
+        this.slot = slot;
+    }
+
+    /** The request succeeded: tells the client, or the batch, with token. */
+    public void complete(String token) {
+        if (batch != null) batch.settle(slot, token);
+        else client.send(token);
+    }
+
+    /**
+     * The request failed. A lone request leaves the client waiting, as the
+     * spec says; a batch lists the file with the error token.
+     */
+    public void fail(String token) {
+        if (batch != null) batch.settle(slot, token);
+    }
+
+    /**
+     * Counts one ack.
+     * @return true for exactly the ack that brings the count to zero
+     */
+    public boolean ack() {
+        if (batch != null) batch.touch();
+        return remainingAcks.getAndUpdate(n -> n > 0 ? n - 1 : 0) == 1;
+    }
+
+    /**
+     * Claims the right to answer the client, so a late ack and the timeout
+     * never both act on the same request.
+     * @return true for the first caller only
+     */
+    public boolean finish() {
+        return finished.compareAndSet(false, true);
+    }
+
+    public boolean isFinished() { return finished.get(); }
+    public String getFilename() { return filename; }
+    /** Chunk entry names, empty for a whole file. */
+    public List<String> getChunks() { return chunks; }
+    public Connection.ReplyTo getClient() { return client; }
+    public int getRemainingAcks() { return remainingAcks.get(); }
+}
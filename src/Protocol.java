@@ -12,17 +12,41 @@ public class Protocol {
 	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // also the Controller's reply
+	public final static String STORE_CHUNKED_TOKEN = "STORE_CHUNKED";
+	public final static String LOAD_CHUNKED_TOKEN = "LOAD_CHUNKED";
+	public final static String STORE_EC_TOKEN = "STORE_EC";
+	public final static String LOAD_EC_TOKEN = "LOAD_EC";
+	public final static String ALL_REPLICAS_FLAG = "ALL"; // LOAD filename ALL
+	public final static String STORE_CODEC_TOKEN = "STORE_CODEC"; // to Dstores
+	public final static String LOAD_CODEC_TOKEN = "LOAD_CODEC"; // to Dstores, which answer with it
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH";
+	public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+	public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // also from Controller
 	
 	// messages sent by the Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String STORE_TO_CHUNKED_TOKEN = "STORE_TO_CHUNKED";
+	public final static String LOAD_FROM_CHUNKED_TOKEN = "LOAD_FROM_CHUNKED";
+	public final static String STORE_TO_EC_TOKEN = "STORE_TO_EC";
+	public final static String LOAD_FROM_EC_TOKEN = "LOAD_FROM_EC";
+	public final static String REBUILD_SHARD_TOKEN = "REBUILD_SHARD"; // also answered by Dstores
+	public final static String STORE_LINK_TOKEN = "STORE_LINK";
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
+	public final static String STORE_TO_BATCH_TOKEN = "STORE_TO_BATCH";
+	public final static String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE";
+	public final static String LOAD_FROM_BATCH_TOKEN = "LOAD_FROM_BATCH";
+	public final static String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String DIGEST_TOKEN = "DIGEST"; // also answered by Dstores
+	public final static String DIGEST_BUCKETS_TOKEN = "DIGEST_BUCKETS"; // also answered by Dstores
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String ERROR_TIMEOUT_TOKEN = "ERROR_TIMEOUT"; // a file of a batch that did not complete
 	
 	// messages sent by Dstores
 	public final static String ACK_TOKEN = "ACK";
@@ -31,4 +55,9 @@ public class Protocol {
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String LOAD_DONE_TOKEN = "LOAD_DONE";
+	public final static String CORRUPT_TOKEN = "CORRUPT"; // found by the scrubber
+
+	// diagnostics, answered by both the Controller and Dstores
+	public final static String STATS_TOKEN = "STATS";
 }
@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the contents of hot small files in direct (off-heap) ByteBuffers so
+ * LOAD_DATA can serve them without touching the filesystem. Bounded in bytes
+ * (-Ddstore.cacheBytes, default 64 MB, 0 turns it off); files larger than
+ * -Ddstore.cacheMaxFile (default 1 MB) are always streamed from disk.
+ *
+ * Eviction is W-TinyLFU: new entries go into a small LRU window (1% of the
+ * space); when the window overflows, its oldest entry has to win against
+ * the main area's next victim on estimated access frequency
+ * ({@link FrequencySketch}) to stay, so a burst of one-off reads cannot
+ * flush out the files that are read all the time. The main area is a
+ * segmented LRU: a second hit promotes an entry from probation to protected.
+ *
+ * {@link Inventory} invalidates an entry whenever its file is stored over,
+ * removed or rebuilt; a file read from disk while that happens is not
+ * admitted. One lock guards the policy; copies to sockets run outside it.
+ */
+public class ReadCache {
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final Map<String, Node> nodes = new HashMap<>();
+    // access order within each segment: eldest first
+    private final List<LinkedHashMap<String, Node>> segments = List.of(
+            new LinkedHashMap<>(), new LinkedHashMap<>(), new LinkedHashMap<>());
+    private final long[] segmentBytes = new long[3];
+    private final FrequencySketch sketch;
+    // bumped by every invalidation, so a read that raced with one is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    public ReadCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.windowMax = Math.max(maxBytes / 100, this.maxFileBytes);
+        this.protectedMax = (maxBytes - windowMax) * 4 / 5;
+        // sized for entries of about 4 KB
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, maxBytes >> 12)));
+    }
+
+    /** From -Ddstore.cacheBytes and -Ddstore.cacheMaxFile; null if caching is off. */
+    public static ReadCache fromProperties() {
+        long bytes = Long.getLong("dstore.cacheBytes", 64L << 20);
+        return bytes <= 0 ? null : new ReadCache(bytes, Long.getLong("dstore.cacheMaxFile", 1L << 20));
+    }
+
+    /**
+     * The file's contents, from the cache or read from disk and offered to
+     * it, as a read-only buffer of its own; null if the file is too big to
+     * cache (stream it instead) or cannot be read.
+     */
+    public ByteBuffer get(String fileFolder, String filename) {
+        boolean worthReading;
+        synchronized (this) {
+            sketch.increment(filename);
+            Node node = nodes.get(filename);
+            if (node != null) {
+                hits.incrementAndGet();
+                onHit(node);
+                return node.data.duplicate();
+            }
+            // once full, a file read for the first time in a while is streamed,
+            // not copied in: it would most likely lose its admission contest anyway
+            worthReading = usedBytes() + maxFileBytes <= maxBytes || sketch.frequency(filename) >= 2;
+        }
+        misses.incrementAndGet();
+        if (!worthReading) return null;
+        File file = new File(fileFolder, filename);
+        long size = file.length();
+        if (size <= 0 || size > maxFileBytes) return null;
+
+        long before = generation.get();
+        ByteBuffer data;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data = ByteBuffer.allocateDirect((int) fc.size());
+            while (data.hasRemaining() && fc.read(data) >= 0) { }
+            data.flip();
+        } catch (IOException e) {
+            return null;
+        }
+        data = data.asReadOnlyBuffer();
+        synchronized (this) {
+            if (generation.get() == before && !nodes.containsKey(filename)) admit(filename, data);
+        }
+        return data.duplicate();
+    }
+
+    /** The file changed or went away. */
+    public void invalidate(String filename) {
+        synchronized (this) {
+            generation.incrementAndGet();
+            Node node = nodes.remove(filename);
+            if (node != null) unlink(node);
+        }
+    }
+
+    private void onHit(Node node) {
+        if (node.segment == PROBATION) {
+            unlink(node);
+            link(node, PROTECTED);
+            // demote the protected segment's eldest to make room
+            while (segmentBytes[PROTECTED] > protectedMax) {
+                Node eldest = eldest(PROTECTED);
+                unlink(eldest);
+                link(eldest, PROBATION);
+            }
+        } else {
+            unlink(node);
+            link(node, node.segment);
+        }
+    }
+
+    private void admit(String filename, ByteBuffer data) {
+        Node node = new Node(filename, data);
+        nodes.put(filename, node);
+        link(node, WINDOW);
+        while (segmentBytes[WINDOW] > windowMax) {
+            Node candidate = eldest(WINDOW);
+            unlink(candidate);
+            link(candidate, PROBATION);
+            makeRoom(candidate);
+        }
+    }
+
+    /** Evicts from the main area until everything fits, or drops candidate if it loses. */
+    private void makeRoom(Node candidate) {
+        while (usedBytes() > maxBytes) {
+            Node victim = eldest(PROBATION);
+            if (victim == candidate) victim = next(PROBATION, candidate);
+            if (victim == null) victim = eldest(PROTECTED);
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                nodes.remove(candidate.key);
+                unlink(candidate);
+                rejections.incrementAndGet();
+                return;
+            }
+            nodes.remove(victim.key);
+            unlink(victim);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private long usedBytes() {
+        return segmentBytes[WINDOW] + segmentBytes[PROBATION] + segmentBytes[PROTECTED];
+    }
+
+    private void link(Node node, int segment) {
+        node.segment = segment;
+        segments.get(segment).put(node.key, node);
+        segmentBytes[segment] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        if (segments.get(node.segment).remove(node.key) != null) segmentBytes[node.segment] -= node.weight;
+    }
+
+    private Node eldest(int segment) {
+        Iterator<Node> it = segments.get(segment).values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private Node next(int segment, Node after) {
+        Iterator<Node> it = segments.get(segment).values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == after) return it.hasNext() ? it.next() : null;
+        }
+        return null;
+    }
+
+    public void addStats(Map<String, Object> stats) {
+        stats.put("cacheHits",       hits.get());
+        stats.put("cacheMisses",     misses.get());
+        stats.put("cacheEvictions",  evictions.get());
+        stats.put("cacheRejections", rejections.get());
+        synchronized (this) {
+            stats.put("cacheEntries", nodes.size());
+            stats.put("cacheBytes",   usedBytes());
+        }
+    }
+
+    private static final class Node {
+        final String key;
+        final ByteBuffer data;
+        final int weight;
+        int segment;
+
+        Node(String key, ByteBuffer data) {
+            this.key = key;
+            this.data = data;
+            this.weight = data.capacity();
+        }
+    }
+}
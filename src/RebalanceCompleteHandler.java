@@ -0,0 +1,24 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class RebalanceCompleteHandler implements CommandHandler {
+    private final Controller ctrl;
+    public RebalanceCompleteHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // parts = ["REBALANCE_COMPLETE", failed filename...]
+        Integer dport = ctrl.getConnectionToPort().get(dstore);
+        if (dport == null) {
+            System.err.println("REBALANCE_COMPLETE from unknown connection");
+            return;
+        }
+        List<String> failed = Arrays.asList(parts).subList(1, parts.length);
+        // parts carry no job name: the request id tells a re-replication from a rebalance job
+        if (!ctrl.getRereplicator().onComplete(dstore.getRequestId(), failed)
+                && !ctrl.getRebalancer().onComplete(dport, dstore.getRequestId(), failed)) {
+            System.err.println("REBALANCE_COMPLETE from " + dport + " for unknown job #" + dstore.getRequestId());
+        }
+    }
+}
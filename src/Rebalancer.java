@@ -0,0 +1,329 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads replicas evenly over the Dstores. A round plans from the Index
+ * alone, then sends each Dstore that has work one REBALANCE listing the
+ * files it should copy to which peers and the files it should then delete.
+ * Dstores copy directly to each other (REBALANCE_STORE), in parallel and
+ * under their own bandwidth cap, and answer REBALANCE_COMPLETE listing the
+ * files they could not copy or delete; only then is the rest of that
+ * Dstore's part of the plan applied to the Index.
+ *
+ * The plan is minimal-move: missing replicas are added and surplus ones
+ * dropped first, then single files are moved from the fullest Dstore to the
+ * emptiest until every Dstore holds between floor and ceil of R*F/N files.
+ * Only STORE_COMPLETE files are touched and no lock is held while transfers
+ * run, so client STORE/LOAD/REMOVE carry on as normal. One round at a time.
+ * Files the Rereplicator is already restoring are left to it, as are shards
+ * of erasure-coded files (a move could land one beside a sibling), and
+ * nothing is planned while Dstores from a recovered index have yet to
+ * rejoin.
+ *
+ * Each job goes out under its own negative request id (the Rereplicator
+ * uses positive ones). A round that times out only lets the next one
+ * start: its jobs are kept until their Dstore answers or leaves, so a late
+ * REBALANCE_COMPLETE is still applied, and their files are left out of
+ * planning meanwhile.
+ */
+public class Rebalancer {
+    // keeps every REBALANCE well within one BinaryProtocol frame; the rest waits for the next round
+    private static final int MAX_JOB_BYTES = BinaryProtocol.MAX_FRAME_LENGTH / 2;
+    private static final int NUMBER_BYTES = 9;
+
+    private final Controller ctrl;
+    private final ScheduledExecutorService scheduler;
+    private final long roundTimeoutMs;
+    private final AtomicBoolean running = new AtomicBoolean();
+    // by request id
+    private final Map<Integer, Job> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile int round;
+
+    public Rebalancer(Controller ctrl, ScheduledExecutorService scheduler, long roundTimeoutMs) {
+        this.ctrl = ctrl;
+        this.scheduler = scheduler;
+        this.roundTimeoutMs = roundTimeoutMs;
+    }
+
+    /** Runs a round every periodSeconds (and whenever {@link #trigger} is called). */
+    public void schedule(long periodSeconds) {
+        if (periodSeconds <= 0) return;
+        scheduler.scheduleWithFixedDelay(this::run, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Asks for a round soon, e.g. after a Dstore joins. */
+    public void trigger() {
+        scheduler.execute(this::run);
+    }
+
+    /** Starts a round unless one is still in flight. */
+    public void run() {
+        if (!running.compareAndSet(false, true)) return;
+        try {
+            Map<Integer, Job> jobs = plan();
+            if (jobs.isEmpty()) {
+                running.set(false);
+                return;
+            }
+            int thisRound = ++round;
+            System.out.println("→ Rebalance round " + thisRound + ": " + jobs.values());
+            for (Job job : jobs.values()) {
+                job.round = thisRound;
+                job.id = nextRequestId.updateAndGet(i -> i == Integer.MIN_VALUE ? -1 : i - 1);
+                inFlight.put(job.id, job);
+                Connection ds = ctrl.getDstorePortstoSenders().get(job.port);
+                if (ds == null || !ds.sendRequest(job.id, Protocol.REBALANCE_TOKEN, job.toFields())) {
+                    inFlight.remove(job.id);
+                }
+            }
+            finishIfDone();
+            scheduler.schedule(() -> onTimeout(thisRound), roundTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            System.err.println("⚠ Rebalance failed: " + e);
+            running.set(false);
+        }
+    }
+
+    /**
+     * REBALANCE_COMPLETE from a Dstore under one of our request ids: its
+     * copies landed and its deletes are done, except for the failed files,
+     * which it still holds and which did not reach (all) their targets.
+     * @return false if the id is not one of ours
+     */
+    public boolean onComplete(int port, int requestId, Collection<String> failed) {
+        Job job = inFlight.get(requestId);
+        if (job == null || job.port != port) return false;
+        inFlight.remove(requestId);
+        Index index = ctrl.getIndex();
+        Set<String> touched = new LinkedHashSet<>(job.sends.keySet());
+        touched.addAll(job.removes);
+        for (Map.Entry<String, List<Integer>> send : job.sends.entrySet()) {
+            if (failed.contains(send.getKey())) continue;
+            for (int target : send.getValue()) {
+                // a target that has left since will not be serving it
+                if (ctrl.getDstorePortstoSenders().containsKey(target)) index.addReplica(send.getKey(), target);
+            }
+        }
+        for (String filename : job.removes) {
+            if (failed.contains(filename)) continue;
+            // the Dstore has deleted it whether or not the copy's target is still there
+            FileInfo info = index.getFileInfo(filename);
+            if (!index.removeReplica(filename, port) && info != null && info.getdStorePorts().equals(List.of(port))) {
+                System.err.println("⚠ " + filename + " was moved off " + port + " but its target has left");
+            }
+        }
+        System.out.println("✔ REBALANCE_COMPLETE from " + port + " " + job
+                + (failed.isEmpty() ? "" : " failed " + failed)
+                + (job.round == round && running.get() ? "" : " (late)"));
+        // anything now short of replicas, e.g. moved to a target that has since left
+        ctrl.getRereplicator().enqueue(touched);
+        finishIfDone();
+        return true;
+    }
+
+    /** A departed Dstore will never complete; forget its jobs. */
+    public void onDstoreLeft(int port) {
+        if (inFlight.values().removeIf(job -> job.port == port)) finishIfDone();
+    }
+
+    private void onTimeout(int expiredRound) {
+        if (expiredRound != round || !running.get()) return;
+        List<Integer> waiting = new ArrayList<>();
+        for (Job job : inFlight.values()) {
+            if (job.round == expiredRound) waiting.add(job.port);
+        }
+        if (waiting.isEmpty()) return;
+        // keep the jobs: a late REBALANCE_COMPLETE is still applied
+        System.err.println("⚠ Rebalance round " + expiredRound + " timed out waiting for " + waiting);
+        running.set(false);
+    }
+
+    /** Ends the current round once none of its jobs is outstanding. */
+    private void finishIfDone() {
+        int current = round;
+        for (Job job : inFlight.values()) {
+            if (job.round == current) return;
+        }
+        running.set(false);
+    }
+
+    /** Files an outstanding job (of this round or an expired one) is still copying or deleting. */
+    private Set<String> busyFiles() {
+        Set<String> busy = new HashSet<>();
+        for (Job job : inFlight.values()) {
+            busy.addAll(job.sends.keySet());
+            busy.addAll(job.removes);
+        }
+        return busy;
+    }
+
+    public boolean isRunning() { return running.get(); }
+
+    // ─── planning ─────────────────────────────────────────────────────────────────
+
+    /** Computes this round's work, keyed by the Dstore that has to do it. */
+    Map<Integer, Job> plan() {
+        Index index = ctrl.getIndex();
+        int r = ctrl.getReplicationFactor();
+        List<Integer> live = new ArrayList<>(ctrl.getDstorePortstoSenders().keySet());
+        Map<Integer, Job> jobs = new HashMap<>();
+        // Dstores from a recovered index may still rejoin with their files
+        if (live.size() < r || !index.getAbsentDstores().isEmpty()) return jobs;
+
+        // Current placement of complete files on live Dstores
+        Set<String> busy = busyFiles();
+        Map<Integer, Set<String>> holds = new HashMap<>();
+        Map<String, Set<Integer>> replicas = new HashMap<>();
+        for (int port : live) {
+            Set<String> files = new HashSet<>();
+            for (String filename : index.getFilesOn(port)) {
+                FileInfo info = index.getFileInfo(filename);
+                if (info != null && info.getFileState() == Index.FileState.STORE_COMPLETE
+                        && !ctrl.getRereplicator().isPending(filename) && !ctrl.isShard(filename)
+                        && !busy.contains(filename)) {
+                    files.add(filename);
+                    replicas.computeIfAbsent(filename, f -> new HashSet<>()).add(port);
+                }
+            }
+            holds.put(port, files);
+        }
+        // Planned counts; incoming copies count straight away, so does an outgoing delete
+        Map<Integer, Integer> count = new HashMap<>();
+        for (int port : live) count.put(port, holds.get(port).size());
+        Comparator<Integer> emptiestFirst = Comparator.comparingInt(count::get);
+
+        // 1) Too few or too many replicas
+        for (Map.Entry<String, Set<Integer>> e : replicas.entrySet()) {
+            String filename = e.getKey();
+            Set<Integer> has = e.getValue();
+            if (has.size() < r) {
+                int source = has.iterator().next();
+                List<Integer> targets = new ArrayList<>(live);
+                targets.removeAll(has);
+                targets.sort(emptiestFirst);
+                for (int t : targets.subList(0, Math.min(r - has.size(), targets.size()))) {
+                    if (job(jobs, source).send(filename, t)) count.merge(t, 1, Integer::sum);
+                }
+            } else if (has.size() > r) {
+                List<Integer> holders = new ArrayList<>(has);
+                holders.sort(emptiestFirst.reversed());
+                for (int h : holders.subList(0, has.size() - r)) {
+                    if (job(jobs, h).remove(filename)) count.merge(h, -1, Integer::sum);
+                }
+            }
+        }
+
+        // 2) Move single files from the fullest to the emptiest Dstore
+        int total = 0;
+        for (int c : count.values()) total += c;
+        int lo = total / live.size();
+        int hi = (total + live.size() - 1) / live.size();
+        Set<Integer> saturated = new HashSet<>();
+        while (true) {
+            List<Integer> byCount = new ArrayList<>(live);
+            byCount.sort(emptiestFirst);
+            int min = byCount.getFirst();
+            int max = -1;
+            for (int i = byCount.size() - 1; i >= 0; i--) {
+                if (!saturated.contains(byCount.get(i))) { max = byCount.get(i); break; }
+            }
+            if (max < 0 || max == min) break;
+            if (count.get(max) <= hi && count.get(min) >= lo) break;
+            if (count.get(max) - count.get(min) < 2) break;
+
+            String moved = null;
+            Job job = job(jobs, max);
+            for (String filename : holds.get(max)) {
+                if (job.removes.contains(filename) || replicas.get(filename).contains(min)
+                        || job.sends.containsKey(filename) || isIncoming(jobs, filename, min)) continue;
+                moved = filename;
+                break;
+            }
+            if (moved == null || !job.fits(Job.nameBytes(moved) + 2 * NUMBER_BYTES)) {
+                saturated.add(max);
+                continue;
+            }
+            job.send(moved, min);
+            job.remove(moved);
+            count.merge(max, -1, Integer::sum);
+            count.merge(min, 1, Integer::sum);
+        }
+        jobs.values().removeIf(Job::isEmpty);
+        return jobs;
+    }
+
+    private static Job job(Map<Integer, Job> jobs, int port) {
+        return jobs.computeIfAbsent(port, Job::new);
+    }
+
+    private static boolean isIncoming(Map<Integer, Job> jobs, String filename, int port) {
+        for (Job j : jobs.values()) {
+            List<Integer> targets = j.sends.get(filename);
+            if (targets != null && targets.contains(port)) return true;
+        }
+        return false;
+    }
+
+    /** One Dstore's part of a round. */
+    static final class Job {
+        final int port;
+        int id;
+        int round;
+        final Map<String, List<Integer>> sends = new LinkedHashMap<>();
+        final Set<String> removes = new LinkedHashSet<>();
+        private int fields = 2;
+        private int bytes = 2 * NUMBER_BYTES;
+
+        Job(int port) { this.port = port; }
+
+        static int nameBytes(String filename) {
+            return 3 + filename.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+        }
+
+        boolean fits(int more) { return bytes + more <= MAX_JOB_BYTES; }
+
+        boolean send(String filename, int target) {
+            boolean first = !sends.containsKey(filename);
+            int cost = first ? nameBytes(filename) + 2 * NUMBER_BYTES : NUMBER_BYTES;
+            if (!fits(cost)) return false;
+            sends.computeIfAbsent(filename, f -> new ArrayList<>()).add(target);
+            fields += first ? 3 : 1;
+            bytes += cost;
+            return true;
+        }
+
+        boolean remove(String filename) {
+            int cost = nameBytes(filename);
+            if (!fits(cost) || !removes.add(filename)) return false;
+            fields++;
+            bytes += cost;
+            return true;
+        }
+
+        boolean isEmpty() { return sends.isEmpty() && removes.isEmpty(); }
+
+        /** REBALANCE fields: n, then (file, k, port×k)×n, then m, then file×m. */
+        Object[] toFields() {
+            List<Object> out = new ArrayList<>(fields);
+            out.add(sends.size());
+            for (Map.Entry<String, List<Integer>> e : sends.entrySet()) {
+                out.add(e.getKey());
+                out.add(e.getValue().size());
+                out.addAll(e.getValue());
+            }
+            out.add(removes.size());
+            out.addAll(removes);
+            return out.toArray();
+        }
+
+        @Override
+        public String toString() {
+            return port + "(send=" + sends + ", remove=" + removes + ")";
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+public class RebuildShardHandler implements CommandHandler {
+    private final Controller ctrl;
+    public RebuildShardHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // a Dstore answering the ShardRepairer, under the id of its request
+        Integer dport = ctrl.getConnectionToPort().get(dstore);
+        if (dport == null) {
+            System.err.println("REBUILD_SHARD from unknown connection");
+            return;
+        }
+        ctrl.getShardRepairer().onRebuilt(dport, dstore.getRequestId());
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks a joining Dstore's files against the Index without listing them all.
+ * The Controller sends DIGEST with the root of the digest the Index keeps for
+ * that port; a match ends it there. Otherwise the Dstore returns its bucket
+ * sums, and only the buckets that differ are fetched with DIGEST_BUCKETS and
+ * compared file by file:
+ *   - expected but missing (or a different size): the replica is dropped
+ *     from the Index and the file queued for re-replication (a shard is
+ *     queued to be rebuilt)
+ *   - present but not expected: adopted if the file is complete, short of
+ *     its replicas, the same size and has the CRC32C the Index has for it;
+ *     otherwise deleted from the Dstore, and a file short of replicas is
+ *     copied there again from a holder the Index knows of
+ * Files that are being stored or removed are left alone. Rebalancing waits
+ * until the check is over (or has timed out), so it plans from a true picture.
+ */
+public class Reconciler {
+    // keeps each DIGEST_BUCKETS request small; the Dstore also caps its reply
+    private static final int MAX_BUCKETS_PER_REQUEST = 64;
+
+    private final Controller ctrl;
+    private final ScheduledExecutorService scheduler;
+    private final long timeoutMs;
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong bucketsFetched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong adopted = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+
+    public Reconciler(Controller ctrl, ScheduledExecutorService scheduler, long timeoutMs) {
+        this.ctrl = ctrl;
+        this.scheduler = scheduler;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** Starts checking a Dstore that just joined; calls back Controller.onReconciled when done. */
+    public void start(int port) {
+        Session session = new Session(port);
+        sessions.put(port, session);
+        request(session, Protocol.DIGEST_TOKEN, ctrl.getIndex().getDigest(port).root());
+    }
+
+    /** DIGEST from a Dstore: nothing more if it matched, else its bucket sums. */
+    public void onDigest(int port, int requestId, String[] parts) {
+        Session session = current(port, requestId);
+        if (session == null) return;
+        if (parts.length == 1) {
+            System.out.println("✔ Dstore " + port + " matches the index");
+            finish(session);
+            return;
+        }
+        long[] expected = ctrl.getIndex().getDigest(port).buckets();
+        for (int b = 0; b < InventoryDigest.BUCKETS && b + 1 < parts.length; b++) {
+            if (Long.parseLong(parts[b + 1]) != expected[b]) session.differing.add(b);
+        }
+        // what the index places in those buckets, in one pass over the Dstore's files
+        for (String filename : ctrl.getIndex().getFilesOn(port)) {
+            int b = InventoryDigest.bucket(filename);
+            if (session.differing.contains(b)) {
+                session.expected.computeIfAbsent(b, x -> new ArrayList<>()).add(filename);
+            }
+        }
+        System.out.println("→ Dstore " + port + " differs from the index in "
+                + session.differing.size() + " of " + InventoryDigest.BUCKETS + " buckets");
+        requestBuckets(session);
+    }
+
+    /** DIGEST_BUCKETS from a Dstore: (bucket n (filename size crc)×n)… */
+    public void onBuckets(int port, int requestId, String[] parts) {
+        Session session = current(port, requestId);
+        if (session == null) return;
+        int i = 1;
+        while (i < parts.length) {
+            int b = Integer.parseInt(parts[i++]);
+            int n = Integer.parseInt(parts[i++]);
+            Map<String, Long> actual = new HashMap<>(n * 2);
+            Map<String, Integer> crcs = new HashMap<>(n * 2);
+            for (int f = 0; f < n; f++) {
+                String filename = parts[i++];
+                actual.put(filename, Long.parseLong(parts[i++]));
+                String crc = parts[i++];
+                if (Checksums.isCrc(crc)) crcs.put(filename, Checksums.parse(crc));
+            }
+            if (session.differing.remove(b)) {
+                reconcile(port, session.expected.getOrDefault(b, List.of()), actual, crcs);
+                bucketsFetched.incrementAndGet();
+            }
+        }
+        requestBuckets(session);
+    }
+
+    private void requestBuckets(Session session) {
+        if (session.differing.isEmpty()) {
+            finish(session);
+            return;
+        }
+        List<Object> fields = new ArrayList<>();
+        for (int b : session.differing) {
+            if (fields.size() == MAX_BUCKETS_PER_REQUEST) break;
+            fields.add(b);
+        }
+        request(session, Protocol.DIGEST_BUCKETS_TOKEN, fields.toArray());
+    }
+
+    /** Sends the session's next request; gives up if it is not answered in time. */
+    private void request(Session session, String token, Object... fields) {
+        int id = nextRequestId.updateAndGet(i -> i == Integer.MAX_VALUE ? 1 : i + 1);
+        session.requestId = id;
+        Connection ds = ctrl.getDstorePortstoSenders().get(session.port);
+        if (ds == null || !ds.sendRequest(id, token, fields)) {
+            finish(session);
+            return;
+        }
+        scheduler.schedule(() -> {
+            if (current(session.port, id) == session) {
+                System.err.println("⚠ Reconciliation with " + session.port + " timed out");
+                finish(session);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconcile(int port, List<String> expected, Map<String, Long> actual, Map<String, Integer> crcs) {
+        Index index = ctrl.getIndex();
+        List<String> lostReplica = new ArrayList<>();
+        List<String> lostShard = new ArrayList<>();
+        for (String filename : expected) {
+            FileInfo info = index.getFileInfo(filename);
+            if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) continue;
+            Long size = actual.get(filename);
+            if (size != null && size == info.getFileSize()) continue;
+            if (ctrl.isShard(filename)) {
+                // a shard's only copy: forget it and rebuild it from its siblings
+                index.removeFileInfo(filename);
+                dropped.incrementAndGet();
+                lostShard.add(filename);
+                continue;
+            }
+            if (!index.removeReplica(filename, port)) {
+                System.err.println("⚠ Only replica of " + filename + " is missing from " + port);
+                continue;
+            }
+            dropped.incrementAndGet();
+            lostReplica.add(filename);
+        }
+        Connection ds = ctrl.getDstorePortstoSenders().get(port);
+        for (Map.Entry<String, Long> e : actual.entrySet()) {
+            String filename = e.getKey();
+            FileInfo info = index.getFileInfo(filename);
+            if (info != null && info.getdStorePorts().contains(port)) continue;
+            if (info != null && info.getFileState() != Index.FileState.STORE_COMPLETE) continue;
+            boolean wanted = info != null && info.getdStorePorts().size() < ctrl.targetReplicas(filename);
+            // name and size alone could be an older version: only the checksum says it is this content
+            if (wanted && info.getFileSize() == e.getValue() && info.getCrc32c() != null
+                    && info.getCrc32c().equals(crcs.get(filename)) && index.addReplica(filename, port)) {
+                adopted.incrementAndGet();
+                continue;
+            }
+            // unknown here, or a stale, unverifiable or surplus copy
+            if (ds != null && ds.send(Protocol.REMOVE_TOKEN, filename)) deleted.incrementAndGet();
+            if (wanted) lostReplica.add(filename);
+        }
+        ctrl.getRereplicator().enqueue(lostReplica);
+        ctrl.getShardRepairer().enqueue(lostShard);
+    }
+
+    private Session current(int port, int requestId) {
+        Session session = sessions.get(port);
+        return session != null && session.requestId == requestId ? session : null;
+    }
+
+    private void finish(Session session) {
+        if (!sessions.remove(session.port, session)) return;
+        checked.incrementAndGet();
+        ctrl.onReconciled(session.port);
+    }
+
+    public long getChecked() { return checked.get(); }
+    public long getBucketsFetched() { return bucketsFetched.get(); }
+    public long getDropped() { return dropped.get(); }
+    public long getAdopted() { return adopted.get(); }
+    public long getDeleted() { return deleted.get(); }
+
+    /** One Dstore being checked; only the handler for its latest request id touches it. */
+    private static final class Session {
+        final int port;
+        final Set<Integer> differing = new TreeSet<>();
+        final Map<Integer, List<String>> expected = new HashMap<>();
+        volatile int requestId;
+
+        Session(int port) { this.port = port; }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Systematic Reed-Solomon code over GF(2^8): k data shards plus m parity
+ * shards, any k of which rebuild the rest. The encoding matrix is a
+ * (k+m)×k Vandermonde matrix multiplied by the inverse of its top k rows, so
+ * the first k output shards are the data itself and only parity is computed.
+ *
+ * All shards of one stripe have the same length; the caller pads the last
+ * data shard with zeros.
+ */
+public final class ReedSolomon {
+    private static final int POLY = 0x11d;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    // MUL[a][b] = a·b, so inner loops are one table lookup per byte
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLY;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 256)
+            throw new IllegalArgumentException("Bad shard counts " + dataShards + "+" + parityShards);
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        byte[][] vandermonde = new byte[dataShards + parityShards][dataShards];
+        for (int r = 0; r < vandermonde.length; r++) {
+            for (int c = 0; c < dataShards; c++) vandermonde[r][c] = pow(r, c);
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() { return dataShards; }
+    public int getParityShards() { return parityShards; }
+
+    /** Fills shards[k..k+m) from shards[0..k); every shard must be allocated. */
+    public void encode(byte[][] shards) {
+        int len = shards[0].length;
+        for (int p = 0; p < parityShards; p++) {
+            byte[] out = shards[dataShards + p];
+            java.util.Arrays.fill(out, 0, len, (byte) 0);
+            byte[] row = matrix[dataShards + p];
+            for (int d = 0; d < dataShards; d++) mulAdd(row[d], shards[d], out, len);
+        }
+    }
+
+    /**
+     * Rebuilds the missing shards in place from any k present ones.
+     * @param shards  all k+m shards; missing ones may be null and are allocated
+     * @param present which entries of shards hold real data
+     * @throws IllegalArgumentException if fewer than k shards are present
+     */
+    public void decode(byte[][] shards, boolean[] present) {
+        int total = dataShards + parityShards;
+        int[] rows = new int[dataShards];
+        int found = 0;
+        int len = -1;
+        for (int i = 0; i < total && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+                len = shards[i].length;
+            }
+        }
+        if (found < dataShards)
+            throw new IllegalArgumentException("Only " + found + " of " + dataShards + " shards needed");
+
+        boolean dataMissing = false;
+        for (int d = 0; d < dataShards; d++) dataMissing |= !present[d];
+        if (dataMissing) {
+            // the k present rows of the encoding matrix, inverted, map them back to the data
+            byte[][] sub = new byte[dataShards][];
+            for (int i = 0; i < dataShards; i++) sub[i] = matrix[rows[i]].clone();
+            byte[][] inverse = invert(sub);
+            for (int d = 0; d < dataShards; d++) {
+                if (present[d]) continue;
+                byte[] out = new byte[len];
+                for (int i = 0; i < dataShards; i++) mulAdd(inverse[d][i], shards[rows[i]], out, len);
+                shards[d] = out;
+            }
+        }
+        for (int p = 0; p < parityShards; p++) {
+            int i = dataShards + p;
+            if (present[i]) continue;
+            byte[] out = new byte[len];
+            for (int d = 0; d < dataShards; d++) mulAdd(matrix[i][d], shards[d], out, len);
+            shards[i] = out;
+        }
+    }
+
+    private static void mulAdd(byte coefficient, byte[] in, byte[] out, int len) {
+        if (coefficient == 0) return;
+        byte[] table = MUL[coefficient & 0xff];
+        for (int i = 0; i < len; i++) out[i] ^= table[in[i] & 0xff];
+    }
+
+    private static byte mul(byte a, byte b) {
+        return MUL[a & 0xff][b & 0xff];
+    }
+
+    private static byte pow(int a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] out = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte v = 0;
+                for (int i = 0; i < b.length; i++) v ^= mul(a[r][i], b[i][c]);
+                out[r][c] = v;
+            }
+        }
+        return out;
+    }
+
+    /** Gauss-Jordan elimination; the rows of any k×k submatrix here are independent. */
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] a = new byte[n][];
+        byte[][] inv = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            a[i] = m[i].clone();
+            inv[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("Singular matrix");
+            byte[] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+            t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+
+            byte scale = EXP[255 - LOG[a[col][col] & 0xff]];
+            for (int c = 0; c < n; c++) {
+                a[col][c] = mul(a[col][c], scale);
+                inv[col][c] = mul(inv[col][c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                if (r == col || a[r][col] == 0) continue;
+                byte f = a[r][col];
+                for (int c = 0; c < n; c++) {
+                    a[r][c] ^= mul(f, a[col][c]);
+                    inv[r][c] ^= mul(f, inv[col][c]);
+                }
+            }
+        }
+        return inv;
+    }
+}
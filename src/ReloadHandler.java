@@ -1,28 +1,22 @@
-
-
-
 import java.io.IOException;
-import java.net.Socket;
 
 public class ReloadHandler implements CommandHandler {
     private final Controller ctrl;
     public ReloadHandler(Controller ctrl) { this.ctrl = ctrl; }
 
     @Override
-    public void handle(String[] parts, Socket clientSocket) throws IOException {
+    public void handle(String[] parts, Connection client) throws IOException {
         // parts = ["RELOAD","filename"]
         String filename = parts[1];
-        int nextPort = ctrl.nextLoadPort(filename, clientSocket);
+        int nextPort = ctrl.nextLoadPort(filename, client);
         if (nextPort < 0) {
             // no more replicas to try
-            new TCPSender(clientSocket)
-                    .sendOneWay(Protocol.ERROR_LOAD_TOKEN);
-            ctrl.clearLoadRequest(filename, clientSocket);
+            client.reply(Protocol.ERROR_LOAD_TOKEN);
+            ctrl.clearLoadRequest(filename, client);
         } else {
             // send LOAD_FROM nextPort filesize
             FileInfo info = ctrl.getIndex().getFileInfo(filename);
-            String msg = Protocol.LOAD_FROM_TOKEN + " " + nextPort + " " + info.getFileSize();
-            new TCPSender(clientSocket).sendOneWay(msg);
+            client.reply(Protocol.LOAD_FROM_TOKEN, nextPort, info.getFileSize());
         }
     }
 }
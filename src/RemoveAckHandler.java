@@ -1,34 +1,31 @@
 import java.io.IOException;
-import java.net.Socket;
-import java.util.concurrent.CountDownLatch;
 
 public class RemoveAckHandler implements CommandHandler {
     private final Controller ctrl;
     public RemoveAckHandler(Controller ctrl) { this.ctrl = ctrl; }
 
     @Override
-    public void handle(String[] parts, Socket socket) throws IOException {
-        String filename = parts[1];
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // parts = ["<REMOVE_ACK>", "filename"…]; one name, or all of a REMOVE_BATCH
+        for (int i = 1; i < parts.length; i++) {
+            ack(parts[i]);
+        }
+    }
 
-        synchronized(ctrl.getIndex()) {
-            // 1) re‑read under lock to see a consistent state
-            FileInfo info = ctrl.getIndex().getFileInfo(filename);
-            if (info == null || info.getFileState() != Index.FileState.REMOVE_IN_PROGRESS) {
-                return;
-            }
+    private void ack(String filename) {
+        FileInfo info = ctrl.getIndex().getFileInfo(filename);
+        if (info == null || info.getFileState() != Index.FileState.REMOVE_IN_PROGRESS) {
+            return;
         }
-        CountDownLatch latch = ctrl.getPendingRemoveLatches(filename);
-        if (latch != null) {
-            latch.countDown();
-            long remaining = latch.getCount();
+        PendingRequest request = ctrl.getPendingRemove(filename);
+        if (request != null && !request.isFinished()) {
+            boolean last = request.ack();
             System.out.printf("✔ Remove_ACK %s (remaining=%d)%n",
-                    filename, remaining);
+                    filename, request.getRemainingAcks());
 
-            if (remaining == 0) {
-                ctrl.onRemoveSuccess(filename);
+            if (last) {
+                ctrl.onRemoveSuccess(request);
             }
         }
-
-
     }
 }
@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REMOVE_BATCH filename [filename …]
+ *   → REMOVE_BATCH_COMPLETE (filename status)…
+ *
+ * Many REMOVEs for one round trip. Every file is marked in the same pass,
+ * then each Dstore gets one REMOVE_BATCH naming everything it has to drop
+ * (the chunks, for a chunked file), and answers with one REMOVE_ACK listing
+ * them. Once every file is acked, or the batch's one timeout fires, the
+ * client gets REMOVE_COMPLETE, ERROR_FILE_DOES_NOT_EXIST or ERROR_TIMEOUT
+ * for each file, in the order they were asked for.
+ */
+public class RemoveBatchHandler implements CommandHandler {
+    private final Controller ctrl;
+    public RemoveBatchHandler(Controller ctrl) { this.ctrl = ctrl; }
+
+    @Override
+    public void handle(String[] parts, Connection client) throws IOException {
+        // parts = ["REMOVE_BATCH", "filename"…]
+        List<String> filenames = BatchRequest.filenames(parts, 1);
+        if (filenames == null) return;
+
+        if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
+            client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        BatchRequest batch = new BatchRequest(Protocol.REMOVE_BATCH_COMPLETE_TOKEN, filenames, client.replyTo());
+        List<PendingRequest> requests = new ArrayList<>(filenames.size());
+        List<PendingRequest> empty = new ArrayList<>();
+        Map<Integer, List<String>> byDstore = new LinkedHashMap<>();
+        for (int i = 0; i < filenames.size(); i++) {
+            String filename = filenames.get(i);
+            FileInfo info = ctrl.getIndex().tryBeginRemove(filename);
+            if (info == null) {
+                batch.settle(i, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                continue;
+            }
+            if (!info.isChunked()) {
+                List<Integer> dsts = List.copyOf(info.getdStorePorts());
+                for (int p : dsts) byDstore.computeIfAbsent(p, k -> new ArrayList<>()).add(filename);
+                requests.add(ctrl.initRemoveTracking(filename, List.of(), dsts.size(), batch, i));
+                continue;
+            }
+            List<String> chunks = new ArrayList<>();
+            int acks = 0;
+            for (int c = 0; c < info.getChunkCount(); c++) {
+                String chunk = FileInfo.chunkName(filename, c);
+                FileInfo chunkInfo = ctrl.getIndex().tryBeginRemove(chunk);
+                if (chunkInfo == null) continue; // lost with its Dstores
+                chunks.add(chunk);
+                for (int p : chunkInfo.getdStorePorts()) {
+                    byDstore.computeIfAbsent(p, k -> new ArrayList<>()).add(chunk);
+                    acks++;
+                }
+            }
+            PendingRequest request = ctrl.initRemoveTracking(filename, chunks, acks, batch, i);
+            if (acks == 0) empty.add(request);
+            else requests.add(request);
+        }
+        System.out.println("Removing " + (requests.size() + empty.size()) + " of " + filenames.size()
+                + " files of a batch from " + byDstore.keySet());
+        ctrl.countBatch(filenames.size());
+        for (PendingRequest request : empty) ctrl.onRemoveSuccess(request);
+
+        for (Map.Entry<Integer, List<String>> e : byDstore.entrySet()) {
+            Connection ds = ctrl.getDstorePortstoSenders().get(e.getKey());
+            if (ds == null) continue;
+            List<String> names = e.getValue();
+            // chunks can make one Dstore's share longer than a message should be
+            for (int from = 0; from < names.size(); from += BatchRequest.MAX_BATCH) {
+                ds.send(Protocol.REMOVE_BATCH_TOKEN,
+                        names.subList(from, Math.min(names.size(), from + BatchRequest.MAX_BATCH)).toArray());
+            }
+        }
+        if (!requests.isEmpty()) ctrl.scheduleRemoveTimeout(batch, requests);
+    }
+}
@@ -1,57 +1,80 @@
 import java.io.IOException;
-import java.net.Socket;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RemoveHandler implements CommandHandler {
     private final Controller ctrl;
     public RemoveHandler(Controller ctrl) { this.ctrl = ctrl; }
 
     @Override
-    public void handle(String[] parts, Socket clientSocket) throws IOException {
+    public void handle(String[] parts, Connection client) throws IOException {
         // parts = ["<REMOVE>", "filename"]
         String filename = parts[1];
 
         // Ensure correct args
-        String[] args = parts[1].split(" ");
-        if (args.length != 1) return;
+        if (parts.length != 2) return;
 
         // Check enough Dstores
         if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
-            new TCPSender(clientSocket)
-                    .sendOneWay(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
             return;
         }
 
         // Atomically check file exists and mark remove in progress
-        synchronized (ctrl.getIndex()) {
-            FileInfo info = ctrl.getIndex().getFileInfo(filename);
-            if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) {
-                new TCPSender(clientSocket)
-                        .sendOneWay(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                return;
-            }
-            info.setFileState(Index.FileState.REMOVE_IN_PROGRESS);
+        FileInfo info = ctrl.getIndex().tryBeginRemove(filename);
+        if (info == null) {
+            client.reply(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
         }
 
-        // Track pending acks and send REMOVE to dstores
-        TCPSender client = new TCPSender(clientSocket);
-
-
-        List<Integer> dsts;
-        synchronized (ctrl.getIndex()) {
-            dsts = List.copyOf(ctrl.getIndex().getFileInfo(filename).getdStorePorts());
+        if (info.isChunked()) {
+            removeChunks(filename, info, client);
+            return;
         }
-        ctrl.initRemoveTracking(filename, dsts.size(), client);
+
+        // Track pending acks and send REMOVE to dstores
+        List<Integer> dsts = List.copyOf(info.getdStorePorts());
+        PendingRequest request = ctrl.initRemoveTracking(filename, dsts.size(), client);
 
         System.out.println("Removing from: " + dsts);
         for (int p : dsts) {
-            TCPSender ds = ctrl.getDstorePortstoSenders().get(p);
+            Connection ds = ctrl.getDstorePortstoSenders().get(p);
             if (ds != null) {
-                ds.sendOneWay(Protocol.REMOVE_TOKEN + " " + filename);
+                ds.send(Protocol.REMOVE_TOKEN, filename);
             }
         }
 
-        ctrl.scheduleRemoveTimeout(filename);
+        ctrl.scheduleRemoveTimeout(request);
+    }
+
+    /** Every replica of every chunk gets its own REMOVE; all of their acks complete the one request. */
+    private void removeChunks(String filename, FileInfo info, Connection client) {
+        Map<String, List<Integer>> chunks = new LinkedHashMap<>();
+        int acks = 0;
+        for (int i = 0; i < info.getChunkCount(); i++) {
+            String chunk = FileInfo.chunkName(filename, i);
+            FileInfo chunkInfo = ctrl.getIndex().tryBeginRemove(chunk);
+            if (chunkInfo == null) continue; // lost with its Dstores
+            List<Integer> dsts = List.copyOf(chunkInfo.getdStorePorts());
+            chunks.put(chunk, dsts);
+            acks += dsts.size();
+        }
+        PendingRequest request = ctrl.initRemoveTracking(filename, List.copyOf(chunks.keySet()), acks, client);
+        System.out.println("Removing " + chunks.size() + " chunks of " + filename);
+        if (acks == 0) {
+            ctrl.onRemoveSuccess(request);
+            return;
+        }
+        for (Map.Entry<String, List<Integer>> e : chunks.entrySet()) {
+            for (int p : e.getValue()) {
+                Connection ds = ctrl.getDstorePortstoSenders().get(p);
+                if (ds != null) {
+                    ds.send(Protocol.REMOVE_TOKEN, e.getKey());
+                }
+            }
+        }
+        ctrl.scheduleRemoveTimeout(request);
     }
 
 }
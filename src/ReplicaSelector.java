@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Chooses which replica serves a LOAD, so reads of a popular file spread
+ * over its replicas instead of all going to the first.
+ *
+ * Per Dstore it keeps the loads handed out and not yet reported done, and
+ * EWMAs of how long its transfers take per KiB sent and how often they
+ * fail. Dstores report each transfer with LOAD_DONE filename micros bytes
+ * ok whole. A whole-file transfer retires a hand-out of the same file to
+ * that Dstore if there is one; ranges, chunks and shards, which the
+ * Controller never hands out, only feed the estimates. A RELOAD counts as a failure of
+ * the replica the client tried before. For a file of size bytes a
+ * replica's cost is
+ *   (inFlight + 1) × (usPerKiB × KiB + BASE_LATENCY_US) × (1 + ERROR_PENALTY × errorRate)
+ * with transfers under a KiB counted as one.
+ * -Dcontroller.replicaSelection picks how replicas are chosen:
+ *   p2c   (default) the cheaper of two picked at random, which avoids
+ *         every Controller decision herding onto the same "best" Dstore
+ *   least the cheapest of all
+ *   first the first listed, as before
+ * Latency and error estimates fade while a replica is not being used, so
+ * one that had a bad spell gets tried again rather than starved. Handed-out
+ * loads never reported (the client gave up before LOAD_DATA) expire after
+ * the Controller timeout.
+ */
+public class ReplicaSelector {
+    private static final double ALPHA = 0.2;
+    private static final double BASE_LATENCY_US = 1000;
+    private static final double ERROR_PENALTY = 10;
+    // an estimate that has not been refreshed for this long counts for 1/e as much
+    private static final double DECAY_NANOS = 1e9;
+
+    private final Map<Integer, Replica> replicas = new ConcurrentHashMap<>();
+    private final String policy = System.getProperty("controller.replicaSelection", "p2c");
+    private final long expiryNanos;
+
+    public ReplicaSelector(long timeoutMs) {
+        this.expiryNanos = timeoutMs * 1_000_000;
+    }
+
+    /**
+     * The ports to try for a file of size bytes, best first. Ports failing
+     * usable are left out unless nothing else is left. The caller reports the
+     * one it sends the client to with onAssigned.
+     */
+    public List<Integer> order(Collection<Integer> ports, Predicate<Integer> usable, long size) {
+        List<Integer> candidates = new ArrayList<>(ports.size());
+        for (int port : ports) if (usable.test(port)) candidates.add(port);
+        if (candidates.isEmpty()) candidates.addAll(ports);
+        if (candidates.isEmpty()) return candidates;
+
+        int first = choose(candidates, size);
+        List<Integer> ordered = new ArrayList<>(candidates.size());
+        ordered.add(first);
+        candidates.remove(Integer.valueOf(first));
+        candidates.sort(Comparator.comparingDouble(port -> cost(port, size)));
+        ordered.addAll(candidates);
+        return ordered;
+    }
+
+    private int choose(List<Integer> candidates, long size) {
+        if (candidates.size() == 1 || policy.equals("first")) return candidates.getFirst();
+        if (policy.equals("least") || candidates.size() == 2) {
+            int best = candidates.getFirst();
+            for (int port : candidates) if (cost(port, size) < cost(best, size)) best = port;
+            return best;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(candidates.size());
+        int b = random.nextInt(candidates.size() - 1);
+        if (b >= a) b++;
+        int pa = candidates.get(a);
+        int pb = candidates.get(b);
+        return cost(pa, size) <= cost(pb, size) ? pa : pb;
+    }
+
+    /** A LOAD (or RELOAD) sent a client to port for filename. */
+    public void onAssigned(int port, String filename) {
+        Replica r = replica(port);
+        r.assigned.incrementAndGet();
+        r.handedOut.add(new HandOut(filename, System.nanoTime()));
+        r.inFlight.incrementAndGet();
+    }
+
+    /** LOAD_DONE from a Dstore: sending bytes of filename (all of it if whole) took micros, or failed. */
+    public void onDone(int port, String filename, long micros, long bytes, boolean ok, boolean whole) {
+        Replica r = replica(port);
+        if (whole) retire(r, filename);
+        synchronized (r) {
+            fade(r);
+            if (ok) r.usPerKiB += ALPHA * (micros / kib(bytes) - r.usPerKiB);
+            r.errorRate += ALPHA * ((ok ? 0 : 1) - r.errorRate);
+        }
+        if (!ok) r.errors.incrementAndGet();
+    }
+
+    /** A client came back with RELOAD: the replica it was sent to did not serve filename. */
+    public void onFailed(int port, String filename) {
+        Replica r = replica(port);
+        retire(r, filename);
+        synchronized (r) {
+            fade(r);
+            r.errorRate += ALPHA * (1 - r.errorRate);
+        }
+        r.errors.incrementAndGet();
+    }
+
+    public void onDstoreLeft(int port) {
+        replicas.remove(port);
+    }
+
+    private double cost(int port, long size) {
+        Replica r = replica(port);
+        expire(r);
+        synchronized (r) {
+            fade(r);
+            return (r.inFlight.get() + 1) * (r.usPerKiB * kib(size) + BASE_LATENCY_US)
+                    * (1 + ERROR_PENALTY * r.errorRate);
+        }
+    }
+
+    private static double kib(long bytes) {
+        return Math.max(1, bytes / 1024.0);
+    }
+
+    /** Retires the oldest hand-out of filename, if this replica has one. */
+    private static void retire(Replica r, String filename) {
+        for (HandOut h : r.handedOut) {
+            if (h.filename.equals(filename)) {
+                if (r.handedOut.removeFirstOccurrence(h)) r.inFlight.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private static void fade(Replica r) {
+        long now = System.nanoTime();
+        double f = Math.exp(-(now - r.updated) / DECAY_NANOS);
+        r.usPerKiB *= f;
+        r.errorRate *= f;
+        r.updated = now;
+    }
+
+    private void expire(Replica r) {
+        long cutoff = System.nanoTime() - expiryNanos;
+        HandOut oldest;
+        while ((oldest = r.handedOut.peekFirst()) != null && oldest.nanos < cutoff) {
+            if (r.handedOut.removeFirstOccurrence(oldest)) {
+                r.inFlight.decrementAndGet();
+                r.expired.incrementAndGet();
+            }
+        }
+    }
+
+    private Replica replica(int port) {
+        return replicas.computeIfAbsent(port, p -> new Replica());
+    }
+
+    /** dstore.<port>.load* entries for STATS, plus how evenly loads were spread. */
+    public void addStats(Map<String, Object> stats) {
+        long max = 0;
+        long total = 0;
+        for (Map.Entry<Integer, Replica> e : replicas.entrySet()) {
+            Replica r = e.getValue();
+            expire(r);
+            String key = "dstore." + e.getKey() + ".";
+            long assigned = r.assigned.get();
+            stats.put(key + "loads",         assigned);
+            stats.put(key + "loadsInFlight", r.inFlight.get());
+            stats.put(key + "loadErrors",    r.errors.get());
+            stats.put(key + "loadsExpired",  r.expired.get());
+            synchronized (r) {
+                fade(r);
+                stats.put(key + "loadUsPerKiB",  Math.round(r.usPerKiB));
+                stats.put(key + "loadErrorRate", String.format(Locale.ROOT, "%.3f", r.errorRate));
+            }
+            max = Math.max(max, assigned);
+            total += assigned;
+        }
+        // busiest Dstore's loads over the mean: 1.00 is perfectly even
+        stats.put("loadImbalance", total == 0 ? "1.00"
+                : String.format(Locale.ROOT, "%.2f", max * (double) replicas.size() / total));
+    }
+
+    /** One LOAD sent to a replica; compared by identity. */
+    private static final class HandOut {
+        final String filename;
+        final long nanos;
+
+        HandOut(String filename, long nanos) {
+            this.filename = filename;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final class Replica {
+        final ConcurrentLinkedDeque<HandOut> handedOut = new ConcurrentLinkedDeque<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong assigned = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        double usPerKiB;
+        double errorRate;
+        long updated = System.nanoTime();
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restores files to R replicas after a Dstore is lost, most-endangered first.
+ * (Shards of erasure-coded files have one copy each and go to the
+ * {@link ShardRepairer} instead.)
+ * Files are queued by how many replicas they are missing (ties in arrival
+ * order); a dispatcher thread takes them off the queue, picks targets with
+ * the normal placement logic and asks one surviving holder to copy the file
+ * there using a send-only REBALANCE. Each of those carries its own request
+ * id, which the Dstore echoes on REBALANCE_COMPLETE.
+ *
+ * At most -Dcontroller.rereplicationConcurrency files (default 4) are in
+ * flight at once; bandwidth is capped on the Dstores by their rebalance
+ * Throttle. A copy that is not confirmed within the timeout is retried up to
+ * MAX_ATTEMPTS times, and files for which no target exists yet wait for the
+ * next Dstore to join.
+ */
+public class Rereplicator implements Runnable {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Controller ctrl;
+    private final ScheduledExecutorService scheduler;
+    private final long timeoutMs;
+    private final Semaphore slots;
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final Map<String, Task> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Task> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> parked = ConcurrentHashMap.newKeySet();
+    private final AtomicLong seq = new AtomicLong();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final AtomicLong restored = new AtomicLong();
+
+    public Rereplicator(Controller ctrl, ScheduledExecutorService scheduler, long timeoutMs) {
+        this.ctrl = ctrl;
+        this.scheduler = scheduler;
+        this.timeoutMs = timeoutMs;
+        this.slots = new Semaphore(Math.max(1, Integer.getInteger("controller.rereplicationConcurrency", 4)));
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "Rereplicator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Queues every file that is below R replicas; the rest are ignored. */
+    public void enqueue(Iterable<String> filenames) {
+        for (String filename : filenames) enqueue(filename, 0);
+    }
+
+    /** A Dstore joined: files that had nowhere to go get another chance. */
+    public void retryParked() {
+        List<String> again = new ArrayList<>(parked);
+        parked.removeAll(again);
+        for (String filename : again) enqueue(filename, 0);
+    }
+
+    /** True while the file is queued or being copied, so the Rebalancer leaves it alone. */
+    public boolean isPending(String filename) {
+        return pending.containsKey(filename);
+    }
+
+    private void enqueue(String filename, int attempts) {
+        int missing = missing(filename, ctrl.getIndex().getFileInfo(filename));
+        if (missing <= 0) return;
+        pending.compute(filename, (f, queued) -> {
+            if (queued != null && (queued.started || queued.missing >= missing)) return queued;
+            // new, or lost another replica while waiting: (re)queue at its new priority
+            if (queued != null) queue.remove(queued);
+            Task task = new Task(f, missing, seq.incrementAndGet(), attempts);
+            queue.add(task);
+            return task;
+        });
+    }
+
+    private int missing(String filename, FileInfo info) {
+        if (info == null || info.getFileState() != Index.FileState.STORE_COMPLETE) return 0;
+        return ctrl.targetReplicas(filename) - info.getdStorePorts().size();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Task task;
+            try {
+                slots.acquire();
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (!begin(task)) finish(task);
+            } catch (RuntimeException e) {
+                // give the slot back and let the file be queued again
+                System.err.println("⚠ Re-replication error for " + task.filename + ": " + e);
+                inFlight.values().remove(task);
+                finish(task);
+            }
+        }
+    }
+
+    /** @return false if nothing was sent and the caller still has to give the slot back */
+    private boolean begin(Task task) {
+        Index index = ctrl.getIndex();
+        FileInfo info = index.getFileInfo(task.filename);
+        int missing = missing(task.filename, info);
+        if (missing <= 0) return false;
+
+        List<Integer> holders = List.copyOf(info.getdStorePorts());
+        List<Integer> targets = index.selectLeastLoaded(missing, holders);
+        if (targets.isEmpty()) {
+            parked.add(task.filename);
+            return false;
+        }
+        // copy from the least busy holder that is connected
+        int source = -1;
+        for (int h : holders) {
+            if (!ctrl.getDstorePortstoSenders().containsKey(h)) continue;
+            if (source < 0 || index.getFileCount(h) < index.getFileCount(source)) source = h;
+        }
+        Connection ds = source < 0 ? null : ctrl.getDstorePortstoSenders().get(source);
+        if (ds == null) {
+            // its holders have not (re)joined yet
+            parked.add(task.filename);
+            return false;
+        }
+
+        task.started = true;
+        task.targets = targets;
+        int id = nextRequestId.updateAndGet(i -> i == Integer.MAX_VALUE ? 1 : i + 1);
+        inFlight.put(id, task);
+        List<Object> fields = new ArrayList<>();
+        fields.add(1);
+        fields.add(task.filename);
+        fields.add(targets.size());
+        fields.addAll(targets);
+        fields.add(0);
+        System.out.println("→ Re-replicating " + task.filename + " (missing " + missing + ") from "
+                + source + " to " + targets);
+        if (!ds.sendRequest(id, Protocol.REBALANCE_TOKEN, fields.toArray())) {
+            inFlight.remove(id);
+            finish(task);
+            retry(task);
+            return true;
+        }
+        scheduler.schedule(() -> onTimeout(id), timeoutMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * REBALANCE_COMPLETE carrying one of our request ids; a file it lists
+     * as failed did not reach (all) its targets and is tried again.
+     * @return false if the id is not ours (e.g. a Rebalancer job)
+     */
+    public boolean onComplete(int requestId, Collection<String> failed) {
+        if (requestId <= 0) return false;
+        Task task = inFlight.remove(requestId);
+        if (task == null) return false;
+        if (failed.contains(task.filename)) {
+            System.err.println("⚠ Re-replication of " + task.filename + " failed on its source");
+            finish(task);
+            retry(task);
+            return true;
+        }
+        for (int target : task.targets) {
+            if (ctrl.getDstorePortstoSenders().containsKey(target)) ctrl.getIndex().addReplica(task.filename, target);
+        }
+        restored.addAndGet(task.targets.size());
+        System.out.println("✔ Re-replicated " + task.filename + " to " + task.targets);
+        finish(task);
+        // fewer targets than missing replicas: go round again
+        enqueue(task.filename, 0);
+        return true;
+    }
+
+    private void onTimeout(int requestId) {
+        Task task = inFlight.remove(requestId);
+        if (task == null) return;
+        System.err.println("⚠ Re-replication of " + task.filename + " timed out");
+        finish(task);
+        retry(task);
+    }
+
+    private void retry(Task task) {
+        if (task.attempts + 1 < MAX_ATTEMPTS) {
+            enqueue(task.filename, task.attempts + 1);
+        } else {
+            System.err.println("⚠ Giving up re-replicating " + task.filename + " for now");
+            parked.add(task.filename);
+        }
+    }
+
+    /** Gives back the task's slot; only the first call for a task counts. */
+    private void finish(Task task) {
+        if (!task.finished.compareAndSet(false, true)) return;
+        pending.remove(task.filename, task);
+        slots.release();
+    }
+
+    public int getQueued() { return queue.size(); }
+    public int getInFlight() { return inFlight.size(); }
+    public long getRestored() { return restored.get(); }
+
+    /** One file waiting for replicas; more missing sorts first, then FIFO. */
+    private static final class Task implements Comparable<Task> {
+        final String filename;
+        final int missing;
+        final long seq;
+        final int attempts;
+        volatile boolean started;
+        final AtomicBoolean finished = new AtomicBoolean();
+        volatile List<Integer> targets = List.of();
+
+        Task(String filename, int missing, long seq, int attempts) {
+            this.filename = filename;
+            this.missing = missing;
+            this.seq = seq;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int c = Integer.compare(o.missing, missing);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Re-reads every file a Dstore holds in the background and checks it
+ * against the CRC32C recorded when it was written ({@link Checksums}), so
+ * rot is found before a client loads it and LOAD never has to verify
+ * anything. Reads go through their own {@link Throttle}
+ * (-Ddstore.scrubBandwidth bytes/s, default 4 MB/s), and a pass starts
+ * every -Ddstore.scrubInterval seconds (default 3600; 0 turns it off).
+ * Deflated files are checked by inflating them, and packed ones against
+ * the CRC32C in their record ({@link PackStore}).
+ *
+ * A file that no longer matches, is the wrong length or cannot be read is
+ * reported to the Controller as CORRUPT filename; it drops the replica,
+ * restores it from a healthy copy and has this one removed. The bad copy's
+ * content is no longer offered for deduplication. A file written
+ * without a checksum (a linked name the Controller had none for, or one
+ * from before checksums) gets one recorded on its first pass.
+ */
+public class Scrubber implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String fileFolder;
+    private final ControllerLink controllerSender;
+    private final Inventory inventory;
+    private final Checksums checksums;
+    private final BlobStore blobs;
+    private final Compression compression;
+    private final PackStore pack;
+    private final long intervalMs = Long.getLong("dstore.scrubInterval", 3600) * 1000;
+    private final Throttle throttle = new Throttle(Long.getLong("dstore.scrubBandwidth", 4L << 20));
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+
+    public Scrubber(String fileFolder, ControllerLink controllerSender, Inventory inventory, Checksums checksums,
+                    BlobStore blobs, Compression compression, PackStore pack) {
+        this.fileFolder = fileFolder;
+        this.controllerSender = controllerSender;
+        this.inventory = inventory;
+        this.checksums = checksums;
+        this.blobs = blobs;
+        this.compression = compression;
+        this.pack = pack;
+    }
+
+    public void start() {
+        if (intervalMs <= 0) return;
+        Thread t = new Thread(this, "Scrubber");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+                long start = System.nanoTime();
+                long before = files.get();
+                for (int b = 0; b < InventoryDigest.BUCKETS; b++) {
+                    Map<String, Long> bucket = inventory.bucket(b);
+                    for (String filename : List.copyOf(bucket.keySet())) {
+                        Long size = bucket.get(filename);
+                        if (size != null) scrub(filename, size);
+                    }
+                }
+                passes.incrementAndGet();
+                System.out.printf("Scrubbed %d files in %d ms%n",
+                        files.get() - before, (System.nanoTime() - start) / 1_000_000);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("⚠ Scrub error: " + e);
+            }
+        }
+    }
+
+    private void scrub(String filename, long size) {
+        PackStore.Region packed = pack.open(filename);
+        if (packed != null) {
+            scrubPacked(filename, packed);
+            return;
+        }
+        Checksums.Entry expected = checksums.get(filename);
+        CRC32C crc = new CRC32C();
+        long read = 0;
+        String problem = null;
+        try (InputStream in = compression.contains(filename) ? compression.open(filename)
+                                                             : new FileInputStream(new File(fileFolder, filename))) {
+            read = digest(in, crc);
+        } catch (FileNotFoundException e) {
+            // removed, or moved to another form, since the bucket was read
+            return;
+        } catch (IOException e) {
+            problem = e.getMessage();
+        }
+
+        // written over or removed while it was read: look again next pass
+        if (checksums.get(filename) != expected || !Long.valueOf(size).equals(inventory.bucket(
+                InventoryDigest.bucket(filename)).get(filename))) {
+            return;
+        }
+        if (problem == null && read != size) problem = read + " bytes, not " + size;
+        if (problem == null && expected == null) {
+            checksums.record(filename, (int) crc.getValue());
+            recorded.incrementAndGet();
+            return;
+        }
+        if (problem == null && expected.crc != (int) crc.getValue()) {
+            problem = "CRC32C " + Checksums.hex((int) crc.getValue()) + ", not " + Checksums.hex(expected.crc);
+        }
+        if (problem != null) report(filename, problem);
+    }
+
+    /** A packed file is checked against the CRC32C in its record. */
+    private void scrubPacked(String filename, PackStore.Region packed) {
+        try (packed) {
+            CRC32C crc = new CRC32C();
+            String problem = null;
+            try {
+                digest(packed.stream(), crc);
+            } catch (IOException e) {
+                problem = e.getMessage();
+            }
+            if (!packed.isCurrent()) return;
+            if (problem == null && packed.crc() != (int) crc.getValue()) {
+                problem = "CRC32C " + Checksums.hex((int) crc.getValue()) + ", not " + Checksums.hex(packed.crc());
+            }
+            if (problem != null) report(filename, problem);
+        }
+    }
+
+    /** Reads in to the end under the throttle, feeding crc. */
+    private long digest(InputStream in, CRC32C crc) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long read = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                throttle.acquire(n);
+                crc.update(buffer, 0, n);
+                read += n;
+            }
+        } finally {
+            files.incrementAndGet();
+            bytes.addAndGet(read);
+        }
+        return read;
+    }
+
+    private void report(String filename, String problem) {
+        corrupt.incrementAndGet();
+        System.err.println("⚠ Corrupt: " + filename + " (" + problem + ")");
+        // a replacement with the right hash must not be linked back to the bad copy
+        if (blobs != null) blobs.distrust(filename);
+        compression.distrust(filename);
+        pack.distrust(filename);
+        controllerSender.send(Protocol.CORRUPT_TOKEN, filename);
+    }
+
+    public void addStats(Map<String, Object> stats) {
+        stats.put("checksums",     checksums.size());
+        stats.put("scrubPasses",   passes.get());
+        stats.put("scrubbedFiles", files.get());
+        stats.put("scrubbedBytes", bytes.get());
+        stats.put("scrubRecorded", recorded.get());
+        stats.put("scrubCorrupt",  corrupt.get());
+    }
+}
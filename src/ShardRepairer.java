@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds lost shards of erasure-coded files. A shard is kept on one Dstore
+ * only, so when that Dstore goes the Index drops the shard, and instead of
+ * being copied it is decoded afresh from its siblings: a live Dstore holding
+ * no shard of the file is sent REBUILD_SHARD (see
+ * {@link DStoreRebuildShardHandler}) under a request id of its own, and only
+ * when it answers is the shard put back in the Index on that Dstore.
+ *
+ * A request not answered within the timeout is retried up to MAX_ATTEMPTS
+ * times. Shards with fewer than k siblings reachable, or no Dstore to go to,
+ * wait for the next Dstore to join.
+ */
+public class ShardRepairer {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Controller ctrl;
+    private final ScheduledExecutorService scheduler;
+    private final long timeoutMs;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Task> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> parked = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final AtomicLong rebuilt = new AtomicLong();
+
+    public ShardRepairer(Controller ctrl, ScheduledExecutorService scheduler, long timeoutMs) {
+        this.ctrl = ctrl;
+        this.scheduler = scheduler;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** Starts rebuilding every shard among the given lost files; the rest are ignored. */
+    public void enqueue(Iterable<String> filenames) {
+        for (String filename : filenames) {
+            if (ctrl.isShard(filename)) rebuild(filename, 0);
+        }
+    }
+
+    /** A Dstore joined: shards that had nowhere to go, or too few siblings, get another chance. */
+    public void retryParked() {
+        List<String> again = new ArrayList<>(parked);
+        parked.removeAll(again);
+        for (String shard : again) rebuild(shard, 0);
+    }
+
+    private void rebuild(String shard, int attempts) {
+        if (!pending.add(shard)) return;
+        if (!begin(shard, attempts)) pending.remove(shard);
+    }
+
+    /** @return false if no request went out */
+    private boolean begin(String shard, int attempts) {
+        Index index = ctrl.getIndex();
+        String filename = FileInfo.parentName(shard);
+        FileInfo info = index.getFileInfo(filename);
+        if (info == null || !info.isErasureCoded() || info.getFileState() != Index.FileState.STORE_COMPLETE
+                || index.getFileInfo(shard) != null) {
+            // removed meanwhile, or already back
+            return false;
+        }
+
+        List<Object> fields = new ArrayList<>();
+        fields.add(shard);
+        fields.add(info.getFileSize());
+        fields.add(info.getChunkSize());
+        fields.add(info.getDataShards());
+        fields.add(info.getParityShards());
+        Set<Integer> holders = new HashSet<>();
+        int reachable = 0;
+        for (int i = 0; i < info.getChunkCount(); i++) {
+            String sibling = FileInfo.chunkName(filename, i);
+            FileInfo siblingInfo = index.getFileInfo(sibling);
+            if (siblingInfo != null) holders.addAll(siblingInfo.getdStorePorts());
+            int port = ctrl.shardPort(sibling);
+            if (port >= 0) reachable++;
+            fields.add(port);
+        }
+        if (reachable < info.getDataShards()) {
+            System.err.println("⚠ Cannot rebuild " + shard + " yet: " + reachable + " of "
+                    + info.getDataShards() + " shards needed are reachable");
+            parked.add(shard);
+            return false;
+        }
+        // a Dstore that already holds a shard of this file would make two failures count as one
+        List<Integer> target = index.selectLeastLoaded(1, holders);
+        Connection ds = target.isEmpty() ? null : ctrl.getDstorePortstoSenders().get(target.getFirst());
+        if (ds == null) {
+            parked.add(shard);
+            return false;
+        }
+
+        int id = nextRequestId.updateAndGet(i -> i == Integer.MAX_VALUE ? 1 : i + 1);
+        Task task = new Task(shard, target.getFirst(), info.getChunkSize(), attempts);
+        inFlight.put(id, task);
+        System.out.println("→ Rebuilding " + shard + " on " + task.target);
+        if (!ds.sendRequest(id, Protocol.REBUILD_SHARD_TOKEN, fields.toArray())) {
+            inFlight.remove(id);
+            pending.remove(shard);
+            retry(task);
+            return true;
+        }
+        scheduler.schedule(() -> onTimeout(id), timeoutMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /** REBUILD_SHARD from the Dstore the shard was rebuilt on. */
+    public void onRebuilt(int port, int requestId) {
+        Task task = inFlight.get(requestId);
+        if (task == null || task.target != port || !inFlight.remove(requestId, task)) {
+            System.err.println("REBUILD_SHARD #" + requestId + " from " + port + " matches no request");
+            return;
+        }
+        pending.remove(task.shard);
+        Index index = ctrl.getIndex();
+        FileInfo parent = index.getFileInfo(FileInfo.parentName(task.shard));
+        FileInfo info = new FileInfo(Index.FileState.STORE_COMPLETE, task.shardSize,
+                                     new CopyOnWriteArrayList<>(List.of(port)));
+        if (parent == null || parent.getFileState() != Index.FileState.STORE_COMPLETE
+                || !ctrl.getDstorePortstoSenders().containsKey(port)
+                || !index.tryBeginStore(task.shard, info)) {
+            // the file went while the shard was being rebuilt
+            Connection ds = ctrl.getDstorePortstoSenders().get(port);
+            if (ds != null) ds.send(Protocol.REMOVE_TOKEN, task.shard);
+            return;
+        }
+        rebuilt.incrementAndGet();
+        System.out.println("✔ Rebuilt " + task.shard + " on " + port);
+    }
+
+    private void onTimeout(int requestId) {
+        Task task = inFlight.remove(requestId);
+        if (task == null) return;
+        System.err.println("⚠ Rebuilding " + task.shard + " on " + task.target + " timed out");
+        pending.remove(task.shard);
+        retry(task);
+    }
+
+    private void retry(Task task) {
+        if (task.attempts + 1 < MAX_ATTEMPTS) {
+            rebuild(task.shard, task.attempts + 1);
+        } else {
+            System.err.println("⚠ Giving up rebuilding " + task.shard + " for now");
+            parked.add(task.shard);
+        }
+    }
+
+    public int getInFlight() { return inFlight.size(); }
+    public long getRebuilt() { return rebuilt.get(); }
+
+    private record Task(String shard, int target, long shardSize, int attempts) { }
+}
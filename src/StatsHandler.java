@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Answers STATS with a single line of key=value counters,
+ * e.g. "STATS liveConnections=3 rejectedConnections=0".
+ */
+public class StatsHandler implements CommandHandler {
+    private final Supplier<Map<String, Object>> stats;
+
+    public StatsHandler(Supplier<Map<String, Object>> stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void handle(String[] parts, Connection connection) throws IOException {
+        List<String> fields = new ArrayList<>();
+        for (Map.Entry<String, Object> e : stats.get().entrySet()) {
+            fields.add(e.getKey() + "=" + e.getValue());
+        }
+        connection.reply(Protocol.STATS_TOKEN, fields.toArray());
+    }
+}
@@ -1,35 +1,39 @@
 import java.io.IOException;
-import java.net.Socket;
-import java.util.concurrent.CountDownLatch;
 
 public class StoreAckHandler implements CommandHandler {
     private final Controller ctrl;
     public StoreAckHandler(Controller ctrl) { this.ctrl = ctrl; }
 
     @Override
-    public void handle(String[] parts, Socket dstSocket) throws IOException {
-        // parts = ["<STORE_ACK>", "filename"]
+    public void handle(String[] parts, Connection dstore) throws IOException {
+        // parts = ["<STORE_ACK>", "filename", "<sha256>"?, "<crc32c>"?]
         String filename = parts[1];
 
-        Integer dport = ctrl.getSocketToPort().get(dstSocket);
+        Integer dport = ctrl.getConnectionToPort().get(dstore);
         if (dport == null) {
-            System.err.println("STORE_ACK from unknown socket");
+            System.err.println("STORE_ACK from unknown connection");
             return;
         }
 
-        CountDownLatch latch = ctrl.getPendingLatches(filename);
-        if (latch == null) return;
-
-        long before = latch.getCount();
-        if (before == 0) return;
+        PendingRequest request = ctrl.getPendingStore(filename);
+        if (request == null || request.isFinished()) return;
+
+        String hash = parts.length > 2 && BlobStore.isHash(parts[2]) ? parts[2] : null;
+        Integer crc = parts.length > 3 && Checksums.isCrc(parts[3]) ? Checksums.parse(parts[3]) : null;
+        Integer known = ctrl.getIndex().recordContent(filename, hash, crc);
+        if (crc != null && known != null && !known.equals(crc)) {
+            // the replicas were sent different bytes; say so, but the STORE still stands
+            ctrl.countChecksumMismatch();
+            System.err.println("⚠ " + dport + " stored " + filename + " with CRC32C " + parts[3]
+                    + ", others with " + Checksums.hex(known));
+        }
 
-        latch.countDown();
-        long remaining = latch.getCount();
+        boolean last = request.ack();
         System.out.printf("✔ STORE_ACK %s (remaining=%d)%n",
-                filename, remaining);
+                filename, request.getRemainingAcks());
 
-        if (remaining == 0) {
-            ctrl.onStoreSuccess(filename);
+        if (last) {
+            ctrl.onStoreSuccess(request);
         }
 
     }
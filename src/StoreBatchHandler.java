@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * STORE_BATCH filename filesize [filename filesize …]
+ *   → STORE_TO_BATCH (filename STORE_TO k port×k | filename ERROR_…)…
+ *   → STORE_BATCH_COMPLETE (filename status)…
+ *
+ * Many STOREs for one round trip. Placement is worked out once for the
+ * whole batch, striped over every live Dstore like the chunks of a chunked
+ * file, and every name is claimed in the same pass. The client uploads each
+ * file with a normal STORE to each of its Dstores; several may go down one
+ * connection, one after another. Once every file is acked, or the batch's
+ * one timeout fires (no ack for any of its files in that time), STORE_BATCH_COMPLETE gives STORE_COMPLETE or an error
+ * token for each file, in the order they were asked for.
+ */
+public class StoreBatchHandler implements CommandHandler {
+  private final Controller ctrl;
+
+  public StoreBatchHandler(Controller ctrl) {
+    this.ctrl = ctrl;
+  }
+
+  @Override
+  public void handle(String[] parts, Connection client) throws IOException {
+    // parts = ["STORE_BATCH", ("filename", "filesize")…]
+    List<String> filenames = BatchRequest.filenames(parts, 2);
+    if (filenames == null) return;
+    int n = filenames.size();
+    long[] sizes = new long[n];
+    for (int i = 0; i < n; i++) {
+      try {
+        sizes[i] = Long.parseLong(parts[2 + 2 * i]);
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid file size in STORE_BATCH: " + parts[2 + 2 * i]);
+        return;
+      }
+      if (sizes[i] < 0) {
+        System.err.println("Negative file size in STORE_BATCH: " + sizes[i]);
+        return;
+      }
+    }
+
+    if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
+      client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      return;
+    }
+
+    Index index = ctrl.getIndex();
+    List<List<Integer>> placement = ctrl.selectStripedDstores(n);
+    BatchRequest batch = new BatchRequest(Protocol.STORE_BATCH_COMPLETE_TOKEN, filenames, client.replyTo());
+    List<PendingRequest> requests = new ArrayList<>(n);
+    String[] rejected = new String[n];
+    List<Object> fields = new ArrayList<>(n * (3 + ctrl.getReplicationFactor()));
+    for (int i = 0; i < n; i++) {
+      String filename = filenames.get(i);
+      List<Integer> ports = placement.get(i);
+      fields.add(filename);
+      FileInfo info = new FileInfo(Index.FileState.STORE_IN_PROGRESS, sizes[i], new CopyOnWriteArrayList<>(ports));
+      if (FileInfo.isChunkName(filename) || !index.tryBeginStore(filename, info)) {
+        rejected[i] = Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN;
+        fields.add(rejected[i]);
+        continue;
+      }
+      requests.add(ctrl.initStoreTracking(filename, ports.size(), batch, i));
+      fields.add(Protocol.STORE_TO_TOKEN);
+      fields.add(ports.size());
+      fields.addAll(ports);
+    }
+    System.out.println("Placed " + requests.size() + " of " + n + " files of a batch");
+
+    client.reply(Protocol.STORE_TO_BATCH_TOKEN, fields.toArray());
+    for (int i = 0; i < n; i++) {
+      if (rejected[i] != null) batch.settle(i, rejected[i]);
+    }
+    ctrl.countBatch(n);
+    if (!requests.isEmpty()) ctrl.scheduleStoreTimeout(batch, requests);
+  }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * STORE_CHUNKED filename filesize [chunkSize]
+ *   → STORE_TO_CHUNKED chunkSize n (k port×k)×n
+ *
+ * Splits the file into n chunks of chunkSize bytes (the last may be shorter),
+ * each placed on its own R Dstores and striped across all of them. The client
+ * uploads chunk i with a normal STORE of filename#~i to each of its Dstores,
+ * in parallel if it likes; STORE_COMPLETE follows once every copy of every
+ * chunk is acked. chunkSize defaults to -Dcontroller.chunkSize (8 MB) and is
+ * raised if needed to keep n within MAX_CHUNKS.
+ */
+public class StoreChunkedHandler implements CommandHandler {
+  static final int MAX_CHUNKS = 4096;
+  private static final long MIN_CHUNK_SIZE = 64 * 1024;
+
+  private final Controller ctrl;
+  private final long defaultChunkSize = Long.getLong("controller.chunkSize", 8L << 20);
+
+  public StoreChunkedHandler(Controller ctrl) {
+    this.ctrl = ctrl;
+  }
+
+  @Override
+  public void handle(String[] parts, Connection client) throws IOException {
+    // parts = ["STORE_CHUNKED", "filename", "filesize", "<chunkSize>"?]
+    if (parts.length != 3 && parts.length != 4) {
+      System.err.println("Malformed STORE_CHUNKED message: " + Arrays.toString(parts));
+      return;
+    }
+    String filename = parts[1];
+    long fileSize;
+    long chunkSize;
+    try {
+      fileSize = Long.parseLong(parts[2]);
+      chunkSize = parts.length == 4 ? Long.parseLong(parts[3]) : defaultChunkSize;
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid size in STORE_CHUNKED: " + Arrays.toString(parts));
+      return;
+    }
+    if (fileSize < 0) {
+      System.err.println("Negative file size in STORE_CHUNKED: " + fileSize);
+      return;
+    }
+    chunkSize = Math.max(Math.max(MIN_CHUNK_SIZE, chunkSize), (fileSize + MAX_CHUNKS - 1) / MAX_CHUNKS);
+    int n = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+
+    if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
+      client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      return;
+    }
+    Index index = ctrl.getIndex();
+    if (FileInfo.isChunkName(filename) || index.getFileInfo(filename) != null) {
+      client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+      return;
+    }
+
+    List<List<Integer>> placement = ctrl.selectStripedDstores(n);
+    FileInfo info = new FileInfo(Index.FileState.STORE_IN_PROGRESS, fileSize,
+                                 new CopyOnWriteArrayList<>(), n, chunkSize);
+    if (!index.tryBeginStore(filename, info)) {
+      client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+      return;
+    }
+    List<String> chunks = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      String chunk = FileInfo.chunkName(filename, i);
+      FileInfo chunkInfo = new FileInfo(Index.FileState.STORE_IN_PROGRESS, info.getChunkLength(i),
+                                        new CopyOnWriteArrayList<>(placement.get(i)));
+      if (!index.tryBeginStore(chunk, chunkInfo)) {
+        // a leftover chunk entry from an earlier file of this name
+        for (String claimed : chunks) index.abortStore(claimed);
+        index.abortStore(filename);
+        client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+        return;
+      }
+      chunks.add(chunk);
+    }
+    System.out.println("Striped " + filename + " into " + n + " chunks of " + chunkSize + " bytes: " + placement);
+
+    List<Object> fields = new ArrayList<>();
+    fields.add(chunkSize);
+    fields.add(n);
+    for (List<Integer> ports : placement) {
+      fields.add(ports.size());
+      fields.addAll(ports);
+    }
+    PendingRequest request = ctrl.initStoreTracking(filename, chunks,
+                                                    n * ctrl.getReplicationFactor(), client);
+    client.reply(Protocol.STORE_TO_CHUNKED_TOKEN, fields.toArray());
+    ctrl.scheduleStoreTimeout(request);
+  }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * STORE_EC filename filesize [k m]
+ *   → STORE_TO_EC shardSize k m port×(k+m)
+ *
+ * Erasure-coded alternative to STORE: the client splits the file into k data
+ * shards of shardSize bytes (the last zero-padded), adds m Reed-Solomon
+ * parity shards ({@link ReedSolomon}), and uploads shard i with a normal
+ * STORE of filename#~i to the i-th listed Dstore. Every shard goes to a
+ * different Dstore and is kept once, so the file survives any m of them
+ * failing at (k+m)/k times its size, against R times for replication.
+ * STORE_COMPLETE follows once all k+m shards are acked. k and m default to
+ * -Dcontroller.ecData (4) and -Dcontroller.ecParity (2).
+ * {@link ErasureClient} does the client side.
+ */
+public class StoreEcHandler implements CommandHandler {
+  private final Controller ctrl;
+  private final int defaultData = Integer.getInteger("controller.ecData", 4);
+  private final int defaultParity = Integer.getInteger("controller.ecParity", 2);
+
+  public StoreEcHandler(Controller ctrl) {
+    this.ctrl = ctrl;
+  }
+
+  @Override
+  public void handle(String[] parts, Connection client) throws IOException {
+    // parts = ["STORE_EC", "filename", "filesize", "<k>"?, "<m>"?]
+    if (parts.length != 3 && parts.length != 5) {
+      System.err.println("Malformed STORE_EC message: " + Arrays.toString(parts));
+      return;
+    }
+    String filename = parts[1];
+    long fileSize;
+    int k;
+    int m;
+    try {
+      fileSize = Long.parseLong(parts[2]);
+      k = parts.length == 5 ? Integer.parseInt(parts[3]) : defaultData;
+      m = parts.length == 5 ? Integer.parseInt(parts[4]) : defaultParity;
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number in STORE_EC: " + Arrays.toString(parts));
+      return;
+    }
+    if (fileSize < 0 || k < 1 || m < 1 || k + m > 256) {
+      System.err.println("Bad STORE_EC parameters: " + Arrays.toString(parts));
+      return;
+    }
+    long shardSize = Math.max(1, (fileSize + k - 1) / k);
+
+    if (ctrl.getDstorePortstoSenders().size() < k + m) {
+      client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      return;
+    }
+    Index index = ctrl.getIndex();
+    if (FileInfo.isChunkName(filename) || index.getFileInfo(filename) != null) {
+      client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+      return;
+    }
+
+    List<Integer> ports;
+    try {
+      ports = ctrl.selectDistinctDstores(k + m);
+    } catch (IllegalStateException e) {
+      client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      return;
+    }
+    FileInfo info = new FileInfo(Index.FileState.STORE_IN_PROGRESS, fileSize,
+                                 new CopyOnWriteArrayList<>(), k + m, shardSize, m);
+    if (!index.tryBeginStore(filename, info)) {
+      client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+      return;
+    }
+    List<String> shards = new ArrayList<>(k + m);
+    for (int i = 0; i < k + m; i++) {
+      String shard = FileInfo.chunkName(filename, i);
+      FileInfo shardInfo = new FileInfo(Index.FileState.STORE_IN_PROGRESS, shardSize,
+                                        new CopyOnWriteArrayList<>(List.of(ports.get(i))));
+      if (!index.tryBeginStore(shard, shardInfo)) {
+        // a leftover shard entry from an earlier file of this name
+        for (String claimed : shards) index.abortStore(claimed);
+        index.abortStore(filename);
+        client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+        return;
+      }
+      shards.add(shard);
+    }
+    System.out.println("Erasure-coding " + filename + " as " + k + "+" + m + " shards of "
+            + shardSize + " bytes: " + ports);
+
+    List<Object> fields = new ArrayList<>();
+    fields.add(shardSize);
+    fields.add(k);
+    fields.add(m);
+    fields.addAll(ports);
+    PendingRequest request = ctrl.initStoreTracking(filename, shards, k + m, client);
+    client.reply(Protocol.STORE_TO_EC_TOKEN, fields.toArray());
+    ctrl.scheduleStoreTimeout(request);
+  }
+}
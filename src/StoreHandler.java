@@ -1,7 +1,7 @@
 import java.io.IOException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class StoreHandler implements CommandHandler {
@@ -13,61 +13,83 @@ public class StoreHandler implements CommandHandler {
   }
 
   @Override
-  public void handle(String[] parts, Socket clientSocket) throws IOException {
-    if (parts.length != 2) {
+  public void handle(String[] parts, Connection client) throws IOException {
+    // parts = ["STORE", "filename", "filesize", "<sha256>"?]
+    if (parts.length != 3 && parts.length != 4) {
       System.err.println("Malformed STORE message: " + Arrays.toString(parts));
       return;
     }
 
-    String[] args = parts[1].split(" ", 2);
-    if (args.length != 2) {
-      System.err.println("Malformed STORE arguments: " + Arrays.toString(args));
-      return;
-    }
-
-    String filename = args[0];
-    int fileSize;
+    String filename = parts[1];
+    long fileSize;
     try {
-      fileSize = Integer.parseInt(args[1]);
+      fileSize = Long.parseLong(parts[2]);
     } catch (NumberFormatException e) {
-      System.err.println("Invalid file size in STORE: " + args[1]);
+      System.err.println("Invalid file size in STORE: " + parts[2]);
+      return;
+    }
+    if (fileSize < 0) {
+      System.err.println("Negative file size in STORE: " + fileSize);
+      return;
+    }
+    String hash = parts.length == 4 ? parts[3] : null;
+    if (hash != null && !BlobStore.isHash(hash)) {
+      System.err.println("Invalid content hash in STORE: " + hash);
       return;
     }
 
     // Check if enough Dstores are available
     if (ctrl.getDstorePortstoSenders().size() < ctrl.getReplicationFactor()) {
-      new TCPSender(clientSocket)
-              .sendOneWay(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      client.reply(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
       return;
     }
 
 
-    ArrayList<Integer> dstores;
-       synchronized (ctrl) {
-             if (ctrl.getIndex().getFileInfo(filename) != null) {
-                   new TCPSender(clientSocket)
-                                 .sendOneWay(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-                    return;
-                }
-              dstores = ctrl.selectLeastLoadedDstores();
-             ctrl.getIndex().setFileInfo(
-                             filename,
-                              new FileInfo(Index.FileState.STORE_IN_PROGRESS,
-                                                  fileSize,
-                                                  new CopyOnWriteArrayList<>(dstores)));
-          }
+    // names containing the chunk separator belong to chunked files
+    if (FileInfo.isChunkName(filename) || ctrl.getIndex().getFileInfo(filename) != null) {
+      client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+      return;
+    }
+
+    // Dstores that already hold this content get it linked instead of uploaded
+    List<Integer> holders = new ArrayList<>();
+    if (hash != null) {
+      for (int port : ctrl.getIndex().holdersOf(hash, fileSize)) {
+        if (ctrl.getDstorePortstoSenders().containsKey(port)) holders.add(port);
+      }
+    }
 
-    System.out.println("Selected Dstores for " + filename + ": " + dstores);
+    // Claim the name atomically; only the winner of a race on the same name proceeds
+    ArrayList<Integer> dstores = ctrl.selectLeastLoadedDstores(holders);
+    FileInfo info = new FileInfo(Index.FileState.STORE_IN_PROGRESS,
+                                 fileSize,
+                                 new CopyOnWriteArrayList<>(dstores));
+    info.setContentHash(hash);
+    Integer crc = hash == null || holders.isEmpty() ? null : ctrl.getIndex().checksumOf(hash, fileSize);
+    info.setCrc32c(crc);
+    if (!ctrl.getIndex().tryBeginStore(filename, info)) {
+      client.reply(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+      return;
+    }
 
-    // Track the pending client and send STORE_TO response
-    TCPSender clientSender = new TCPSender(clientSocket);
+    List<Integer> links = new ArrayList<>(dstores);
+    links.retainAll(holders);
+    List<Integer> uploads = new ArrayList<>(dstores);
+    uploads.removeAll(links);
+    System.out.println("Selected Dstores for " + filename + ": " + dstores
+            + (links.isEmpty() ? "" : ", linking on " + links));
 
-    ctrl.initStoreTracking(filename, dstores.size(), clientSender);
-    StringBuilder resp = new StringBuilder(Protocol.STORE_TO_TOKEN);
-    for (int p : dstores) {
-      resp.append(" ").append(p);
+    // Track the pending client and send STORE_TO response; it lists only the
+    // Dstores to upload to, and may be empty
+    PendingRequest request = ctrl.initStoreTracking(filename, dstores.size(), client);
+    client.reply(Protocol.STORE_TO_TOKEN, uploads.toArray());
+    for (int port : links) {
+      Connection ds = ctrl.getDstorePortstoSenders().get(port);
+      if (ds == null) continue;
+      if (crc != null) ds.send(Protocol.STORE_LINK_TOKEN, filename, fileSize, hash, Checksums.hex(crc));
+      else ds.send(Protocol.STORE_LINK_TOKEN, filename, fileSize, hash);
     }
-    clientSender.sendOneWay(resp.toString());
-    ctrl.scheduleStoreTimeout(filename);
+    ctrl.countStoreLinks(links.size());
+    ctrl.scheduleStoreTimeout(request);
   }
 }
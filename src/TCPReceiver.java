@@ -1,68 +1,157 @@
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TCP server that listens for incoming connections,
  * handles both simple text messages and file transfers.
+ * Wraps each socket in one Connection that lives as long as the socket.
  * For messages: prints them to stdout.
- * For file transfers: expects header "FILE filename filesize",
- * reads exactly filesize bytes via readNBytes(), saves file, and sends back an ACK.
+ * For file transfers the handler takes over the socket stream after the header
+ * line and reads exactly filesize bytes (see DStoreStoreHandler).
+ *
+ * Each connection runs as a task on an executor (virtual threads by default),
+ * and at most maxConnections accepted sockets are served at once; extra
+ * connections are closed straight away and counted as rejected.
+ * Defaults can be overridden with the system properties
+ * receiver.virtualThreads, receiver.maxConnections and receiver.backlog.
  */
 public class TCPReceiver {
-    private final int port;
-    private final MessageHandler handler;
-    private ServerSocket serverSocket;
-    private DisconnectListener Listener;
-    private int timeout;
+    public static final int DEFAULT_MAX_CONNECTIONS = 10_000;
+    public static final int DEFAULT_BACKLOG = 50;
+
+    protected final int port;
+    protected final MessageHandler handler;
+    private ServerSocketChannel serverSocket;
+    protected DisconnectListener Listener;
+    protected int timeout;
+
+    private final ExecutorService executor;
+    protected final int backlog;
+    protected final int maxConnections;
+    protected final Semaphore connectionPermits;
+    protected final AtomicInteger liveConnections = new AtomicInteger();
+    protected final AtomicLong acceptedConnections = new AtomicLong();
+    protected final AtomicLong rejectedConnections = new AtomicLong();
 
     public TCPReceiver(int port, MessageHandler handler , DisconnectListener listener,int timeout) {
+        this(port, handler, listener, timeout, defaultExecutor(),
+                Integer.getInteger("receiver.maxConnections", DEFAULT_MAX_CONNECTIONS),
+                Integer.getInteger("receiver.backlog", DEFAULT_BACKLOG));
+    }
+
+    /**
+     * @param executor       runs one task per connection
+     * @param maxConnections cap on concurrently served accepted connections
+     * @param backlog        accept queue length passed to the server socket
+     */
+    public TCPReceiver(int port, MessageHandler handler, DisconnectListener listener, int timeout,
+                       ExecutorService executor, int maxConnections, int backlog) {
         this.port = port;
         this.handler = handler;
         this.Listener = listener;
         this.timeout = timeout;
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.backlog = backlog;
+        this.connectionPermits = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Virtual thread per connection unless receiver.virtualThreads=false,
+     * in which case a cached pool of platform threads is used.
+     */
+    private static ExecutorService defaultExecutor() {
+        String virtual = System.getProperty("receiver.virtualThreads", "true");
+        return Boolean.parseBoolean(virtual)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
     }
 
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
-        System.out.println("TCPReceiver listening on port " + port);
+        // Accept through a (blocking) channel so every socket has a SocketChannel
+        // behind it, which lets file transfers use FileChannel.transferTo.
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port), backlog);
+        System.out.println("TCPReceiver listening on port " + port
+                + " (maxConnections=" + maxConnections + ", backlog=" + backlog + ")");
 
         Thread listener = new Thread(() -> {
             while (true) {
                 try {
-                    Socket client = serverSocket.accept();
-                    client.setSoTimeout(timeout);
-                    new Thread(() -> handleClient(client)).start();
+                    Socket client = serverSocket.accept().socket();
+                    if (!connectionPermits.tryAcquire()) {
+                        rejectedConnections.incrementAndGet();
+                        System.err.println("⚠ Connection limit reached, rejecting " + client.getRemoteSocketAddress());
+                        client.close();
+                        continue;
+                    }
+                    acceptedConnections.incrementAndGet();
+                    try {
+                        client.setSoTimeout(timeout);
+                        submit(new Connection(client), true);
+                    } catch (IOException e) {
+                        connectionPermits.release();
+                        client.close();
+                        throw e;
+                    }
                 } catch (IOException e) {
                     System.err.println("Error accepting connection: " + e.getMessage());
 
                 }
             }
-        });
+        }, "TCPReceiver-accept-" + port);
         listener.start();
     }
 
-    private void handleClient(Socket socket) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println("Received: " + line);
-                handler.handle(line, socket);
+    private void submit(Connection connection, boolean holdsPermit) {
+        liveConnections.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                handleClient(connection);
+            } finally {
+                liveConnections.decrementAndGet();
+                if (holdsPermit) connectionPermits.release();
+            }
+        });
+    }
+
+    private void handleClient(Connection connection) {
+        try {
+            connection.negotiate();
+            String[] parts;
+            while ((parts = connection.readMessage()) != null) {
+                System.out.println("Received: " + String.join(" ", parts));
+                handler.handle(parts, connection);
             }
 
         } catch (IOException e) {
             System.err.println("Connection error: " + e.getMessage());
         } finally {
-            try {
-                Listener.onDisconnect(socket);
-                socket.close();
-            } catch (IOException ignored) {}
+            Listener.onDisconnect(connection);
+            connection.close();
+            System.out.println("Closed " + connection);
         }
     }
 
-    public void attach(Socket s) {
-        new Thread(() -> handleClient(s)).start();
+    /**
+     * Serves an already-connected socket (e.g. our own link to the Controller).
+     * It counts as live but never takes one of the accept permits.
+     */
+    public void attach(Connection c) {
+        submit(c, false);
     }
 
+    public int getLiveConnections() { return liveConnections.get(); }
+    public long getAcceptedConnections() { return acceptedConnections.get(); }
+    public long getRejectedConnections() { return rejectedConnections.get(); }
+    public int getMaxConnections() { return maxConnections; }
+
 }
 
@@ -0,0 +1,32 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket shared by every transfer that should count against one
+ * bandwidth budget. Callers ask for permission before each chunk they send
+ * and are parked until the budget allows it; a rate of 0 or less means
+ * unlimited. Up to BURST_NANOS worth of unused budget may be spent at once.
+ */
+public class Throttle {
+    private static final long BURST_NANOS = 100_000_000L;
+
+    private final long bytesPerSecond;
+    private long nextFree = System.nanoTime();
+
+    public Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Blocks until bytes may be sent. */
+    public void acquire(long bytes) {
+        if (bytesPerSecond <= 0) return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now - BURST_NANOS) + bytes * 1_000_000_000L / bytesPerSecond;
+            wait = nextFree - now;
+        }
+        if (wait > 0) LockSupport.parkNanos(wait);
+    }
+
+    public long getBytesPerSecond() { return bytesPerSecond; }
+}